@@ -1,37 +1,174 @@
 
 /**
  * BTree.java 
- * A B+ Tree stored in a Random Access file
+ * A B+ Tree stored in a Random Access file (or a memory mapped file)
+ * 
+ * In concurrent mode (StorageOptions.concurrent) every node has a read/write
+ * latch. A descent latches each child before it lets go of the parent
+ * (latch crabbing). Inserts and removes hold write latches and let go of the
+ * ancestors as soon as a node is reached that can take the change without
+ * splitting or merging, so only the part of the path that may change stays
+ * latched. Lookups take no node latches: every latch has a version stamp
+ * that writers move on, and a lookup only starts over if a node it read
+ * changed while it was reading (see findPathOptimistic).
+ * 
+ * A tree made in concurrent mode is a B-link tree (Lehman and Yao): every
+ * node also has a high key and a link to its right sibling, which costs one
+ * key per node. An insert then latches one node at a time. A split fills
+ * the new right node and links the old node to it before the parent is
+ * latched to take the separator, and any descent that lands on the old
+ * node with a key at or above its high key follows the link. Removes that
+ * would merge or borrow wait for the splits in progress to finish (the
+ * structure latch) and latch their path as above.
+ * 
+ * A tree made with StorageOptions.packedNodes stores the children of its
+ * non-leaves as block numbers rather than addresses, so a non-leaf has a
+ * higher order than a leaf of the same size and the tree has fewer levels.
+ * 
+ * Keys are longs in memory. In the file they take 4 bytes, unless the tree
+ * was made with StorageOptions.longKeys, so trees of int keys keep their
+ * format and order. Other kinds of keys are stored by turning them into
+ * longs of the same order with a KeyCodec. Byte array keys too long for a
+ * long go in a ByteKeyTree instead.
  * 
  * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
  */
 
 import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Stack;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 public class BTree {
-    private RandomAccessFile f;
-    private int order;
+    // How full bulkLoad packs each node when no fill factor is given
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+    // Set in the block size stored in the file of a B-link tree
+    private static final int LINKED = 1 << 30;
+
+    // Set in the block size stored in the file of a tree with packed non-leaves
+    private static final int PACKED = 1 << 29;
+
+    // Set in the block size stored in the file of a tree of long keys
+    private static final int LONG_KEYS = 1 << 28;
+
+    // Smallest order a tree is made with. Below it a remove can empty a
+    // leaf, and a leaf with a count of 0 reads as a non-leaf.
+    static final int MIN_ORDER = 5;
+
+    // Bytes before the first node: root, free list and block size
+    private static final int HEADER = 20;
+
+    private Storage f;
+    private int order; // order of the leaves
+    private int innerOrder; // order of the non-leaves, higher when they are packed
     private int blockSize;
-    private long root;
+    private volatile long root;
     private long free;
+    private int nodeSize; // number of bytes a node occupies in the file
+    private boolean linked; // B-link tree: every node has a high key and a right link
+    private boolean packed; // non-leaves store their children as block numbers
+    private boolean longKeys; // keys take 8 bytes in the file rather than 4
+    private ThreadLocal<ByteBuffer> pages; // per thread buffer holding one node image
+    private PageCache cache; // recently used nodes, keyed by address
+    private int readAheadLeaves; // leaves a cursor reads into the cache ahead of itself
+    private StorageOptions options;
+    private WriteAheadLog wal; // null unless changes are logged
+    private long headerRoot; // root and free as last written to the file
+    private long headerFree;
+
+    // Latches, only used in concurrent mode
+    private boolean concurrent;
+    private ReentrantReadWriteLock rootLatch = new ReentrantReadWriteLock(); // guards root
+    private ReentrantReadWriteLock structureLatch = new ReentrantReadWriteLock(); // merges exclude B-link splits
+    private volatile long rootVersion; // odd while root is being changed
+    private ConcurrentHashMap<Long, Latch> latches = new ConcurrentHashMap<>(); // node address -> latch, dropped when the node is freed
+    private ReentrantLock freeLatch = new ReentrantLock(); // guards free
+    private AtomicLong fileEnd = new AtomicLong(); // end of the space handed out by malloc
+
+    // Bloom filter over the keys, null unless one is kept (StorageOptions.bloomBitsPerKey)
+    private volatile BloomFilter filter;
+    private volatile BloomFilter growing; // filter being rebuilt, new keys go in both
+    private File filterFile; // where the filter is kept while the tree is closed
+    private AtomicLong liveKeys = new AtomicLong(); // keys in the tree, counted while there is a filter
+    private AtomicLong filterRemoves = new AtomicLong(); // keys removed since the filter was built
+    private AtomicBoolean rebuilding = new AtomicBoolean();
+    private Thread rebuilder; // rebuilds the filter in concurrent mode
+
+    // Smallest number of keys a filter is sized for
+    private static final long MIN_FILTER_KEYS = 1024;
+
+    // Lookups that keep running into writers fall back to read latches after this many tries
+    private static final int OPTIMISTIC_TRIES = 8;
+
+    /**
+     * A node latch. Besides the read/write lock it has a version stamp that
+     * is odd while a writer holds the latch and moves on each time the
+     * writer lets go, so a reader that takes no latch can tell whether the
+     * node changed while it was reading it.
+     */
+    private static class Latch {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile long version;
+
+        private Lock readLock() {
+            return lock.readLock();
+        }
+
+        private void lockWrite() {
+            lock.writeLock().lock();
+
+            // Only the outermost hold of a reentrant latch changes the version
+            if (lock.getWriteHoldCount() == 1)
+                version++;
+        }
+
+        private void unlockWrite() {
+            if (lock.getWriteHoldCount() == 1)
+                version++;
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * How a descent latches the nodes it passes
+     */
+    private enum Descent {
+        READ, // no latches (read latches if the optimistic tries fail)
+        INSERT, // write latches, ancestors released below a node with room
+        REMOVE // write latches, ancestors released below the parent of a node that can lose a key
+    }
 
     // add instance variables as needed.
     private class BTreeNode {
         private int count;
-        private int keys[];
+        private long keys[];
         private long children[];
         private long address; // the address of the node in the file
+        private long high; // keys in the node are below this if it has a right sibling (B-link trees)
+        private long link; // right sibling of a non-leaf (B-link trees), leaves use their next reference
         // constructors and other method
 
-        private BTreeNode() {
-            keys = new int[order];
+        // An empty node of the given order (order for a leaf, innerOrder for a non-leaf)
+        private BTreeNode(int order) {
+            keys = new long[order];
             children = new long[order + 1];
             count = 0;
         }
 
-        private BTreeNode(int count, int[] keys, long[] children) {
+        private BTreeNode(int count, long[] keys, long[] children) {
             this.count = count;
             this.keys = keys;
             this.children = children;
@@ -41,37 +178,85 @@ public class BTree {
         private BTreeNode(long addr) throws IOException {
             this.address = addr;
 
-            f.seek(addr);
-
-            this.count = f.readInt();
-
             // Max number of keys = M - 1
-            keys = new int[order];
+            keys = new long[order];
 
             // Max number of children is M
             // make room for the next leaf reference (+1)
             children = new long[order + 1];
 
-            // Read in the keys and children
+            // The arrays are made again if it is a non-leaf of a higher order
+            read(addr);
+        }
+
+        // Replace the contents of this node with the node at addr
+        private void read(long addr) throws IOException {
+            this.address = addr;
+
+            // Pull the whole node into the page buffer with one read,
+            // then decode the count, keys and children from memory
+            ByteBuffer page = readPage(addr);
+
+            this.count = page.getInt();
+
+            // Leaves and non-leaves differ in order when non-leaves are packed
+            int nodeOrder = this.count < 0 ? order : innerOrder;
+            if (keys.length != nodeOrder) {
+                keys = new long[nodeOrder];
+                children = new long[nodeOrder + 1];
+            }
+
             for (int i = 0; i < keys.length - 1; i++)
-                keys[i] = f.readInt();
+                keys[i] = longKeys ? page.getLong() : page.getInt();
+
+            if (packed && this.count >= 0) {
+                for (int i = 0; i < children.length - 1; i++)
+                    children[i] = addressOf(page.getInt());
+            } else {
+                for (int i = 0; i < children.length - 1; i++)
+                    children[i] = page.getLong();
+            }
 
-            for (int i = 0; i < children.length - 1; i++)
-                children[i] = f.readLong();
+            this.high = !linked ? 0 : longKeys ? page.getLong() : page.getInt();
+            if (packed && this.count >= 0)
+                this.link = linked ? addressOf(page.getInt()) : 0;
+            else
+                this.link = linked ? page.getLong() : 0;
 
+            // Clear the overflow slots used while splitting
+            keys[keys.length - 1] = 0;
+            children[children.length - 1] = 0;
         }
 
         // Write the node out to the file
         private void writeNode(long addr) throws IOException {
-            f.seek(addr);
-            f.writeInt(this.count);
+            // Encode the node into the page buffer, then write it with one call
+            ByteBuffer page = pages.get();
+            page.clear();
+            page.putInt(this.count);
 
             // Write the keys and children
             for (int i = 0; i < keys.length - 1; i++)
-                f.writeInt(keys[i]);
+                putKey(page, keys[i]);
+
+            // A packed non-leaf (or freed node) holds block numbers, a leaf holds row addresses
+            boolean blocks = packed && this.count >= 0;
+            for (int i = 0; i < children.length - 1; i++) {
+                if (blocks)
+                    page.putInt(blockOf(children[i]));
+                else
+                    page.putLong(children[i]);
+            }
+
+            if (linked) {
+                putKey(page, this.high);
+                if (blocks)
+                    page.putInt(blockOf(this.link));
+                else
+                    page.putLong(this.link);
+            }
 
-            for (int i = 0; i < children.length - 1; i++)
-                f.writeLong(children[i]);
+            writePage(addr, page);
         }
 
         /**
@@ -81,7 +266,7 @@ public class BTree {
          * @return
          */
         private boolean minKeys() {
-            return Math.abs(this.count) >= Math.ceil((double) order / 2) - 1
+            return Math.abs(this.count) >= Math.ceil((double) keys.length / 2) - 1
                     || this.address == root && Math.abs(this.count) >= 1;
         }
 
@@ -90,110 +275,1162 @@ public class BTree {
          * @param key
          * @return
          */
-        private boolean contains(int key) {
-            for (int i = 0; i < Math.abs(this.count); i++)
-                if (this.keys[i] == key)
-                    return true;
+        private boolean contains(long key) {
+            return Arrays.binarySearch(this.keys, 0, Math.abs(this.count), key) >= 0;
+        }
 
-            return false;
+        /**
+         * Returns the index of the child to follow for the key in a non-leaf.
+         * Keys equal to a separator belong to the child on its right.
+         * @param key
+         * @return
+         */
+        private int childIndex(long key) {
+            int i = Arrays.binarySearch(this.keys, 0, this.count, key);
+            return i >= 0 ? i + 1 : -(i + 1);
         }
 
         /**
          * Returns true if the node has enough room to insert a key
          */
         private boolean hasRoom() {
-            return Math.abs(this.count) < (order - 1);
+            return Math.abs(this.count) < (keys.length - 1);
+        }
+
+        /**
+         * Returns true if a key can be removed from the node without it
+         * becoming too small
+         */
+        private boolean canLoseKey() {
+            int min = (int) Math.ceil((double) keys.length / 2) - 1;
+            if (this.address == root)
+                min = Math.max(min, 1);
+            return Math.abs(this.count) - 1 >= min;
+        }
+
+        /**
+         * Returns the address of the node to the right on the same level (0 if none)
+         */
+        private long right() {
+            return this.count < 0 ? this.children[order - 1] : this.link;
+        }
+
+        /**
+         * Returns true if a split has moved the part of the node that would
+         * hold the key to a node further right (only in B-link trees)
+         */
+        private boolean movedRight(long key) {
+            return linked && right() != 0 && key >= this.high;
+        }
+    }
+
+    /**
+     * The nodes between the root and a leaf, along with the child index
+     * taken out of each non-leaf. Each thread keeps one Path per tree and
+     * every descent reuses its nodes, so looking up a key does not allocate.
+     * In concurrent mode the path also holds the latches taken by the
+     * change in progress and the nodes it will free when it ends.
+     */
+    private class Path {
+        private BTreeNode nodes[] = new BTreeNode[0];
+        private int slots[] = new int[0]; // child index followed at each level
+        private int size;
+        private Object held[] = new Object[0]; // latches in the order they were taken
+        private int firstHeld; // latches before this one have been released
+        private int numHeld;
+        private LongList freed = new LongList(); // nodes to free when the change ends
+
+        /**
+         * Reads the node at addr into the next level of the path
+         */
+        private BTreeNode push(long addr) throws IOException {
+            // The tree is taller than any path seen so far
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size + 4);
+                slots = Arrays.copyOf(slots, size + 4);
+                for (int i = size; i < nodes.length; i++)
+                    nodes[i] = new BTreeNode(order);
+            }
+
+            BTreeNode node = nodes[size++];
+            node.read(addr);
+            return node;
+        }
+
+        private BTreeNode pop() {
+            return nodes[--size];
+        }
+
+        private BTreeNode peek() {
+            return nodes[size - 1];
+        }
+
+        /**
+         * Returns the index of the child that was followed out of the node on
+         * top of the path
+         */
+        private int slot() {
+            return slots[size - 1];
+        }
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Adds a latch (null outside of concurrent mode) to the ones held:
+         * a Lock, or the Latch of a node that is write latched
+         */
+        private void hold(Object latch) {
+            if (latch == null)
+                return;
+
+            if (numHeld == held.length)
+                held = Arrays.copyOf(held, numHeld + 8);
+            held[numHeld++] = latch;
         }
+
+        /**
+         * Releases the oldest latches until only the newest keep are held
+         */
+        private void releaseAllBut(int keep) {
+            while (numHeld - firstHeld > keep) {
+                release(held[firstHeld]);
+                held[firstHeld++] = null;
+            }
+
+            if (firstHeld == numHeld)
+                firstHeld = numHeld = 0;
+        }
+
+        /**
+         * Returns an action that releases the latches held now. The path can
+         * take new latches before the action runs.
+         */
+        private Runnable takeLatches() {
+            Object taken[] = Arrays.copyOfRange(held, firstHeld, numHeld);
+            Arrays.fill(held, 0, numHeld, null);
+            firstHeld = numHeld = 0;
+
+            return () -> {
+                for (int i = taken.length - 1; i >= 0; i--)
+                    release(taken[i]);
+            };
+        }
+
+        private void release(Object latch) {
+            if (latch instanceof Latch)
+                ((Latch) latch).unlockWrite();
+            else
+                ((Lock) latch).unlock();
+        }
+    }
+
+    private ThreadLocal<Path> paths = ThreadLocal.withInitial(() -> new Path());
+
+    /**
+     * A forward cursor over the keys in a range. Leaves are read one at a
+     * time as the cursor reaches them by following the next leaf reference,
+     * so a scan holds a single leaf in memory no matter how wide the range is.
+     * The tree should not be modified while a cursor is open, except in
+     * concurrent mode. There the cursor holds no latches between calls and
+     * finds each next leaf by descending from the root to the smallest
+     * separator above the last leaf, so keys inserted or removed by other
+     * threads during the scan may or may not be seen.
+     * 
+     * The leaves after the current one under the same parent are read into
+     * the page cache on the ReadAhead threads a few at a time
+     * (StorageOptions.readAheadLeaves), so the reads overlap each other and
+     * the scan. When they run out the cursor descends again to the next
+     * parent.
+     */
+    public class Cursor implements Closeable {
+        private BTreeNode leaf; // the leaf being scanned (owned by the cursor)
+        private int index; // position of the current key in the leaf
+        private long low;
+        private long high;
+        private long lastKey; // last key returned
+        private boolean returned; // a key has been returned, so lastKey is set
+        private long bound; // smallest separator above the leaf
+        private boolean bounded; // false if no separator is above the leaf
+        private boolean started;
+        private boolean done;
+        private long ahead[]; // leaves after this one under its parent, up to the first past high
+        private int aheadEnd; // number of leaves in ahead
+        private int aheadNext; // position in ahead of the leaf after this one
+        private int aheadRead; // leaves in ahead before this position have been read ahead
+
+        private Cursor(long low, long high) throws IOException {
+            this.low = low;
+            this.high = high;
+            this.leaf = new BTreeNode(order);
+            this.ahead = new long[innerOrder + 1];
+            seek(low);
+        }
+
+        /**
+         * Positions the cursor just before the first key >= low
+         */
+        private void seek(long low) throws IOException {
+            Path path = findPath(low, Descent.READ);
+
+            if (path.isEmpty()) {
+                done = true;
+                return;
+            }
+
+            // Copy the leaf out of the thread's path so later descents can't change it
+            BTreeNode found = path.peek();
+            leaf.address = found.address;
+            leaf.count = found.count;
+            leaf.high = found.high;
+            System.arraycopy(found.keys, 0, leaf.keys, 0, leaf.keys.length);
+            System.arraycopy(found.children, 0, leaf.children, 0, leaf.children.length);
+
+            // Keys to the right of this leaf are at least the nearest separator
+            // above it (the leaf's high key in a B-link tree)
+            bounded = false;
+            if (linked) {
+                if (leaf.right() != 0) {
+                    bound = leaf.high;
+                    bounded = true;
+                }
+            } else {
+                for (int i = 0; i < path.size - 1; i++) {
+                    BTreeNode node = path.nodes[i];
+                    if (path.slots[i] < node.count && (!bounded || node.keys[path.slots[i]] < bound)) {
+                        bound = node.keys[path.slots[i]];
+                        bounded = true;
+                    }
+                }
+            }
+
+            // The parent lists the leaves that follow, so they can be read
+            // ahead before the cursor gets to them
+            aheadEnd = aheadNext = aheadRead = 0;
+            if (readAheadLeaves > 0 && path.size > 1) {
+                BTreeNode parent = path.nodes[path.size - 2];
+                for (int j = path.slots[path.size - 2] + 1; j <= parent.count && parent.keys[j - 1] <= high; j++)
+                    ahead[aheadEnd++] = parent.children[j];
+                readAhead();
+            }
+
+            int i = Arrays.binarySearch(leaf.keys, 0, Math.abs(leaf.count), low);
+            index = (i >= 0 ? i : -(i + 1)) - 1;
+        }
+
+        /**
+         * Starts reading the next few leaves into the page cache
+         */
+        private void readAhead() {
+            int end = Math.min(aheadEnd, aheadNext + readAheadLeaves);
+            for (aheadRead = Math.max(aheadRead, aheadNext); aheadRead < end; aheadRead++)
+                cache.prefetch(ahead[aheadRead]);
+        }
+
+        /**
+         * Moves to the next key in the range
+         * 
+         * @return true if the cursor is on a key, false once the range is used up
+         * @throws IOException
+         */
+        public boolean next() throws IOException {
+            if (done)
+                return false;
+
+            started = true;
+            index++;
+
+            // End of the leaf has been reached, so go to the next leaf
+            while (index >= Math.abs(leaf.count)) {
+                // The next leaf reference may be stale in concurrent mode, and
+                // the leaves to read ahead are under the next parent once
+                // those under this one run out, so descend again
+                if (concurrent || (readAheadLeaves > 0 && aheadNext == aheadEnd)) {
+                    // Nothing in the range is right of the leaf. Past this,
+                    // lastKey is below high, so lastKey + 1 does not overflow.
+                    if (!bounded || bound > high || returned && lastKey >= high) {
+                        done = true;
+                        return false;
+                    }
+                    seek(Math.max(bound, returned ? lastKey + 1 : low));
+                    if (done)
+                        return false;
+                    index++;
+                    continue;
+                }
+
+                long next = leaf.children[leaf.children.length - 2];
+                if (next == 0) {
+                    done = true;
+                    return false;
+                }
+                aheadNext++;
+                readAhead();
+                leaf.read(next);
+                index = 0;
+            }
+
+            if (leaf.keys[index] > high) {
+                done = true;
+                return false;
+            }
+
+            lastKey = leaf.keys[index];
+            returned = true;
+            return true;
+        }
+
+        /**
+         * Returns the key the cursor is on
+         */
+        public long key() {
+            checkPosition();
+            return leaf.keys[index];
+        }
+
+        /**
+         * Returns the address stored with the key the cursor is on
+         */
+        public long address() {
+            checkPosition();
+            return leaf.children[index];
+        }
+
+        public void close() {
+            done = true;
+        }
+
+        private void checkPosition() {
+            if (!started || done)
+                throw new IllegalStateException("cursor is not on a key");
+        }
+    }
+
+    /**
+     * Turns a key and its address into an element of a range spliterator
+     */
+    public interface EntryReader<T> {
+        /**
+         * Returns the element for the key, or null to leave the key out
+         */
+        T read(long key, long address) throws IOException;
+    }
+
+    /**
+     * A spliterator over a key range. Splitting cuts the range at a
+     * separator of the first node on the way down whose children divide it,
+     * so the two parts are scanned in different subtrees. Each part is
+     * scanned with a cursor of its own, opened on its first element.
+     */
+    private class RangeSpliterator<T> implements Spliterator<T> {
+        private long low;
+        private long high;
+        private long estimate; // halved on each split, since the number of keys is not known
+        private EntryReader<T> reader;
+        private Cursor cursor;
+
+        private RangeSpliterator(long low, long high, long estimate, EntryReader<T> reader) {
+            this.low = low;
+            this.high = high;
+            this.estimate = estimate;
+            this.reader = reader;
+        }
+
+        public boolean tryAdvance(Consumer<? super T> action) {
+            try {
+                if (cursor == null)
+                    cursor = rangeCursor(low, high);
+
+                while (cursor.next()) {
+                    T element = reader.read(cursor.key(), cursor.address());
+                    if (element != null) {
+                        action.accept(element);
+                        return true;
+                    }
+                }
+                return false;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public Spliterator<T> trySplit() {
+            // A part that is being scanned keeps the rest of its range
+            if (cursor != null)
+                return null;
+
+            long split;
+            try {
+                split = splitKey(low, high);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (split == low)
+                return null;
+
+            estimate >>>= 1;
+            RangeSpliterator<T> prefix = new RangeSpliterator<>(low, split - 1, estimate, reader);
+            low = split;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return estimate;
+        }
+
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.NONNULL;
+        }
+    }
+
+    public BTree(String filename, int bsize) throws IOException {
+        this(filename, bsize, new StorageOptions());
+    }
+
+    public BTree(String filename, int bsize, StorageOptions options) throws IOException {
+        this(filename, checkBlockSize(bsize, options), options, createLog(filename, options), 0);
+    }
+
+    /**
+     * Makes a new B+Tree whose changes are recorded in the given log
+     * (shared with the DBTable that owns the tree)
+     * 
+     * @param log    The log, or null for no logging
+     * @param fileId Id of the tree file in the log
+     */
+    BTree(String filename, int bsize, StorageOptions options, WriteAheadLog log, int fileId) throws IOException {
+        // bsize is the block size. This value is used to calculate the order
+        // of the B+Tree
+        // all B+Tree nodes will use bsize bytes
+        // makes a new B+tree
+
+        File bFile = new File(filename);
+
+        if (bFile.exists())
+            bFile.delete();
+
+        f = Storage.open(bFile, options);
+        if (log != null)
+            f = log.attach(fileId, f);
+        this.wal = log;
+
+        begin();
+
+        // Set the root and free addresses in memory and in the file
+        this.root = 0;
+        f.writeLong(0, root);
+
+        this.free = 0;
+        f.writeLong(8, free);
+
+        // Set the blocksize in memory and in the file
+        // Trees made for concurrent use are B-link trees, which is noted with the block size,
+        // as is whether the non-leaves are packed and whether the keys are longs
+        this.blockSize = bsize;
+        this.linked = options.getConcurrent();
+        this.packed = options.getPackedNodes();
+        this.longKeys = options.getLongKeys();
+        f.writeInt(16, blockSize | (linked ? LINKED : 0) | (packed ? PACKED : 0) | (longKeys ? LONG_KEYS : 0));
+
+        end(true);
+
+        // Calculate the order
+        this.order = orderOf(bsize, linked, longKeys);
+        this.options = options;
+        allocatePage();
+        initFilter(filename);
+    }
+
+    public BTree(String filename) throws IOException {
+        this(filename, new StorageOptions());
+    }
+
+    public BTree(String filename, StorageOptions options) throws IOException {
+        this(filename, options, openLog(filename, options), 0);
+    }
+
+    /**
+     * Opens an existing B+Tree whose changes are recorded in the given log.
+     * Committed changes still in the log are replayed into the file first.
+     * 
+     * @param log    The log, or null for no logging
+     * @param fileId Id of the tree file in the log
+     */
+    BTree(String filename, StorageOptions options, WriteAheadLog log, int fileId) throws IOException {
+        // open an existing B+Tree
+        File bFile = new File(filename);
+        f = Storage.open(bFile, options);
+        if (log != null)
+            f = log.attach(fileId, f);
+        this.wal = log;
+
+        // Read in the root address, free address, and blockSize
+        this.root = f.readLong(0);
+        this.free = f.readLong(8);
+        int stored = f.readInt(16);
+        this.blockSize = stored & ~(LINKED | PACKED | LONG_KEYS);
+        this.linked = (stored & LINKED) != 0;
+        this.packed = (stored & PACKED) != 0;
+        this.longKeys = (stored & LONG_KEYS) != 0;
+        this.headerRoot = root;
+        this.headerFree = free;
+
+        // Calculate the order from the block size
+        this.order = orderOf(blockSize, linked, longKeys);
+        this.options = options;
+        allocatePage();
+        initFilter(filename);
+    }
+
+    /**
+     * Sets up the Bloom filter. A filter saved by close is read back in,
+     * otherwise one is built from the keys in the tree. The saved filter is
+     * deleted either way, so a tree that is changed without it (or not
+     * closed) builds a new one the next time it is opened.
+     */
+    private void initFilter(String filename) throws IOException {
+        filterFile = new File(filename + ".bloom");
+        boolean saved = filterFile.exists();
+
+        if (saved && options.getBloomBitsPerKey() > 0) {
+            Storage s = Storage.open(filterFile, new StorageOptions());
+            try {
+                liveKeys.set(s.readLong(0));
+                filter = BloomFilter.read(s, 8);
+            } finally {
+                s.close();
+            }
+        }
+        if (saved)
+            filterFile.delete();
+
+        if (options.getBloomBitsPerKey() == 0 || filter != null)
+            return;
+
+        // Count the keys first so the filter is built at the right size
+        long keys = 0;
+        try (Cursor cursor = rangeCursor(Long.MIN_VALUE, Long.MAX_VALUE)) {
+            while (cursor.next())
+                keys++;
+        }
+        liveKeys.set(keys);
+        rebuildFilter();
+    }
+
+    /**
+     * Builds a new filter from the keys in the tree and puts it in place of
+     * the old one, which is used until then. Keys inserted meanwhile are
+     * added to both.
+     */
+    private void rebuildFilter() throws IOException {
+        BloomFilter rebuilt = new BloomFilter(Math.max(MIN_FILTER_KEYS, 2 * liveKeys.get()), options.getBloomBitsPerKey());
+        filterRemoves.set(0);
+        growing = rebuilt;
+        try {
+            try (Cursor cursor = rangeCursor(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                while (cursor.next())
+                    rebuilt.add(cursor.key());
+            }
+            filter = rebuilt;
+        } finally {
+            growing = null;
+        }
+    }
+
+    /**
+     * Adds an inserted key to the filter. This happens once the key is in
+     * the tree: a rebuild that starts later finds the key in the tree, and
+     * one that started earlier has its new filter in growing.
+     */
+    private void addToFilter(long key) {
+        // growing is read first, so if it is null here either the rebuild
+        // has not started or filter already holds the new filter
+        BloomFilter next = growing;
+        BloomFilter current = filter;
+        if (current != null)
+            current.add(key);
+        if (next != null)
+            next.add(key);
+    }
+
+    /**
+     * Rebuilds the filter once more keys are in the tree than it was sized
+     * for, or once many keys have been removed. Outside of concurrent mode
+     * this happens right away. In concurrent mode it happens on a thread of
+     * its own, since the caller may still hold latches until its change is
+     * logged, and the other threads go on using the old filter.
+     */
+    private void maintainFilter() throws IOException {
+        BloomFilter current = filter;
+        if (current == null)
+            return;
+
+        long capacity = current.getCapacity();
+        if (liveKeys.get() <= capacity && filterRemoves.get() <= capacity / 2)
+            return;
+
+        if (!rebuilding.compareAndSet(false, true))
+            return;
+
+        if (!concurrent) {
+            try {
+                rebuildFilter();
+            } finally {
+                rebuilding.set(false);
+            }
+            return;
+        }
+
+        rebuilder = new Thread(() -> {
+            try {
+                rebuildFilter();
+            } catch (IOException e) {
+                // The old filter still holds every key, it only answers "maybe" more often
+            } finally {
+                rebuilding.set(false);
+            }
+        }, "bloom-rebuild");
+        rebuilder.setDaemon(true);
+        rebuilder.start();
+    }
+
+    /**
+     * Returns the order of a tree with the given block size. A node holds a
+     * count, M - 1 keys and M children (12 * M bytes with int keys). A B-link
+     * node also holds a high key and a right link, which take the room of one
+     * more key and child.
+     */
+    private static int orderOf(int bsize, boolean linked, boolean longKeys) {
+        int keyBytes = longKeys ? 8 : 4;
+        return linked ? (bsize - 12) / (keyBytes + 8) : (bsize - 4 + keyBytes) / (keyBytes + 8);
+    }
+
+    /**
+     * Checks that a tree made with the given block size and options has an
+     * order of at least MIN_ORDER. The B-link layout and long keys both make
+     * the nodes of a block size hold fewer keys.
+     *
+     * @return The block size
+     * @throws IllegalArgumentException if the order would be too small
+     */
+    static int checkBlockSize(int bsize, StorageOptions options) {
+        int order = orderOf(bsize, options.getConcurrent(), options.getLongKeys());
+        if (order < MIN_ORDER)
+            throw new IllegalArgumentException("block size " + bsize + " gives order " + order + ", at least "
+                    + MIN_ORDER + " is needed");
+        return bsize;
+    }
+
+    /**
+     * Starts a new log for a tree that is being made, if logging is on
+     */
+    static WriteAheadLog createLog(String filename, StorageOptions options) throws IOException {
+        File logFile = new File(filename + ".wal");
+        if (logFile.exists())
+            logFile.delete();
+
+        return options.getWriteAheadLog() ? new WriteAheadLog(logFile, options) : null;
+    }
+
+    /**
+     * Opens the log of an existing tree. A log left behind by a crash is
+     * always opened so that its committed changes are recovered.
+     */
+    static WriteAheadLog openLog(String filename, StorageOptions options) throws IOException {
+        File logFile = new File(filename + ".wal");
+
+        if (options.getWriteAheadLog() || logFile.exists())
+            return new WriteAheadLog(logFile, options);
+        return null;
+    }
+
+    /**
+     * Starts a change to the tree
+     */
+    private void begin() throws IOException {
+        if (wal != null)
+            wal.begin();
+    }
+
+    /**
+     * Ends a change to the tree. Nodes the change emptied are freed and its
+     * latches are released. When changes are logged, the root and free list
+     * are written along with the change and the change is committed (or
+     * dropped if it failed part way). The latches are then held until the
+     * change is in the log, so the log has changes to a node in the order
+     * they were made.
+     * 
+     * @param ok true if the change completed
+     * @throws IOException
+     */
+    private void end(boolean ok) throws IOException {
+        Path path = paths.get();
+        boolean freed = false;
+        try {
+            // Only now, with no more latches to take, can other threads reuse the nodes
+            for (int i = 0; ok && i < path.freed.size(); i++)
+                addToFreeList(path.freed.get(i));
+            freed = true;
+        } finally {
+            path.freed.clear();
+
+            if (concurrent) {
+                Runnable unlatch = unlatcher(path);
+                if (wal == null)
+                    unlatch.run();
+                else
+                    wal.afterAppend(unlatch);
+            }
+        }
+
+        if (wal == null)
+            return;
+
+        if (!ok || !freed) {
+            wal.abort();
+            return;
+        }
+
+        writeHeader();
+        wal.commit();
+    }
+
+    /**
+     * Returns an action that releases the node latches in the path and the
+     * free list and structure latches held by this thread
+     */
+    private Runnable unlatcher(Path path) {
+        Runnable nodes = path.takeLatches();
+        return () -> {
+            nodes.run();
+            while (freeLatch.isHeldByCurrentThread())
+                freeLatch.unlock();
+            while (structureLatch.isWriteLockedByCurrentThread())
+                structureLatch.writeLock().unlock();
+        };
+    }
+
+    /**
+     * Writes the root and free addresses that changed since they were last
+     * written. In concurrent mode only the ones this thread has latched
+     * (and so changed) are written.
+     */
+    private void writeHeader() throws IOException {
+        if (root != headerRoot && (!concurrent || rootLatch.isWriteLockedByCurrentThread())) {
+            f.writeLong(0, root);
+            headerRoot = root;
+        }
+
+        if (free != headerFree && (!concurrent || freeLatch.isHeldByCurrentThread())) {
+            f.writeLong(8, free);
+            headerFree = free;
+        }
+    }
+
+    /**
+     * Takes a read latch on the node at addr
+     * 
+     * @param addr Address of the node
+     * @return The read lock taken, null when not in concurrent mode
+     */
+    private Lock readLatch(long addr) {
+        if (!concurrent)
+            return null;
+
+        Lock lock = latchOf(addr).readLock();
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * Takes a write latch on the node at addr
+     * 
+     * @param addr Address of the node
+     * @return The latch, to be released with unlockWrite, null when not in
+     *         concurrent mode
+     */
+    private Latch writeLatch(long addr) {
+        if (!concurrent)
+            return null;
+
+        Latch latch = latchOf(addr);
+        latch.lockWrite();
+        return latch;
+    }
+
+    private Latch latchOf(long addr) {
+        return latches.computeIfAbsent(addr, a -> new Latch());
+    }
+
+    /**
+     * Changes the root address. Lookups that read the old address see the
+     * root version move and start over. Callers hold the root latch.
+     */
+    private void setRoot(long addr) {
+        rootVersion++;
+        root = addr;
+        rootVersion++;
     }
 
-    public BTree(String filename, int bsize) throws IOException {
-        // bsize is the block size. This value is used to calculate the order
-        // of the B+Tree
-        // all B+Tree nodes will use bsize bytes
-        // makes a new B+tree
+    private Lock latch(ReentrantReadWriteLock latch, boolean write) {
+        if (!concurrent)
+            return null;
 
-        File bFile = new File(filename);
+        Lock lock = write ? latch.writeLock() : latch.readLock();
+        lock.lock();
+        return lock;
+    }
 
-        if (bFile.exists())
-            bFile.delete();
+    /**
+     * Reads the node at addr under a read latch that is released right away
+     */
+    private BTreeNode readLatched(long addr) throws IOException {
+        Lock latch = readLatch(addr);
+        try {
+            return new BTreeNode(addr);
+        } finally {
+            if (latch != null)
+                latch.unlock();
+        }
+    }
 
-        f = new RandomAccessFile(bFile, "rw");
+    /**
+     * Reads the node at addr after write latching it for the rest of the change
+     */
+    private BTreeNode writeLatched(long addr) throws IOException {
+        paths.get().hold(writeLatch(addr));
+        return new BTreeNode(addr);
+    }
 
-        // Start at the beginning of the file
-        f.seek(0);
+    /**
+     * Takes the free list latch. When changes are logged, a thread that
+     * changed the free list keeps the latch until its change is in the log.
+     */
+    private void lockFree() {
+        if (concurrent)
+            freeLatch.lock();
+    }
 
-        // Set the root and free addresses in memory and in the file
-        this.root = 0;
-        f.writeLong(root);
+    /**
+     * Takes the free list latch if no other thread has it
+     * 
+     * @return true if the latch was taken
+     */
+    private boolean tryLockFree() {
+        return !concurrent || freeLatch.tryLock();
+    }
 
-        this.free = 0;
-        f.writeLong(free);
+    private void unlockFree(boolean changed) {
+        if (concurrent && !(changed && wal != null))
+            freeLatch.unlock();
+    }
 
-        // Set the blocksize in memory and in the file
-        this.blockSize = bsize;
-        f.writeInt(blockSize);
+    /**
+     * Sizes the page buffers and the page cache to one node image. A node holds
+     * a count, M - 1 keys and M children, which is 12 * M bytes with int keys,
+     * plus a high key and right link in a B-link tree (never more than the
+     * block size)
+     */
+    private void allocatePage() throws IOException {
+        int keyBytes = longKeys ? 8 : 4;
+        this.nodeSize = 4 + keyBytes * (order - 1) + 8 * order + (linked ? keyBytes + 8 : 0);
+
+        // A packed non-leaf holds a count, M - 1 keys and M block numbers
+        // (8 * M bytes with int keys), plus a high key and the block of its
+        // right link in a B-link tree, in the same space as a leaf
+        if (!packed)
+            this.innerOrder = order;
+        else if (linked)
+            this.innerOrder = (nodeSize - 8) / (keyBytes + 4);
+        else
+            this.innerOrder = (nodeSize - 4 + keyBytes) / (keyBytes + 4);
+        this.pages = ThreadLocal.withInitial(() -> ByteBuffer.allocate(nodeSize));
+        this.concurrent = options.getConcurrent();
+
+        // A mapped file is already in memory, so it is not cached twice
+        long cacheBytes = options.getCacheBytes();
+        if (options.getBackend() == StorageOptions.Backend.MAPPED)
+            cacheBytes = 0;
+
+        // Logged writes must reach the log as they happen, so they are not held back.
+        // In concurrent mode the cache is striped so threads don't wait on each other's pages.
+        this.cache = new PageCache(f, nodeSize, cacheBytes, wal != null, concurrent);
+
+        // Leaves are read ahead into the cache, so there is nowhere to put them without one
+        this.readAheadLeaves = cacheBytes >= nodeSize ? options.getReadAheadLeaves() : 0;
+    }
 
-        // Calculate the order
-        this.order = bsize / 12;
+    /**
+     * Returns the block number a packed non-leaf stores for a node address
+     * (0 for none). Nodes follow the header and each takes nodeSize bytes.
+     */
+    private int blockOf(long addr) {
+        return addr == 0 ? 0 : (int) ((addr - HEADER) / nodeSize + 1);
     }
 
-    public BTree(String filename) throws IOException {
-        // open an existing B+Tree
-        File bFile = new File(filename);
-        f = new RandomAccessFile(bFile, "rw");
+    /**
+     * Returns the address of the node a packed non-leaf refers to by block number
+     */
+    private long addressOf(int block) {
+        return block == 0 ? 0 : HEADER + (long) (block - 1) * nodeSize;
+    }
 
-        f.seek(0);
+    /**
+     * Puts a key into a node image, as a long in a tree of long keys and as
+     * an int otherwise
+     */
+    private void putKey(ByteBuffer page, long key) {
+        if (longKeys)
+            page.putLong(key);
+        else
+            page.putInt((int) key);
+    }
 
-        // Read in the root address, free address, and blockSize
-        this.root = f.readLong();
-        this.free = f.readLong();
-        this.blockSize = f.readInt();
+    /**
+     * Reads the node image at addr into this thread's page buffer
+     * 
+     * @param addr Address of the node
+     * @return The page buffer, positioned at the start of the image
+     * @throws IOException
+     */
+    private ByteBuffer readPage(long addr) throws IOException {
+        ByteBuffer page = pages.get();
+        cache.read(addr, page.array());
+        page.clear();
+        return page;
+    }
 
-        // Calculate the order from the block size
-        this.order = blockSize / 12;
+    /**
+     * Writes the encoded node image in a page buffer to addr
+     * 
+     * @param addr Address of the node
+     * @param page Buffer holding the image
+     * @throws IOException
+     */
+    private void writePage(long addr, ByteBuffer page) throws IOException {
+        cache.write(addr, page.array());
     }
 
     /**
-     * Returns a Stack containing the nodes between the root and
-     * the leaf containing the key
+     * Returns the path from the root down to the leaf that would contain
+     * the key. The path belongs to the calling thread and is overwritten by
+     * its next descent.
+     * 
+     * In concurrent mode each node is latched before it is read. A READ
+     * descent holds no latches once it returns. An INSERT or REMOVE descent
+     * returns holding write latches on the nodes (and the root) the change
+     * may modify; they are released when the change ends. B-link trees only
+     * descend this way to remove with the structure latch held, when no
+     * split is part way done; their inserts use findPathLinked.
      * 
-     * @param addr Starting Address (typically the root)
      * @param key  Key to look for
-     * @return Stack containing the releveant nodes
+     * @param mode How to latch the nodes on the way down
+     * @return Path containing the relevant nodes (empty if the tree is empty)
      * @throws IOException
      */
-    public Stack<BTreeNode> findPath(long addr, int key) throws IOException {
-        return findPathRec(addr, new Stack<BTreeNode>(), key);
+    private Path findPath(long key, Descent mode) throws IOException {
+        if (mode == Descent.READ && concurrent) {
+            Path path = findPathOptimistic(key);
+            if (path != null)
+                return path;
+
+            // Writers kept changing the nodes on the way, so wait for them with latches
+            if (linked) {
+                Lock structure = latch(structureLatch, false);
+                try {
+                    return findPathLinked(key);
+                } finally {
+                    structure.unlock();
+                }
+            }
+        }
+
+        Path path = paths.get();
+        path.size = 0;
+        boolean write = mode != Descent.READ;
+
+        path.hold(latch(rootLatch, write));
+        long addr = root;
+
+        while (addr != 0) {
+            path.hold(write ? writeLatch(addr) : readLatch(addr));
+            BTreeNode currNode = path.push(addr);
+
+            // Let go of the ancestors the change can no longer reach
+            if (mode == Descent.READ)
+                path.releaseAllBut(1);
+            else if (mode == Descent.INSERT && currNode.hasRoom())
+                path.releaseAllBut(1);
+            else if (mode == Descent.REMOVE && currNode.canLoseKey())
+                path.releaseAllBut(2); // the parent's separator may still change
+
+            // Leaf found
+            if (currNode.count < 0)
+                break;
+
+            int slot = currNode.childIndex(key);
+            path.slots[path.size - 1] = slot;
+            addr = currNode.children[slot];
+        }
+
+        if (mode == Descent.READ)
+            path.releaseAllBut(0);
+
+        return path;
     }
 
-    // Private recursive method for finding the path
-    private Stack<BTreeNode> findPathRec(long addr, Stack<BTreeNode> path, int key) throws IOException {
-        if (addr == 0)
-            return path;
+    /**
+     * Returns the path from the root down to the leaf that would contain
+     * the key without taking any node latches. The version of each node is
+     * read before the node and checked again after it, and the parent's
+     * version is checked once more after the child is read. If neither
+     * moved, the child was read whole and was still the parent's child, so
+     * the descent goes on. Otherwise it starts over from the root.
+     * 
+     * Reading a node still takes the monitor of its page cache stripe (or
+     * whatever the storage locks) for the length of the copy, but nothing is
+     * held from one node to the next. An acquire fence keeps the reads of
+     * the node from moving past the second read of the versions.
+     * 
+     * @param key Key to look for
+     * @return The path, or null if every try ran into a writer
+     * @throws IOException
+     */
+    private Path findPathOptimistic(long key) throws IOException {
+        Path path = paths.get();
+
+        tries: for (int t = 0; t < OPTIMISTIC_TRIES; t++) {
+            if (t > 0)
+                Thread.onSpinWait();
+
+            path.size = 0;
+
+            long parentVersion = rootVersion;
+            if ((parentVersion & 1) != 0)
+                continue;
+            long addr = root;
+            Latch parent = null; // the root address stands in for the root's parent
+
+            while (addr != 0) {
+                Latch latch = latchOf(addr);
+                long version = latch.version;
+                if ((version & 1) != 0)
+                    continue tries;
+
+                BTreeNode currNode = path.push(addr);
+
+                VarHandle.acquireFence();
+                if (latch.version != version)
+                    continue tries;
+                if ((parent == null ? rootVersion : parent.version) != parentVersion)
+                    continue tries;
+
+                // A split moved the key's part of the node to the right, and
+                // the right link is checked against this node like a child pointer
+                if (currNode.movedRight(key)) {
+                    path.size--;
+                    addr = currNode.right();
+                    parent = latch;
+                    parentVersion = version;
+                    continue;
+                }
+
+                // Leaf found
+                if (currNode.count < 0)
+                    break;
 
-        BTreeNode currNode = new BTreeNode(addr);
+                int slot = currNode.childIndex(key);
+                path.slots[path.size - 1] = slot;
+                addr = currNode.children[slot];
+                parent = latch;
+                parentVersion = version;
+            }
 
-        path.push(currNode);
+            if (addr == 0 && (parent == null ? rootVersion : parent.version) != parentVersion)
+                continue;
 
-        // Leaf found
-        if (currNode.count < 0)
             return path;
+        }
 
-        for (int i = 0; i < Math.abs(currNode.count); i++) {
-            if (key < currNode.keys[i]) {
-                findPathRec(currNode.children[i], path, key);
-                break;
-                // End has been reached, so return last child
+        return null;
+    }
+
+    /**
+     * Returns the path from the root down to the leaf that would contain
+     * the key in a B-link tree, holding one read latch at a time. A node that
+     * split after its parent was read has sent the upper part of its keys to
+     * its right sibling, so the descent follows right links until it reaches
+     * the node whose high key is above the key. Callers hold the structure
+     * latch so no node is freed on the way.
+     * 
+     * @param key Key to look for
+     * @return Path with the node taken at each level (empty if the tree is empty)
+     * @throws IOException
+     */
+    private Path findPathLinked(long key) throws IOException {
+        Path path = paths.get();
+        path.size = 0;
+        long addr = root;
+
+        while (addr != 0) {
+            Lock latch = readLatch(addr);
+            BTreeNode currNode;
+            try {
+                currNode = path.push(addr);
+            } finally {
+                if (latch != null)
+                    latch.unlock();
             }
-            if (i == Math.abs(currNode.count) - 1) {
-                findPathRec(currNode.children[i + 1], path, key);
-                break;
+
+            if (currNode.movedRight(key)) {
+                path.size--;
+                addr = currNode.right();
+                continue;
             }
+
+            // Leaf found
+            if (currNode.count < 0)
+                break;
+
+            int slot = currNode.childIndex(key);
+            path.slots[path.size - 1] = slot;
+            addr = currNode.children[slot];
         }
 
         return path;
     }
 
+    /**
+     * Write latches the node on top of the path and reads it again. If a
+     * split has moved the key to the right since the node was read, the
+     * latch moves along the level to the node the key belongs to. The latch
+     * taken is held by the path.
+     * 
+     * @param path Path whose top node is latched
+     * @param key  Key the change is for
+     * @return The latched node, on top of the path
+     * @throws IOException
+     */
+    private BTreeNode latchTop(Path path, long key) throws IOException {
+        BTreeNode node = path.peek();
+        long addr = node.address;
+
+        while (true) {
+            Latch latch = writeLatch(addr);
+            node.read(addr);
+
+            if (!node.movedRight(key)) {
+                path.hold(latch);
+                return node;
+            }
+
+            if (latch != null)
+                latch.unlockWrite();
+            addr = node.right();
+        }
+    }
+
     /**
      * Inserts a key into a leaf
      * 
@@ -201,7 +1438,7 @@ public class BTree {
      * @param key      Key/Value
      * @param addr     Address in the DB Table
      */
-    private void insertKeyLeaf(BTreeNode currNode, int key, long addr) {
+    private void insertKeyLeaf(BTreeNode currNode, long key, long addr) {
         for (int i = Math.abs(currNode.count); i > 0; i--) {
             if (currNode.keys[i - 1] > key) {
                 currNode.keys[i] = currNode.keys[i - 1];
@@ -227,7 +1464,7 @@ public class BTree {
      * @param key
      * @param addr
      */
-    private void insertKeyNonLeaf(BTreeNode node, int key, long addr) {
+    private void insertKeyNonLeaf(BTreeNode node, long key, long addr) {
         for (int i = (Math.abs(node.count)); i > 0; i--) {
             if (node.keys[i - 1] > key) {
                 node.keys[i] = node.keys[i - 1];
@@ -256,25 +1493,51 @@ public class BTree {
      *         false - the key is already in the tree
      * @throws IOException
      */
-    public boolean insert(int key, long addr) throws IOException {
+    public boolean insert(long key, long addr) throws IOException {
+        // A tree of int keys has 4 bytes for each key in the file
+        if (!longKeys && (int) key != key)
+            throw new IllegalArgumentException("key does not fit in a tree of int keys: " + key);
+
+        begin();
+        boolean ok = false;
+        boolean inserted;
+        try {
+            inserted = insertKey(key, addr);
+            ok = true;
+        } finally {
+            end(ok);
+        }
+
+        if (inserted && filter != null) {
+            addToFilter(key);
+            liveKeys.incrementAndGet();
+            maintainFilter();
+        }
+        return inserted;
+    }
+
+    private boolean insertKey(long key, long addr) throws IOException {
+        if (linked)
+            return insertLinked(key, addr);
+
         long loc = 0;
-        int val = 0;
+        long val = 0;
         boolean split = false;
 
+        Path path = findPath(key, Descent.INSERT);
+
         // Root is empty
-        if (root == 0) {
-            BTreeNode newNode = new BTreeNode();
+        if (path.isEmpty()) {
+            BTreeNode newNode = new BTreeNode(order);
             long newNodeAddr = malloc();
             newNode.keys[0] = key;
             newNode.children[0] = addr;
             newNode.count = -1;
-            root = newNodeAddr;
+            setRoot(newNodeAddr);
             newNode.writeNode(newNodeAddr);
             return true;
         }
 
-        Stack<BTreeNode> path = findPath(root, key);
-
         // Should be a leaf node
         BTreeNode currNode = path.pop();
 
@@ -289,7 +1552,7 @@ public class BTree {
             split = false;
         } else {
             // New Leaf Node for the split
-            BTreeNode newNode = new BTreeNode();
+            BTreeNode newNode = new BTreeNode(order);
 
             // Save Address prior to insertion. (The insertion causes an overflow that
             // overwrites existing values)
@@ -320,87 +1583,570 @@ public class BTree {
 
             loc = malloc();
 
-            // Set the next page reference
-            currNode.children[currNode.children.length - 2] = loc;
+            // Set the next page reference
+            currNode.children[currNode.children.length - 2] = loc;
+
+            // Write the node to the file
+            currNode.writeNode(currNode.address);
+
+            // Write the new node to file
+            newNode.writeNode(loc);
+
+            split = true;
+        }
+
+        // CLEANING UP PARENT NODES
+        // Go through the rest of the search path and handle any BTree property issues
+        while (!path.isEmpty() && split) {
+            currNode = path.pop();
+            if (currNode.hasRoom()) {
+                insertKeyNonLeaf(currNode, val, loc);
+                currNode.writeNode(currNode.address);
+                split = false;
+            } else {
+                BTreeNode newNode = new BTreeNode(innerOrder);
+
+                insertKeyNonLeaf(currNode, val, loc);
+
+                // New value is the middle value of the values in the node
+                long newVal = currNode.keys[currNode.keys.length / 2];
+
+                // Split the node
+                currNode.count--;
+
+                int j = 0;
+
+                // Split the node and copy the values into the new node
+                for (int i = (currNode.keys.length / 2) + 1; i < currNode.keys.length; i++) {
+                    newNode.keys[j] = currNode.keys[i];
+
+                    newNode.children[j] = currNode.children[i];
+
+                    newNode.count++; // non-leaf node, so increase count (+)
+                    currNode.count--; // non-leaf node, so decrease count (-)
+
+                    j++;
+
+                    if (i == currNode.keys.length - 1) {
+                        newNode.children[j] = currNode.children[i + 1];
+                    }
+                }
+
+                currNode.writeNode(currNode.address);
+
+                loc = malloc();
+
+                newNode.writeNode(loc);
+
+                val = newVal;
+
+                split = true;
+
+            }
+        }
+
+        // The root was split, so create a new root and
+        // "attach" both of the new nodes to this node
+        if (split) {
+            BTreeNode newRoot = new BTreeNode(innerOrder);
+
+            // Insert the split node
+            newRoot.keys[0] = val;
+            newRoot.children[1] = loc;
+            newRoot.children[0] = root;
+
+            newRoot.count++;
+
+            // Allocate space for the new node
+            long newRootAddr = malloc();
+            newRoot.writeNode(newRootAddr);
+            setRoot(newRootAddr);
+        }
+
+        return true;
+    }
+
+    /**
+     * Inserts a key into a B-link tree. The descent holds one read latch at
+     * a time, then the leaf is write latched. A split writes the new right
+     * node and the old node's new high key and right link with only those
+     * two latched, and lets go of them (unless they must wait for the log)
+     * before it latches the parent to add the separator. Until then the new
+     * node is found through the right link.
+     * 
+     * @param key
+     * @param addr
+     * @return true - insert was successful
+     *         false - the key is already in the tree
+     * @throws IOException
+     */
+    private boolean insertLinked(long key, long addr) throws IOException {
+        // Merges wait until the separators of every split are in place
+        Lock structure = latch(structureLatch, false);
+        try {
+            Path path = findPathLinked(key);
+
+            // Root is empty
+            while (path.isEmpty()) {
+                Lock latch = latch(rootLatch, true);
+                if (root == 0) {
+                    path.hold(latch);
+                    BTreeNode newNode = new BTreeNode(order);
+                    long newNodeAddr = malloc();
+                    path.hold(writeLatch(newNodeAddr));
+                    newNode.keys[0] = key;
+                    newNode.children[0] = addr;
+                    newNode.count = -1;
+                    newNode.writeNode(newNodeAddr);
+                    setRoot(newNodeAddr);
+                    return true;
+                }
+
+                // Another thread made the root first
+                if (latch != null)
+                    latch.unlock();
+                path = findPathLinked(key);
+            }
+
+            BTreeNode currNode = latchTop(path, key);
+
+            if (currNode.contains(key))
+                return false;
+
+            if (currNode.hasRoom()) {
+                insertKeyLeaf(currNode, key, addr);
+                currNode.writeNode(currNode.address);
+                return true;
+            }
+
+            splitLeaf(path, currNode, key, addr);
+
+            // Add the separator of each split to the level above
+            for (int level = 1;; level++) {
+                long val = currNode.high;
+                long loc = currNode.right();
+                long left = currNode.address;
+                path.pop();
+
+                if (wal == null)
+                    path.releaseAllBut(0);
+
+                if (path.isEmpty()) {
+                    if (growRoot(path, left, val, loc))
+                        return true;
+                    pushNodeAt(path, val, level);
+                }
+
+                currNode = latchTop(path, val);
+
+                // Another thread put a root above this split and took its separator
+                if (currNode.contains(val))
+                    return true;
+
+                if (currNode.hasRoom()) {
+                    insertKeyNonLeaf(currNode, val, loc);
+                    currNode.writeNode(currNode.address);
+                    return true;
+                }
+
+                splitNonLeaf(path, currNode, val, loc);
+            }
+        } finally {
+            if (structure != null)
+                structure.unlock();
+        }
+    }
+
+    /**
+     * Splits a full leaf of a B-link tree while inserting a key. The upper
+     * half moves to a new leaf on the right, which takes over the old high
+     * key and right link. The old leaf's high key becomes the first key of
+     * the new leaf. The new leaf is latched (by the path) before the old one
+     * links to it.
+     * 
+     * @param path     Path holding the latch of the leaf
+     * @param currNode Leaf to split
+     * @param key      Key/Value
+     * @param addr     Address in the DB Table
+     * @throws IOException
+     */
+    private void splitLeaf(Path path, BTreeNode currNode, long key, long addr) throws IOException {
+        BTreeNode newNode = new BTreeNode(order);
+
+        // Save the next leaf before the insertion overflows into it
+        newNode.children[order - 1] = currNode.children[order - 1];
+        newNode.high = currNode.high;
+
+        insertKeyLeaf(currNode, key, addr);
+
+        int newNodeCount = (int) Math.floor((double) currNode.count / 2);
+        currNode.count = (currNode.count - newNodeCount);
+
+        int j = 0;
+        for (int i = (Math.abs(currNode.count)); i < currNode.keys.length; i++) {
+            newNode.keys[j] = currNode.keys[i];
+            newNode.children[j] = currNode.children[i];
+            j++;
+        }
+        newNode.count = newNodeCount;
+
+        long loc = malloc();
+        path.hold(writeLatch(loc));
+        newNode.writeNode(loc);
+
+        currNode.children[order - 1] = loc;
+        currNode.high = newNode.keys[0];
+        currNode.writeNode(currNode.address);
+    }
+
+    /**
+     * Splits a full non-leaf of a B-link tree while inserting a separator.
+     * The middle key becomes the old node's high key and the keys above it
+     * move to a new node on the right, which takes over the old high key and
+     * right link.
+     * 
+     * @param path     Path holding the latch of the node
+     * @param currNode Node to split
+     * @param key      Separator to insert
+     * @param addr     Child to the right of the separator
+     * @throws IOException
+     */
+    private void splitNonLeaf(Path path, BTreeNode currNode, long key, long addr) throws IOException {
+        BTreeNode newNode = new BTreeNode(innerOrder);
+
+        insertKeyNonLeaf(currNode, key, addr);
+
+        // New value is the middle value of the values in the node
+        long newVal = currNode.keys[currNode.keys.length / 2];
+        currNode.count--;
+
+        int j = 0;
+        for (int i = (currNode.keys.length / 2) + 1; i < currNode.keys.length; i++) {
+            newNode.keys[j] = currNode.keys[i];
+            newNode.children[j] = currNode.children[i];
+            newNode.count++;
+            currNode.count--;
+            j++;
+
+            if (i == currNode.keys.length - 1)
+                newNode.children[j] = currNode.children[i + 1];
+        }
+
+        newNode.high = currNode.high;
+        newNode.link = currNode.link;
+
+        long loc = malloc();
+        path.hold(writeLatch(loc));
+        newNode.writeNode(loc);
+
+        currNode.high = newVal;
+        currNode.link = loc;
+        currNode.writeNode(currNode.address);
+    }
+
+    /**
+     * Puts a new root above a B-link root that split
+     * 
+     * @param path Path that holds the latches of the change
+     * @param left The node that split
+     * @param val  Separator between it and the new node
+     * @param loc  The new node
+     * @return false if the tree already has a level above the node that split
+     * @throws IOException
+     */
+    private boolean growRoot(Path path, long left, long val, long loc) throws IOException {
+        Lock latch = latch(rootLatch, true);
+        if (root != left) {
+            if (latch != null)
+                latch.unlock();
+            return false;
+        }
+        path.hold(latch);
+
+        BTreeNode newRoot = new BTreeNode(innerOrder);
+        newRoot.keys[0] = val;
+        newRoot.children[0] = left;
+        newRoot.children[1] = loc;
+        newRoot.count = 1;
+
+        long newRootAddr = malloc();
+        path.hold(writeLatch(newRootAddr));
+        newRoot.writeNode(newRootAddr);
+        setRoot(newRootAddr);
+        return true;
+    }
+
+    /**
+     * Pushes a node of the given level (leaves are level 0) from which the
+     * key can be reached by following right links. Used when a split reaches
+     * a node that was the root during the descent but has since been given a
+     * parent by another thread. If the thread that split the root has not
+     * put a new root above it yet, this puts one there instead of waiting.
+     * 
+     * @param path  Path to push the node onto
+     * @param key   Key the change is for
+     * @param level Level of the node
+     * @throws IOException
+     */
+    private void pushNodeAt(Path path, long key, int level) throws IOException {
+        while (true) {
+            long addr = root;
+
+            // Count the levels below the root
+            int height = 0;
+            for (BTreeNode node = readLatched(addr); node.count >= 0; node = readLatched(node.children[0]))
+                height++;
+
+            if (height >= level) {
+                for (int h = height; h > level; h--) {
+                    BTreeNode node = readLatched(addr);
+                    while (node.movedRight(key))
+                        node = readLatched(node.right());
+                    addr = node.children[node.childIndex(key)];
+                }
 
-            // Write the node to the file
-            currNode.writeNode(currNode.address);
+                path.push(addr);
+                return;
+            }
 
-            // Write the new node to file
-            newNode.writeNode(loc);
+            growSplitRoot(path, addr);
+        }
+    }
 
-            split = true;
+    /**
+     * Puts a new root above a B-link root that has split but has no parent
+     * yet, with the root's high key as the separator between it and its
+     * right sibling. The thread that split the root finds the separator in
+     * place when it gets there. Does nothing if the root has changed.
+     * 
+     * @param path Path that holds the latches of the change
+     * @param addr The root that was read
+     * @throws IOException
+     */
+    private void growSplitRoot(Path path, long addr) throws IOException {
+        // Latched in the same order as a split that grows the root: the node, then the root
+        Latch latch = writeLatch(addr);
+        Lock rootLock = latch(rootLatch, true);
+        BTreeNode node = new BTreeNode(addr);
+        if (root != addr || node.right() == 0) {
+            if (rootLock != null)
+                rootLock.unlock();
+            if (latch != null)
+                latch.unlockWrite();
+            return;
         }
+        path.hold(latch);
+        path.hold(rootLock);
+
+        BTreeNode newRoot = new BTreeNode(innerOrder);
+        newRoot.keys[0] = node.high;
+        newRoot.children[0] = addr;
+        newRoot.children[1] = node.right();
+        newRoot.count = 1;
+
+        long newRootAddr = malloc();
+        path.hold(writeLatch(newRootAddr));
+        newRoot.writeNode(newRootAddr);
+        setRoot(newRootAddr);
+    }
 
-        // CLEANING UP PARENT NODES
-        // Go through the rest of the search path and handle any BTree property issues
-        while (!path.empty() && split) {
-            currNode = path.pop();
-            if (currNode.hasRoom()) {
-                insertKeyNonLeaf(currNode, val, loc);
-                currNode.writeNode(currNode.address);
-                split = false;
-            } else {
-                BTreeNode newNode = new BTreeNode();
+    /**
+     * Builds the tree bottom-up from keys that are already sorted.
+     * Uses the default fill factor.
+     * 
+     * @param entries Key/address pairs in strictly ascending key order
+     * @return Number of keys loaded
+     * @throws IOException
+     */
+    public int bulkLoad(Iterator<? extends Map.Entry<? extends Number, Long>> entries) throws IOException {
+        return bulkLoad(entries, DEFAULT_FILL_FACTOR);
+    }
 
-                insertKeyNonLeaf(currNode, val, loc);
+    /**
+     * Builds the tree bottom-up from keys that are already sorted.
+     * Leaves are filled to the fill factor and written one after another as
+     * the entries arrive, then each level of non-leaves is built in one pass
+     * over the level below it. Only the first key and address of every node
+     * on the level being built is kept in memory. Keys may be Integers or
+     * Longs, but a tree of int keys only takes keys in the int range.
+     * 
+     * @param entries    Key/address pairs in strictly ascending key order
+     * @param fillFactor Fraction of each node to fill (0, 1]. Nodes are never
+     *                   filled below the minimum a B+Tree node needs.
+     * @return Number of keys loaded
+     * @throws IOException
+     */
+    public int bulkLoad(Iterator<? extends Map.Entry<? extends Number, Long>> entries, double fillFactor) throws IOException {
+        if (!(fillFactor > 0 && fillFactor <= 1))
+            throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+
+        // Keep other threads out of the tree until the new root is in place
+        Path path = paths.get();
+        path.hold(latch(rootLatch, true));
+        if (root != 0) {
+            path.releaseAllBut(0);
+            throw new IllegalStateException("bulk load needs an empty tree");
+        }
 
-                // New value is the middle value of the values in the node
-                int newVal = currNode.keys[currNode.keys.length / 2];
+        begin();
+        boolean ok = false;
+        int loaded;
+        try {
+            loaded = load(entries, fillFactor);
+            ok = true;
+        } finally {
+            end(ok);
+        }
 
-                // Split the node
-                currNode.count--;
+        if (filter != null) {
+            liveKeys.addAndGet(loaded);
+            maintainFilter();
+        }
+        return loaded;
+    }
 
-                int j = 0;
+    private int load(Iterator<? extends Map.Entry<? extends Number, Long>> entries, double fillFactor) throws IOException {
+        int minLeafKeys = Math.max(1, (int) Math.ceil((double) order / 2) - 1);
+        int leafKeys = Math.max(minLeafKeys, Math.min(order - 1, (int) Math.round(fillFactor * (order - 1))));
+
+        // First key and address of every node on the level being built
+        long levelKeys[] = new long[16];
+        long levelAddrs[] = new long[16];
+        int levelSize = 0;
+
+        // The last full leaf is held back so it can share keys with the final leaf
+        BTreeNode prev = null;
+        BTreeNode curr = null;
+        int loaded = 0;
+
+        while (entries.hasNext()) {
+            Map.Entry<? extends Number, Long> entry = entries.next();
+            long key = entry.getKey().longValue();
+
+            if (!longKeys && (int) key != key)
+                throw new IllegalArgumentException("key does not fit in a tree of int keys: " + key);
+            if (curr != null && key <= curr.keys[Math.abs(curr.count) - 1])
+                throw new IllegalArgumentException("bulk load keys must be strictly ascending: " + key);
+
+            // No other thread can see the keys yet, so they go in the filter as they come
+            addToFilter(key);
+
+            if (curr == null || Math.abs(curr.count) == leafKeys) {
+                // Commit what is written so far rather than log the whole load at once
+                if (wal != null) {
+                    writeHeader();
+                    wal.commitAndContinue();
+                }
 
-                // Split the node and copy the values into the new node
-                for (int i = (currNode.keys.length / 2) + 1; i < currNode.keys.length; i++) {
-                    newNode.keys[j] = currNode.keys[i];
+                BTreeNode next = new BTreeNode(order);
+                next.address = malloc();
+                next.writeNode(next.address); // reserve the space
 
-                    newNode.children[j] = currNode.children[i];
+                if (curr != null) {
+                    curr.children[order - 1] = next.address;
+                    curr.high = key;
+                }
 
-                    newNode.count++; // non-leaf node, so increase count (+)
-                    currNode.count--; // non-leaf node, so decrease count (-)
+                if (prev != null)
+                    prev.writeNode(prev.address);
 
-                    j++;
+                prev = curr;
+                curr = next;
 
-                    if (i == currNode.keys.length - 1) {
-                        newNode.children[j] = currNode.children[i + 1];
-                    }
+                if (levelSize == levelKeys.length) {
+                    levelKeys = Arrays.copyOf(levelKeys, levelSize * 2);
+                    levelAddrs = Arrays.copyOf(levelAddrs, levelSize * 2);
                 }
+                levelKeys[levelSize] = key;
+                levelAddrs[levelSize] = curr.address;
+                levelSize++;
+            }
 
-                currNode.writeNode(currNode.address);
-
-                loc = malloc();
+            int i = Math.abs(curr.count);
+            curr.keys[i] = key;
+            curr.children[i] = entry.getValue();
+            curr.count--;
+            loaded++;
+        }
 
-                newNode.writeNode(loc);
+        // Nothing to load
+        if (curr == null)
+            return 0;
 
-                val = newVal;
+        // Fix up the last leaf if it ended up with too few keys
+        if (prev != null && Math.abs(curr.count) < minLeafKeys) {
+            int total = Math.abs(prev.count) + Math.abs(curr.count);
 
-                split = true;
+            if (total <= order - 1) {
+                // Both fit in one leaf, so fold the last leaf into the one before it
+                for (int i = 0; i < Math.abs(curr.count); i++)
+                    insertKeyLeaf(prev, curr.keys[i], curr.children[i]);
 
+                prev.children[order - 1] = 0;
+                free(curr.address);
+                curr = null;
+                levelSize--;
+            } else {
+                // Shift keys from the end of prev to the front of curr
+                while (Math.abs(curr.count) < minLeafKeys) {
+                    int last = Math.abs(prev.count) - 1;
+                    insertKeyLeaf(curr, prev.keys[last], prev.children[last]);
+                    prev.count++;
+                }
+                levelKeys[levelSize - 1] = curr.keys[0];
+                prev.high = curr.keys[0];
             }
         }
 
-        // The root was split, so create a new root and
-        // "attach" both of the new nodes to this node
-        if (split) {
-            BTreeNode newRoot = new BTreeNode();
-
-            // Insert the split node
-            newRoot.keys[0] = val;
-            newRoot.children[1] = loc;
-            newRoot.children[0] = root;
+        if (prev != null)
+            prev.writeNode(prev.address);
+        if (curr != null)
+            curr.writeNode(curr.address);
+
+        // Build the non-leaf levels until one node is left, which is the root
+        int minChildren = (int) Math.ceil((double) innerOrder / 2);
+        int fanout = Math.max(minChildren, Math.min(innerOrder, (int) Math.round(fillFactor * innerOrder)));
+
+        while (levelSize > 1) {
+            // Split the level evenly between the parents
+            int parents = (levelSize + fanout - 1) / fanout;
+            parents = Math.max(parents, (levelSize + innerOrder - 1) / innerOrder);
+            parents = Math.min(parents, Math.max(1, levelSize / minChildren));
+
+            int nextSize = 0;
+            int child = 0;
+            BTreeNode left = null; // written once the parent to its right is known
+            for (int p = 0; p < parents; p++) {
+                int numChildren = levelSize / parents + (p < levelSize % parents ? 1 : 0);
+
+                BTreeNode parent = new BTreeNode(innerOrder);
+                parent.children[0] = levelAddrs[child];
+                for (int i = 1; i < numChildren; i++) {
+                    parent.keys[i - 1] = levelKeys[child + i];
+                    parent.children[i] = levelAddrs[child + i];
+                }
+                parent.count = numChildren - 1;
+                parent.address = malloc();
 
-            newRoot.count++;
+                if (left != null) {
+                    left.high = levelKeys[child];
+                    left.link = parent.address;
+                    left.writeNode(left.address);
+                }
+                left = parent;
 
-            // Allocate space for the new node
-            long newRootAddr = malloc();
-            newRoot.writeNode(newRootAddr);
-            root = newRootAddr;
+                // The parent's entry reuses the slot of its first child
+                levelKeys[nextSize] = levelKeys[child];
+                levelAddrs[nextSize] = parent.address;
+                nextSize++;
+                child += numChildren;
+            }
+            left.writeNode(left.address);
+            levelSize = nextSize;
         }
 
-        return true;
+        setRoot(levelAddrs[0]);
+        return loaded;
     }
 
     /**
@@ -414,35 +2160,35 @@ public class BTree {
 
         BTreeNode freeNode;
 
-        if (free == 0) {
-            address = f.length();
-        } else {
-            freeNode = new BTreeNode(free);
-            address = free;
-            free = freeNode.children[0];
+        // B-link splits allocate while they hold node latches, so rather
+        // than wait for the free list they take space at the end of the file
+        boolean listed = true;
+        if (linked)
+            listed = tryLockFree();
+        else
+            lockFree();
+        boolean reused = false;
+        try {
+            if (listed && free != 0) {
+                freeNode = new BTreeNode(free);
+                address = free;
+                free = freeNode.children[0];
+                reused = true;
+            } else {
+                // Nodes that are still only in the cache count toward the length,
+                // as do nodes handed out but not written yet
+                long length = cache.length();
+                address = fileEnd.updateAndGet(end -> Math.max(length, end) + nodeSize) - nodeSize;
+            }
+        } finally {
+            if (listed)
+                unlockFree(reused);
         }
 
         return address;
 
     }
 
-    /**
-     * Returns the index in node where the address is located
-     * 
-     * @param node
-     * @param address
-     * @return
-     */
-    public int getIndexOfAddress(BTreeNode node, long address) {
-        // Find the index where the child is stored (always a non-leaf)
-        for (int i = 0; i < node.count + 1; i++) {
-            if (node.children[i] == address) {
-                return i;
-            }
-        }
-        return -1;
-    }
-
     /**
      * Removes a key from the BTree if its exists and
      * returns the address of the row
@@ -451,11 +2197,65 @@ public class BTree {
      * @return Address of the row if found, else returns 0
      * @throws IOException
      */
-    public long remove(int key) throws IOException {
+    public long remove(long key) throws IOException {
+        begin();
+        boolean ok = false;
+        long removed;
+        try {
+            removed = removeKey(key);
+            ok = true;
+        } finally {
+            end(ok);
+        }
+
+        // The key stays in the filter until it is rebuilt
+        if (removed != 0 && filter != null) {
+            liveKeys.decrementAndGet();
+            filterRemoves.incrementAndGet();
+            maintainFilter();
+        }
+        return removed;
+    }
+
+    private long removeKey(long key) throws IOException {
         boolean tooSmall = false;
         long returnAddr = 0;
 
-        Stack<BTreeNode> path = findPath(root, key);
+        if (linked && concurrent) {
+            Lock structure = latch(structureLatch, false);
+            try {
+                Path path = findPathLinked(key);
+                if (path.isEmpty())
+                    return returnAddr;
+
+                BTreeNode currNode = latchTop(path, key);
+                int i = Arrays.binarySearch(currNode.keys, 0, Math.abs(currNode.count), key);
+                if (i < 0)
+                    return returnAddr;
+
+                // Most removes only change a leaf, so they run alongside inserts
+                if (currNode.canLoseKey()) {
+                    returnAddr = currNode.children[i];
+                    for (int j = i + 1; j < Math.abs(currNode.count); j++) {
+                        currNode.keys[j - 1] = currNode.keys[j];
+                        currNode.children[j - 1] = currNode.children[j];
+                    }
+                    currNode.count++;
+                    currNode.writeNode(currNode.address);
+                    return returnAddr;
+                }
+
+                path.releaseAllBut(0);
+            } finally {
+                structure.unlock();
+            }
+
+            // The leaf would be too small, so merge or borrow with no split part way done.
+            // The structure latch is released with the other latches when the change ends.
+            structureLatch.writeLock().lock();
+        }
+
+        Path path = findPath(key, Descent.REMOVE);
 
         // The tree is empty
         if(path.isEmpty())
@@ -467,42 +2267,38 @@ public class BTree {
         if (currNode.count == -1 && currNode.keys[0] == key && currNode.address == this.root) {
             returnAddr = currNode.children[0];
             free(currNode.address);
-            this.root = 0;
+            setRoot(0);
             return returnAddr;
         }
 
         // Find and remove the key from the leaf node
-        for (int i = 0; i < Math.abs(currNode.count); i++) {
-            // Key was found, so remove it
-            if (currNode.keys[i] == key) {
-                returnAddr = currNode.children[i];
-                int j = i + 1;
-                // Shift the values over (remove from leaf)
-                while (j < Math.abs(currNode.count)) {
-                    currNode.keys[j - 1] = currNode.keys[j];
-                    currNode.children[j - 1] = currNode.children[j];
-                    j++;
-                }
-                currNode.count++;
-                currNode.writeNode(currNode.address);
-
-                // The leaf node is now too small
-                if (!currNode.minKeys()) {
-                    tooSmall = true;
-                }
-                break;
-            } else if (i == Math.abs(currNode.count) - 1) {
-                return returnAddr; // never found key (returns 0)
-            }
+        int i = Arrays.binarySearch(currNode.keys, 0, Math.abs(currNode.count), key);
+        if (i < 0)
+            return returnAddr; // never found key (returns 0)
+
+        returnAddr = currNode.children[i];
+        int j = i + 1;
+        // Shift the values over (remove from leaf)
+        while (j < Math.abs(currNode.count)) {
+            currNode.keys[j - 1] = currNode.keys[j];
+            currNode.children[j - 1] = currNode.children[j];
+            j++;
+        }
+        currNode.count++;
+        currNode.writeNode(currNode.address);
 
+        // The leaf node is now too small
+        if (!currNode.minKeys()) {
+            tooSmall = true;
         }
 
         // Update the key of the parent of the node that had a value remove
         // If the leftmost value in a leaf was removed, then the parent key
-        // needs to be change.
-        if (!path.isEmpty()) {
+        // needs to be change. (Not in a B-link tree, where the separator
+        // must stay equal to the high key of the leaf on its left.)
+        if (!path.isEmpty() && !linked) {
             BTreeNode parentNode = path.peek();
-            int childIndex = getIndexOfAddress(path.peek(), currNode.address);
+            int childIndex = path.slot();
             if (childIndex - 1 >= 0) {
                 parentNode.keys[childIndex - 1] = currNode.keys[0];
                 parentNode.writeNode(parentNode.address);
@@ -511,20 +2307,20 @@ public class BTree {
 
         while (!path.isEmpty() && tooSmall) {
             BTreeNode child = currNode; // save the currNode
-            currNode = path.pop(); // get the parent node so we can do operations here
 
-            // Find the index where the child is stored (always a non-leaf)
-            int childIndex = getIndexOfAddress(currNode, child.address);
+            // Index where the child is stored (always a non-leaf)
+            int childIndex = path.slot();
+            currNode = path.pop(); // get the parent node so we can do operations here
           
             // BORROWING
             // CHECK LEFT (< 0 then LEAF, ELSE NONLEAF)
 
             // A left node exists
             if (childIndex - 1 >= 0) {
-                BTreeNode neighbor = new BTreeNode(currNode.children[childIndex - 1]);
+                BTreeNode neighbor = writeLatched(currNode.children[childIndex - 1]);
 
                 // Since a left node exists, see if it can be borrowed from.
-                if (Math.abs(neighbor.count) - 1 >= Math.ceil((double) order / 2) - 1) {
+                if (Math.abs(neighbor.count) - 1 >= Math.ceil((double) neighbor.keys.length / 2) - 1) {
                     if (child.count < 0) {
                         // Move value from left neighbor of child to child
                         // Rightmost value of neighbor
@@ -532,18 +2328,20 @@ public class BTree {
                         borrow(neighbor, child, Math.abs(neighbor.count) - 1);
 
                         currNode.keys[childIndex - 1] = child.keys[0];
+                        neighbor.high = child.keys[0];
 
                     } else {
                         // Move value from left neighbor of child to child
                         // For NON LEAF
                         // Rotation
-                        int newParentKey = neighbor.keys[neighbor.count - 1];
+                        long newParentKey = neighbor.keys[neighbor.count - 1];
 
                         borrow(neighbor, child, Math.abs(neighbor.count) - 1);
 
                         // "Rotate the values"
                         child.keys[0] = currNode.keys[childIndex - 1];
                         currNode.keys[childIndex - 1] = newParentKey;
+                        neighbor.high = newParentKey;
 
                     }
 
@@ -557,10 +2355,10 @@ public class BTree {
             }
 
             if (childIndex + 1 <= currNode.count && tooSmall) {
-                BTreeNode neighbor = new BTreeNode(currNode.children[childIndex + 1]);
+                BTreeNode neighbor = writeLatched(currNode.children[childIndex + 1]);
 
                 // Since a right node exists, see if it can be borrowed from.
-                if (Math.abs(neighbor.count) - 1 >= Math.ceil((double) order / 2) - 1) {
+                if (Math.abs(neighbor.count) - 1 >= Math.ceil((double) neighbor.keys.length / 2) - 1) {
                     if (child.count < 0) {
                         // Move value from right neighbor of child to child
                         // leftmost value of neighbor
@@ -568,17 +2366,19 @@ public class BTree {
                         borrow(neighbor, child, 0);
 
                         currNode.keys[childIndex] = neighbor.keys[0];
+                        child.high = neighbor.keys[0];
 
                     } else {
                         // Move value/node from right neighbor of child to child
                         // leftmost value of neighbor
                         // NON-LEAF
-                        int newParentKey = neighbor.keys[0];
+                        long newParentKey = neighbor.keys[0];
                         borrow(neighbor, child, 0);
 
                         // "Rotate the values"
                         child.keys[child.count - 1] = currNode.keys[childIndex];
                         currNode.keys[childIndex] = newParentKey;
+                        child.high = newParentKey;
 
                     }
 
@@ -605,8 +2405,8 @@ public class BTree {
 
                 if (childIndex - 1 >= 0) {
                     // Combine child into its left neighbor
-                    neighbor = new BTreeNode(currNode.children[childIndex - 1]);
-                    combine(neighbor, child);
+                    neighbor = writeLatched(currNode.children[childIndex - 1]);
+                    combine(neighbor, child, currNode.keys[childIndex - 1]);
 
                     // Adjust the link between the leaf nodes
                     if (neighbor.count < 0)
@@ -622,8 +2422,8 @@ public class BTree {
 
                 } else {
                     // Combine right neighbor into child
-                    neighbor = new BTreeNode(currNode.children[childIndex + 1]);
-                    combine(child, neighbor);
+                    neighbor = writeLatched(currNode.children[childIndex + 1]);
+                    combine(child, neighbor, currNode.keys[childIndex]);
 
                     // Adjust the link between the leaf nodes
                     if (child.count < 0)
@@ -652,7 +2452,7 @@ public class BTree {
         // Then the root is too empty (root needs between 1 and M-1 keys)
         if (tooSmall) {
             long oldRoot = this.root;
-            this.root = new BTreeNode(this.root).children[0];
+            setRoot(new BTreeNode(this.root).children[0]);
 
             // free the old root
             free(oldRoot);
@@ -671,7 +2471,7 @@ public class BTree {
     private void borrow(BTreeNode from, BTreeNode to, int borrowIndex) {
         // Borrowing from leafs, else nonleafs.
         if (to.count < 0) {
-            int borrowKey = from.keys[borrowIndex];
+            long borrowKey = from.keys[borrowIndex];
             long borrowAddr = from.children[borrowIndex];
 
             int i = borrowIndex + 1;
@@ -731,11 +2531,13 @@ public class BTree {
     /**
      * Merges/combines two nodes
      * 
-     * @param to   Values/address will be inserted into this node
-     * @param from Values/addresses will be copied from this node
+     * @param to        Values/address will be inserted into this node
+     * @param from      Values/addresses will be copied from this node (the
+     *                  right neighbor of to)
+     * @param separator Key between the two nodes in their parent
      * @throws IOException
      */
-    public void combine(BTreeNode to, BTreeNode from) throws IOException {
+    public void combine(BTreeNode to, BTreeNode from, long separator) throws IOException {
         // Combine two leaf nodes
         if (from.count < 0) {
             for (int i = 0; i < Math.abs(from.count); i++) {
@@ -746,11 +2548,12 @@ public class BTree {
             // Combine two non-leaf nodes
             // Get the left most address of the node and insert it into the
             // node
-            BTreeNode fromLeftChild = new BTreeNode(from.children[0]);
+            BTreeNode fromLeftChild = readLatched(from.children[0]);
             to.children[to.count + 1] = from.children[0];
 
-            // Find the new left most value and insert it into the node
-            to.keys[to.count] = getLeftMostValue(fromLeftChild);
+            // Find the new left most value and insert it into the node.
+            // A B-link tree uses the separator, the high key of the child on its left.
+            to.keys[to.count] = linked ? separator : getLeftMostValue(fromLeftChild);
             to.count++;
 
             // Go through the nodes and combine the rest of the values
@@ -765,6 +2568,10 @@ public class BTree {
             from.count = 0;
         }
 
+        // The merged node ends where the right one did
+        to.high = from.high;
+        to.link = from.link;
+
         to.writeNode(to.address);
         from.writeNode(from.address);
 
@@ -777,11 +2584,11 @@ public class BTree {
      * @return leftmost value
      * @throws IOException
      */
-    public int getLeftMostValue(BTreeNode node) throws IOException {
+    public long getLeftMostValue(BTreeNode node) throws IOException {
         if (node.count < 0) {
             return node.keys[0];
         } else {
-            return getLeftMostValue(new BTreeNode(node.children[0]));
+            return getLeftMostValue(readLatched(node.children[0]));
         }
     }
 
@@ -792,7 +2599,7 @@ public class BTree {
      * @param key
      * @throws IOException
      */
-    public void removeFromNonLeaf(BTreeNode node, int key) throws IOException {
+    public void removeFromNonLeaf(BTreeNode node, long key) throws IOException {
         // Search for the key. If it is found, remove it.a
         // Else, return 0 (not found)
         for (int i = 0; i < Math.abs(node.count) + 1; i++) {
@@ -834,54 +2641,221 @@ public class BTree {
 
     /**
      * Frees a node from the BTree and adds
-     * it to the free list
+     * it to the free list. In concurrent mode the node is added when the
+     * change ends, so it can't be reused while this thread still holds its latch.
      * 
      * @param addr Address of the node to free
      * @throws IOException
      */
     private void free(long addr) throws IOException {
-        BTreeNode toFree = new BTreeNode(addr);
-        toFree.children[0] = free;
-        free = addr;
+        if (concurrent)
+            paths.get().freed.add(addr);
+        else
+            addToFreeList(addr);
+    }
 
-        toFree.writeNode(addr);
+    private void addToFreeList(long addr) throws IOException {
+        lockFree();
+        try {
+            BTreeNode toFree = new BTreeNode(addr);
+            toFree.children[0] = free;
+            free = addr;
+
+            toFree.writeNode(addr);
+
+            // Nothing can reach the node any more, so a thread that reuses it
+            // gets a new latch. One still holding the old latch is done with
+            // the node, and a lookup that read it sees its parent's version move.
+            if (concurrent)
+                latches.remove(addr);
+        } finally {
+            unlockFree(true);
+        }
     }
 
     /**
      * Finds the address of the key, if it exists.
      * 
-     * @param k
+     * @param key
      * @return Address of the key, if it exists
      *         Else, returns 0.
      * @throws IOException
      */
-    public long search(int k) throws IOException {
-        return search(root, k);
-    }
-
-    private long search(long addr, int key) throws IOException {
-        if (addr == 0)
+    public long search(long key) throws IOException {
+        // A key the filter has never seen is not in the tree
+        BloomFilter current = filter;
+        if (current != null && !current.mightContain(key))
             return 0;
 
-        Stack<BTreeNode> path = findPath(addr, key);
+        Path path = findPath(key, Descent.READ);
 
         // The path is empty
-        if (path.size() == 0)
+        if (path.isEmpty())
             return 0;
 
         // If the tree contains the key, it would be in this node
         BTreeNode currNode = path.pop();
 
         // Search the keys in the node for a match
-        for (int i = 0; i < Math.abs(currNode.count); i++) {
-            if (currNode.keys[i] == key)
-                return currNode.children[i];
-        }
+        int i = Arrays.binarySearch(currNode.keys, 0, Math.abs(currNode.count), key);
+        if (i >= 0)
+            return currNode.children[i];
 
         // Key was not found
         return 0;
     }
 
+    /**
+     * Finds the addresses of many keys with one descent of the tree.
+     * The probe keys are sorted and split between the children of each node,
+     * so every node on the way is read once no matter how many keys lead
+     * through it.
+     * 
+     * @param keys Keys to look for (any order, duplicates allowed)
+     * @return Address of each key at the same position as in keys,
+     *         0 where the key is not in the tree
+     * @throws IOException
+     */
+    public long[] searchBatch(int keys[]) throws IOException {
+        long results[] = new long[keys.length];
+
+        if (keys.length == 0)
+            return results;
+
+        // Pack each key with its position so one primitive sort orders both.
+        // Keys the filter has never seen are left out.
+        BloomFilter current = filter;
+        long packed[] = new long[keys.length];
+        int numProbes = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (current == null || current.mightContain(keys[i]))
+                packed[numProbes++] = ((long) keys[i] << 32) | i;
+        }
+        if (numProbes == 0)
+            return results;
+        Arrays.sort(packed, 0, numProbes);
+
+        long probes[] = new long[numProbes];
+        for (int p = 0; p < numProbes; p++)
+            probes[p] = packed[p] >> 32;
+
+        long found[] = searchSorted(probes, numProbes);
+        for (int p = 0; p < numProbes; p++)
+            results[(int) packed[p]] = found[p];
+        return results;
+    }
+
+    /**
+     * Finds the addresses of many long keys with one descent of the tree,
+     * like searchBatch(int[]).
+     * 
+     * @param keys Keys to look for (any order, duplicates allowed)
+     * @return Address of each key at the same position as in keys,
+     *         0 where the key is not in the tree
+     * @throws IOException
+     */
+    public long[] searchBatch(long keys[]) throws IOException {
+        long results[] = new long[keys.length];
+
+        // A long key leaves no room for its position, so the keys are sorted
+        // on their own and each finds its address by a binary search after
+        BloomFilter current = filter;
+        long probes[] = new long[keys.length];
+        int numProbes = 0;
+        for (long key : keys) {
+            if (current == null || current.mightContain(key))
+                probes[numProbes++] = key;
+        }
+        if (numProbes == 0)
+            return results;
+        Arrays.sort(probes, 0, numProbes);
+
+        long found[] = searchSorted(probes, numProbes);
+        for (int i = 0; i < keys.length; i++) {
+            int p = Arrays.binarySearch(probes, 0, numProbes, keys[i]);
+            if (p >= 0)
+                results[i] = found[p];
+        }
+        return results;
+    }
+
+    /**
+     * Returns the address of each of the sorted probe keys (0 where a key is
+     * not in the tree)
+     */
+    private long[] searchSorted(long probes[], int numProbes) throws IOException {
+        long found[] = new long[numProbes];
+
+        // B-link trees read one node at a time, other trees hold the path from the root
+        Lock latch = linked ? latch(structureLatch, false) : latch(rootLatch, false);
+        try {
+            if (root != 0)
+                searchBatch(root, probes, 0, numProbes, found);
+        } finally {
+            if (latch != null)
+                latch.unlock();
+        }
+        return found;
+    }
+
+    // Private recursive method that resolves probes[lo..hi) below addr.
+    // The node stays read latched while its children are searched, except in
+    // a B-link tree, where splits are found through the right links instead.
+    private void searchBatch(long addr, long probes[], int lo, int hi, long found[]) throws IOException {
+        if (linked) {
+            searchBatch(readLatched(addr), probes, lo, hi, found);
+            return;
+        }
+
+        Lock latch = readLatch(addr);
+        try {
+            searchBatch(new BTreeNode(addr), probes, lo, hi, found);
+        } finally {
+            if (latch != null)
+                latch.unlock();
+        }
+    }
+
+    private void searchBatch(BTreeNode currNode, long probes[], int lo, int hi, long found[]) throws IOException {
+        // Probes a split has moved to the right sibling are looked up there
+        if (currNode.movedRight(probes[hi - 1])) {
+            int split = hi;
+            while (split > lo && currNode.movedRight(probes[split - 1]))
+                split--;
+
+            searchBatch(currNode.right(), probes, split, hi, found);
+            hi = split;
+        }
+
+        if (currNode.count < 0) {
+            // Leaf: the probes and the keys are both sorted, so walk them together
+            int i = 0;
+            for (int p = lo; p < hi; p++) {
+                while (i < Math.abs(currNode.count) && currNode.keys[i] < probes[p])
+                    i++;
+                if (i < Math.abs(currNode.count) && currNode.keys[i] == probes[p])
+                    found[p] = currNode.children[i];
+            }
+            return;
+        }
+
+        // Non-leaf: hand each child the run of probes that falls below its separator
+        int start = lo;
+        for (int i = 0; i <= currNode.count && start < hi; i++) {
+            int end = start;
+            if (i == currNode.count) {
+                end = hi;
+            } else {
+                while (end < hi && probes[end] < currNode.keys[i])
+                    end++;
+            }
+
+            if (end > start)
+                searchBatch(currNode.children[i], probes, start, end, found);
+            start = end;
+        }
+    }
+
     /**
      * Returns a linkedlist containing addresses of values within the specified
      * range
@@ -893,40 +2867,150 @@ public class BTree {
      *         Empty list if nothing is found
      * @throws IOException
      */
-    public LinkedList<Long> rangeSearch(int low, int high) throws IOException {
+    public LinkedList<Long> rangeSearch(long low, long high) throws IOException {
         // PRE: low <= high
         LinkedList<Long> addresses = new LinkedList<Long>();
 
-        Stack<BTreeNode> path = findPath(root, low);
+        try (Cursor cursor = rangeCursor(low, high)) {
+            while (cursor.next())
+                addresses.add(cursor.address());
+        }
 
-        if (path.isEmpty())
-            return addresses;
+        return addresses;
+    }
 
-        // If the tree contains the key, it would be in this node
-        BTreeNode currNode = path.pop();
+    /**
+     * Adds the addresses of values within the specified range (low to high
+     * inclusive) to a primitive list, so no address is boxed
+     * 
+     * @param low
+     * @param high
+     * @param addresses List the addresses are appended to
+     * @return Number of addresses added
+     * @throws IOException
+     */
+    public int rangeSearch(long low, long high, LongList addresses) throws IOException {
+        // PRE: low <= high
+        int found = 0;
+
+        try (Cursor cursor = rangeCursor(low, high)) {
+            while (cursor.next()) {
+                addresses.add(cursor.address());
+                found++;
+            }
+        }
 
-        int i = 0;
+        return found;
+    }
+
+    /**
+     * Puts the addresses of values within the specified range (low to high
+     * inclusive) into a caller supplied buffer. The scan stops early once the
+     * buffer has no room left, so a full buffer may mean more addresses remain.
+     * 
+     * @param low
+     * @param high
+     * @param addresses Buffer the addresses are put into
+     * @return Number of addresses put into the buffer
+     * @throws IOException
+     */
+    public int rangeSearch(long low, long high, LongBuffer addresses) throws IOException {
+        // PRE: low <= high
+        int found = 0;
+
+        try (Cursor cursor = rangeCursor(low, high)) {
+            while (addresses.hasRemaining() && cursor.next()) {
+                addresses.put(cursor.address());
+                found++;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Opens a cursor over the keys from low to high inclusive. Keys and
+     * addresses are read lazily as the cursor advances.
+     * 
+     * @param low
+     * @param high
+     * @return A cursor positioned before the first key in the range
+     * @throws IOException
+     */
+    public Cursor rangeCursor(long low, long high) throws IOException {
+        // PRE: low <= high
+        return new Cursor(low, high);
+    }
+
+    /**
+     * Returns a spliterator over the keys from low to high inclusive, in key
+     * order. It splits the range between the subtrees of the tree, so a
+     * parallel stream made from it (StreamSupport.stream(..., true)) scans
+     * the subtrees on the threads of a ForkJoinPool. Outside of concurrent
+     * mode the tree should not be changed until the scan is done.
+     * 
+     * @param low
+     * @param high
+     * @param reader Makes the element for each key and address
+     * @return The spliterator
+     */
+    public <T> Spliterator<T> rangeSpliterator(long low, long high, EntryReader<T> reader) {
+        // PRE: low <= high
+        return new RangeSpliterator<>(low, high, Long.MAX_VALUE, reader);
+    }
 
-        while (currNode.keys[i] <= high) {
-            // Key is within range
-            if (currNode.keys[i] >= low)
-                addresses.add(currNode.children[i]);
+    /**
+     * Returns a separator that splits the keys from low to high between
+     * subtrees: the middle one of the separators in the range in the first
+     * node on the way down that has any. Returns low if the range is within
+     * one leaf.
+     */
+    private long splitKey(long low, long high) throws IOException {
+        // B-link trees read one node at a time, other trees latch each child before letting go of its parent
+        Lock top = linked ? latch(structureLatch, false) : latch(rootLatch, false);
+        Lock held = null;
+        try {
+            long addr = root;
+            while (addr != 0) {
+                BTreeNode currNode;
+                if (linked) {
+                    currNode = readLatched(addr);
+                } else {
+                    Lock latch = readLatch(addr);
+                    if (held != null)
+                        held.unlock();
+                    held = latch;
+                    currNode = new BTreeNode(addr);
+                }
 
-            i++;
+                if (currNode.movedRight(low)) {
+                    addr = currNode.right();
+                    continue;
+                }
 
-            // End of list has been reached, so add the last child
-            // to the LinkedList
-            if (i == Math.abs(currNode.count)) {
-                if (currNode.children[currNode.children.length - 2] == 0)
+                // Leaves hold no separators
+                if (currNode.count < 0)
                     break;
 
-                // Go to the next leaf
-                currNode = new BTreeNode(currNode.children[currNode.children.length - 2]);
-                i = 0; // reset index
+                // keys[first] to keys[last - 1] are above low and at most high
+                int first = currNode.childIndex(low);
+                int last = currNode.childIndex(high);
+                if (last > first)
+                    return currNode.keys[(first + last) / 2];
+
+                // The range goes on past the high key into the right sibling
+                if (currNode.movedRight(high))
+                    return currNode.high;
+
+                addr = currNode.children[first];
             }
+            return low;
+        } finally {
+            if (held != null)
+                held.unlock();
+            if (top != null)
+                top.unlock();
         }
-
-        return addresses;
     }
 
     public void print() throws IOException {
@@ -990,12 +3074,70 @@ public class BTree {
 
     }
 
+    /**
+     * Returns the block size the tree was made with
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Returns how many node reads found the node in the page cache
+     */
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * Returns how many node reads had to go to the file (reads made with the
+     * cache off are not counted)
+     */
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * Returns the latency and throughput of the commits made to this tree,
+     * or null when changes are not logged
+     */
+    public CommitStats getCommitStats() {
+        return wal == null ? null : wal.getStats();
+    }
+
     public void close() throws IOException {
         // close the B+tree. The tree should not be accessed after close is called
-        f.seek(0);
-        f.writeLong(this.root);
-        f.writeLong(this.free);
+        if (rebuilder != null) {
+            try {
+                rebuilder.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        cache.stopReadAhead();
+        cache.flush();
+
+        // Latch the root and the free list so writeHeader writes both
+        paths.get().hold(latch(rootLatch, true));
+        lockFree();
+
+        begin();
+        writeHeader();
+        end(true);
 
         f.close();
+
+        // Keep the filter so the next open doesn't have to build it
+        BloomFilter current = filter;
+        if (current != null) {
+            Storage s = Storage.open(filterFile, new StorageOptions());
+            try {
+                s.writeLong(0, liveKeys.get());
+                current.write(s, 8);
+                s.force();
+            } finally {
+                s.close();
+            }
+        }
     }
 }
@@ -1,4 +1,6 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 import java.util.*;
 public class BTreeTest {
     
@@ -105,12 +107,16 @@ public class BTreeTest {
     }
     
     public void test4(String s, int nums[], int blockSize, int max) throws IOException {
+        test4(s, nums, blockSize, max, new StorageOptions());
+    }
+
+    public void test4(String s, int nums[], int blockSize, int max, StorageOptions options) throws IOException {
         //this test inserts and range search with different block sizes
         System.out.println("Start test 4"+s);
         int i;
         int sFieldLens[] = {10, 15, 25};
         int len = nums.length;
-        DBTable t4 = new DBTable("t4"+s, sFieldLens, blockSize);
+        DBTable t4 = new DBTable("t4"+s, sFieldLens, blockSize, options);
         char sFields[][] = new char[3][];
         for ( i = 0; i < len; i++) {
             sFields[0] = Arrays.copyOf((new Integer(nums[i])).toString().toCharArray(), 10);
@@ -144,12 +150,16 @@ public class BTreeTest {
     }
     
     public void test5(String s, int nums[], int blockSize) throws IOException {
+        test5(s, nums, blockSize, new StorageOptions());
+    }
+
+    public void test5(String s, int nums[], int blockSize, StorageOptions options) throws IOException {
         //this test insert, removes, reuse and print with different block sizes
         System.out.println("Start test 5"+s);
         int i;
         int sFieldLens[] = {10, 15, 25};
         int len = nums.length;
-        DBTable t5 = new DBTable("t5"+s, sFieldLens, blockSize);
+        DBTable t5 = new DBTable("t5"+s, sFieldLens, blockSize, options);
         char sFields[][] = new char[3][];
         for ( i = 0; i < len; i++) {
             sFields[0] = Arrays.copyOf((new Integer(nums[i])).toString().toCharArray(), 10);
@@ -168,13 +178,17 @@ public class BTreeTest {
 
         t5.close();
  
-        t5 = new DBTable("t5"+s);
+        t5 = new DBTable("t5"+s, options);
         System.out.println("Print after reuse in test 5"+s);
         t5.print();
         t5.close();
     }
     
     public void test6(String s, int blockSize) throws IOException {
+        test6(s, blockSize, new StorageOptions());
+    }
+
+    public void test6(String s, int blockSize, StorageOptions options) throws IOException {
     //insert 2000 random numbers, remove them all, inserts them again in reverse order and remove all but 12 of them.
         System.out.println("Start test 6"+s);
         int i;
@@ -184,7 +198,7 @@ public class BTreeTest {
             nums[i] = r.nextInt()%100000;
         }
         int sFieldLens[] = {15, 15, 20, 30};
-        DBTable t6 = new DBTable("t6"+s, sFieldLens, blockSize);
+        DBTable t6 = new DBTable("t6"+s, sFieldLens, blockSize, options);
         char sFields[][] = new char[4][];
         for ( i = 0; i < 2000; i++) {
             sFields[0] = Arrays.copyOf((new Integer(nums[i])).toString().toCharArray(), 15);
@@ -213,12 +227,1023 @@ public class BTreeTest {
         }
         System.out.println("Test 6"+s+" after second removes");
         t6.close();
-        t6 = new DBTable("t6"+s);
+        t6 = new DBTable("t6"+s, options);
         t6.print();
         t6.close();
 
     }
  
+    public void test7(String s, int blockSize, double fillFactor) throws IOException {
+        test7(s, blockSize, fillFactor, new StorageOptions());
+    }
+
+    public void test7(String s, int blockSize, double fillFactor, StorageOptions options) throws IOException {
+        //bulk loads sorted rows, then searches, inserts and removes around them
+        System.out.println("Start test 7"+s);
+        int i;
+        int sFieldLens[] = {10, 15};
+        LinkedList<Map.Entry<Integer, char[][]>> source = new LinkedList<>();
+        for (i = 1; i <= 500; i++) {
+            char sFields[][] = new char[2][];
+            sFields[0] = Arrays.copyOf(String.valueOf(2*i).toCharArray(), 10);
+            sFields[1] = Arrays.copyOf(String.valueOf(2*i).toCharArray(), 15);
+            source.add(new AbstractMap.SimpleEntry<>(2*i, sFields));
+        }
+        DBTable t7 = new DBTable("t7"+s, sFieldLens, blockSize, options);
+        System.out.println("Bulk loaded "+t7.bulkInsert(source.iterator(), fillFactor)+" rows in test 7"+s);
+        char sFields[][] = new char[2][];
+        for (i = 1; i <= 1001; i = i+100) {
+            sFields[0] = Arrays.copyOf(String.valueOf(i).toCharArray(), 10);
+            sFields[1] = Arrays.copyOf(String.valueOf(i).toCharArray(), 15);
+            t7.insert(i, sFields);
+        }
+        for (i = 4; i <= 1000; i = i+4) {
+            t7.remove(i);
+        }
+        t7.close();
+        t7 = new DBTable("t7"+s, options);
+        System.out.println("Range search 90 to 130 in test 7"+s);
+        LinkedList<LinkedList<String>> s7a = t7.rangeSearch(90,130);
+        for (int j = 0; j < s7a.size(); j++) {
+            LinkedList<String> s7 = s7a.get(j);
+            System.out.println(s7.get(0)+" "+s7.get(1)+" "+s7.get(2));
+        }
+        try (DBTable.RowCursor rows = t7.rangeCursor(90, 130)) {
+            System.out.println("Streamed "+rows.stream().count()+" rows from 90 to 130 in test 7"+s);
+        }
+        System.out.println("Search for 998, 101, 104, 102 in test 7"+s);
+        int probes[] = {998, 101, 104, 102};
+        for (int k : probes) {
+            LinkedList<String> s7 = t7.search(k);
+            if (s7.size() == 0) System.out.println(k+" not found");
+            else System.out.println(k+" "+s7.get(0)+" "+s7.get(1));
+        }
+        System.out.println("Batch search for the same keys in test 7"+s);
+        LinkedList<LinkedList<String>> s7b = t7.searchBatch(probes);
+        for (int j = 0; j < probes.length; j++) {
+            LinkedList<String> s7 = s7b.get(j);
+            if (s7.size() == 0) System.out.println(probes[j]+" not found");
+            else System.out.println(probes[j]+" "+s7.get(0)+" "+s7.get(1));
+        }
+        t7.close();
+    }
+ 
+    public void test8(String s, int blockSize) throws IOException {
+        //several threads insert and remove their own keys in a concurrent table
+        System.out.println("Start test 8"+s);
+        int sFieldLens[] = {10};
+        DBTable t8 = new DBTable("t8"+s, sFieldLens, blockSize, new StorageOptions().concurrent(true));
+        int numThreads = 4;
+        Thread threads[] = new Thread[numThreads];
+        IOException failures[] = new IOException[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int first = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = first; i <= 800; i = i+numThreads) {
+                        char sFields[][] = new char[1][];
+                        sFields[0] = Arrays.copyOf(String.valueOf(i).toCharArray(), 10);
+                        t8.insert(i, sFields);
+                    }
+                    for (int i = first; i <= 800; i = i+numThreads) {
+                        if (i % 3 == 0) t8.remove(i);
+                        else t8.search(i);
+                    }
+                } catch (IOException e) {
+                    failures[first] = e;
+                }
+            });
+            threads[t].start();
+        }
+        for (int t = 0; t < numThreads; t++) {
+            try {
+                threads[t].join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (failures[t] != null) throw failures[t];
+        }
+        System.out.println("Rows left in test 8"+s+": "+t8.rangeSearch(0, 800).size());
+        System.out.println("Range search 90 to 100 in test 8"+s);
+        LinkedList<LinkedList<String>> s8 = t8.rangeSearch(90,100);
+        for (int j = 0; j < s8.size(); j++) {
+            System.out.println(s8.get(j).get(0)+" "+s8.get(j).get(1));
+        }
+        t8.close();
+    }
+ 
+    public void test9(String s, ShardedDBTable t9) throws IOException {
+        //rows spread over shards come back from a range search in key order
+        System.out.println("Start test 9"+s);
+        for (int i = 0; i <= 400; i++) {
+            char sFields[][] = new char[1][];
+            sFields[0] = Arrays.copyOf(String.valueOf(i).toCharArray(), 10);
+            t9.insert(i, sFields);
+        }
+        for (int i = 0; i <= 400; i = i+5) t9.remove(i);
+        System.out.println("Rows left in test 9"+s+": "+t9.rangeSearch(0, 400).size());
+        System.out.println("Range search 95 to 105 in test 9"+s);
+        LinkedList<LinkedList<String>> s9 = t9.rangeSearch(95,105);
+        for (int j = 0; j < s9.size(); j++) {
+            System.out.println(s9.get(j).get(0)+" "+s9.get(j).get(1));
+        }
+        t9.close();
+    }
+ 
+    public void test10(String s, int pageBytes) throws IOException {
+        //rows in slotted pages keep their keys while they grow and shrink
+        System.out.println("Start test 10"+s);
+        int fieldLens[] = {60};
+        DBTable t10 = new DBTable("t10"+s, fieldLens, 72, new StorageOptions().rowPageBytes(pageBytes));
+        for (int i = 0; i <= 400; i++) {
+            char sFields[][] = new char[1][];
+            sFields[0] = Arrays.copyOf(String.valueOf(i).toCharArray(), 60);
+            t10.insert(i, sFields);
+        }
+        for (int i = 0; i <= 400; i = i+3) {
+            char sFields[][] = new char[1][];
+            String grown = "";
+            for (int j = 0; j < i % 12; j++) grown += i;
+            sFields[0] = Arrays.copyOf(grown.toCharArray(), 60);
+            t10.update(i, sFields);
+        }
+        for (int i = 0; i <= 400; i = i+5) t10.remove(i);
+        t10.close();
+        t10 = new DBTable("t10"+s);
+        System.out.println("Rows left in test 10"+s+": "+t10.rangeSearch(0, 400).size());
+        System.out.println("Range search 95 to 105 in test 10"+s);
+        LinkedList<LinkedList<String>> s10 = t10.rangeSearch(95,105);
+        for (int j = 0; j < s10.size(); j++) {
+            System.out.println(s10.get(j).get(0)+" "+s10.get(j).get(1));
+        }
+        t10.close();
+    }
+
+    public void test11(String s, int bsize) throws IOException {
+        //rows found by their other fields through field indexes, also after reopening
+        System.out.println("Start test 11"+s);
+        int fieldLens[] = {10, 10};
+        DBTable t11 = new DBTable("t11"+s, fieldLens, bsize);
+        t11.createIndex(1);
+        for (int i = 0; i <= 300; i++) {
+            char sFields[][] = new char[2][];
+            sFields[0] = Arrays.copyOf(String.valueOf(i).toCharArray(), 10);
+            sFields[1] = Arrays.copyOf(("name"+(i % 7)).toCharArray(), 10);
+            t11.insert(i, sFields);
+        }
+        for (int i = 0; i <= 300; i = i+4) t11.remove(i);
+        t11.createIndex(0);
+        t11.close();
+        t11 = new DBTable("t11"+s);
+        System.out.println("Rows with name3 in test 11"+s+": "+t11.searchByField(1, "name3").size());
+        System.out.println("Field range 150 to 155 in test 11"+s);
+        LinkedList<LinkedList<String>> s11 = t11.rangeByField(0, "150", "155");
+        for (int j = 0; j < s11.size(); j++) {
+            System.out.println(s11.get(j).get(0)+" "+s11.get(j).get(1)+" "+s11.get(j).get(2));
+        }
+        t11.close();
+
+        //a bulk load stopped by a key out of order leaves no entry for the row it left out
+        DBTable t11g = new DBTable("t11"+s+"g", fieldLens, bsize);
+        t11g.createIndex(0);
+        List<Map.Entry<Integer, char[][]>> source = new ArrayList<>();
+        String names[] = {"one", "five", "ghost"};
+        int keys[] = {1, 5, 3};
+        for (int j = 0; j < 3; j++) {
+            char sFields[][] = new char[2][];
+            sFields[0] = Arrays.copyOf(names[j].toCharArray(), 10);
+            sFields[1] = Arrays.copyOf("x".toCharArray(), 10);
+            source.add(new AbstractMap.SimpleEntry<>(keys[j], sFields));
+        }
+        try {
+            t11g.bulkInsert(source.iterator());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Bulk load stopped at a key out of order in test 11"+s);
+        }
+        System.out.println("Rows with five and ghost in test 11"+s+": "+t11g.searchByField(0, "five").size()+" "+t11g.searchByField(0, "ghost").size());
+        t11g.close();
+    }
+ 
+    public void test12(String s, RowEncoding encoding, String bad) throws IOException {
+        //rows kept in another encoding under the log, where a row the encoding can't store fails only its own change
+        System.out.println("Start test 12"+s);
+        int fieldLens[] = {10};
+        StorageOptions options = new StorageOptions().rowEncoding(encoding).writeAheadLog(true);
+        DBTable t12 = new DBTable("t12"+s, fieldLens, 72, options);
+        LinkedList<Map.Entry<Integer, char[][]>> source = new LinkedList<>();
+        for (int i = 1; i <= 200; i++) {
+            char sFields[][] = new char[1][];
+            sFields[0] = Arrays.copyOf((i == 150 ? bad : "\u00e9"+i).toCharArray(), 10);
+            source.add(new AbstractMap.SimpleEntry<>(i, sFields));
+        }
+        try {
+            System.out.println("Bulk loaded "+t12.bulkInsert(source.iterator())+" rows in test 12"+s);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Bulk load stopped at a bad row in test 12"+s);
+        }
+        char sFields[][] = new char[1][];
+        sFields[0] = Arrays.copyOf(bad.toCharArray(), 10);
+        try {
+            System.out.println("Insert of 300 in test 12"+s+": "+t12.insert(300, sFields));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Insert of a bad row failed in test 12"+s);
+        }
+        try {
+            System.out.println("Update of 100 in test 12"+s+": "+t12.update(100, sFields));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Update to a bad row failed in test 12"+s);
+        }
+        for (int i = 150; i <= 160; i++) {
+            sFields[0] = Arrays.copyOf(("\u00fc"+i).toCharArray(), 10);
+            t12.insert(i, sFields);
+        }
+        t12.close();
+        t12 = new DBTable("t12"+s);
+        System.out.println("Rows left in test 12"+s+": "+t12.rangeSearch(0, 300).size());
+        System.out.println("Range search 98 to 102 and 147 to 152 in test 12"+s);
+        LinkedList<LinkedList<String>> s12 = t12.rangeSearch(98, 102);
+        s12.addAll(t12.rangeSearch(147, 152));
+        for (int j = 0; j < s12.size(); j++) {
+            String field = s12.get(j).get(1);
+            System.out.println(s12.get(j).get(0)+" "+(int) field.charAt(0)+" "+field.substring(1)+" "+field.length());
+        }
+        t12.close();
+    }
+ 
+    public void test13(String s, int blockSize) throws IOException {
+        //threads insert neighbouring keys into a concurrent table so leaves and non-leaves split under contention,
+        //then the B-link tree is used without concurrent mode and opened in it again
+        System.out.println("Start test 13"+s);
+        int sFieldLens[] = {10};
+        DBTable t13 = new DBTable("t13"+s, sFieldLens, blockSize, new StorageOptions().concurrent(true));
+        int numThreads = 8;
+        Thread threads[] = new Thread[numThreads];
+        IOException failures[] = new IOException[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int first = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = first; i < 4000; i = i+numThreads) {
+                        char sFields[][] = new char[1][];
+                        sFields[0] = Arrays.copyOf(String.valueOf(i).toCharArray(), 10);
+                        if (!t13.insert(i, sFields)) throw new IOException("insert of "+i+" failed");
+                        if (t13.search(i).size() == 0) throw new IOException(i+" not found after its insert");
+                    }
+                } catch (IOException e) {
+                    failures[first] = e;
+                }
+            });
+            threads[t].start();
+        }
+        for (int t = 0; t < numThreads; t++) {
+            try {
+                threads[t].join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (failures[t] != null) throw failures[t];
+        }
+        int inOrder = 0;
+        LinkedList<LinkedList<String>> all = t13.rangeSearch(0, 3999);
+        for (int j = 0; j < all.size(); j++) {
+            if (all.get(j).get(0).equals(String.valueOf(j))) inOrder++;
+        }
+        System.out.println("Rows in key order in test 13"+s+": "+inOrder+" of "+all.size());
+        t13.close();
+        System.out.println("B-link tree after concurrent use in test 13"+s+": "+isLinked("t13"+s+".tree"));
+
+        DBTable t13r = new DBTable("t13"+s);
+        for (int i = 4000; i < 5000; i++) {
+            char sFields[][] = new char[1][];
+            sFields[0] = Arrays.copyOf(String.valueOf(i).toCharArray(), 10);
+            t13r.insert(i, sFields);
+        }
+        for (int i = 0; i < 5000; i = i+3) t13r.remove(i);
+        t13r.close();
+        System.out.println("B-link tree after use without concurrent mode in test 13"+s+": "+isLinked("t13"+s+".tree"));
+
+        t13r = new DBTable("t13"+s, new StorageOptions().concurrent(true));
+        System.out.println("Rows left in test 13"+s+": "+t13r.rangeSearch(0, 5000).size());
+        System.out.println("Range search 3995 to 4005 in test 13"+s);
+        LinkedList<LinkedList<String>> s13 = t13r.rangeSearch(3995, 4005);
+        for (int j = 0; j < s13.size(); j++) {
+            System.out.println(s13.get(j).get(0)+" "+s13.get(j).get(1));
+        }
+        t13r.close();
+
+        //the B-link layout leaves 64 byte blocks with room for too few keys
+        try {
+            new DBTable("t13"+s+"o", sFieldLens, 64, new StorageOptions().concurrent(true)).close();
+            System.out.println("Concurrent table of 64 byte blocks made in test 13"+s);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Concurrent table of 64 byte blocks refused in test 13"+s+": "+e.getMessage());
+        }
+    }
+
+    public void test14(String s, int bsize) throws IOException {
+        //a logged table with field indexes stops without being closed, and opening it again
+        //recovers the rows and the indexes from the log
+        System.out.println("Start test 14"+s);
+        int fieldLens[] = {10, 10};
+        DBTable t14 = new DBTable("t14"+s, fieldLens, bsize, new StorageOptions().writeAheadLog(true));
+        for (int i = 0; i <= 200; i++) {
+            char sFields[][] = new char[2][];
+            sFields[0] = Arrays.copyOf(String.valueOf(i).toCharArray(), 10);
+            sFields[1] = Arrays.copyOf(("name"+(i % 7)).toCharArray(), 10);
+            t14.insert(i, sFields);
+        }
+        t14.createIndex(1);
+        for (int i = 0; i <= 200; i = i+4) t14.remove(i);
+        //t14 is left open, as if the program had stopped here
+        DBTable t14r = new DBTable("t14"+s);
+        System.out.println("Rows left in test 14"+s+": "+t14r.rangeSearch(0, 200).size());
+        System.out.println("Rows with name3 in test 14"+s+": "+t14r.searchByField(1, "name3").size());
+        t14r.close();
+    }
+
+    public void test15(String s, int bsize) throws IOException {
+        //range scans that read leaves ahead find the same rows as scans that don't
+        System.out.println("Start test 15"+s);
+        int fieldLens[] = {10};
+        DBTable t15 = new DBTable("t15"+s, fieldLens, bsize);
+        for (int i = 0; i < 3000; i++) {
+            int key = (i * 7919) % 3000;
+            char sFields[][] = new char[1][];
+            sFields[0] = Arrays.copyOf(String.valueOf(key).toCharArray(), 10);
+            t15.insert(key, sFields);
+        }
+        for (int i = 0; i < 3000; i = i+5) t15.remove(i);
+        t15.close();
+
+        t15 = new DBTable("t15"+s);
+        LinkedList<LinkedList<String>> off = t15.rangeSearch(0, 2999);
+        LinkedList<LinkedList<String>> offPart = t15.rangeSearch(1234, 2345);
+        t15.close();
+
+        StorageOptions readAhead[] = {
+            new StorageOptions().readAheadLeaves(4),
+            new StorageOptions().readAheadLeaves(4).cacheBytes(8L*bsize),
+            new StorageOptions().readAheadLeaves(4).concurrent(true)
+        };
+        for (int j = 0; j < readAhead.length; j++) {
+            t15 = new DBTable("t15"+s, readAhead[j]);
+            boolean same = off.equals(t15.rangeSearch(0, 2999)) && offPart.equals(t15.rangeSearch(1234, 2345));
+            System.out.println("Same rows with read-ahead "+j+" in test 15"+s+": "+same+" ("+off.size()+" rows)");
+            //close while leaves are still being read ahead
+            DBTable.RowCursor c = t15.rangeCursor(0, 2999);
+            c.next();
+            c.close();
+            t15.close();
+        }
+    }
+
+    public void test16(String s, int blockSize) throws IOException {
+        //a BTree of long keys keeps keys from all over the long range in order
+        System.out.println("Start test 16"+s);
+        long edges[] = {Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE+1, Long.MAX_VALUE-1,
+            Integer.MIN_VALUE-1L, Integer.MAX_VALUE+1L, -1, 0};
+        BTree t16 = new BTree("t16"+s+".tree", blockSize, new StorageOptions().longKeys(true));
+        for (int j = 0; j < edges.length; j++) t16.insert(edges[j], j+1);
+        int inserted = edges.length;
+        for (long i = 1; i <= 2000; i++) {
+            if (t16.insert(i*0x9E3779B97F4A7C15L, i+100)) inserted++;
+        }
+        for (long i = 1; i <= 2000; i = i+4) t16.remove(i*0x9E3779B97F4A7C15L);
+        t16.close();
+
+        t16 = new BTree("t16"+s+".tree");
+        int found = 0;
+        for (int j = 0; j < edges.length; j++) {
+            if (t16.search(edges[j]) == j+1) found++;
+        }
+        System.out.println("Edge keys found in test 16"+s+": "+found+" of "+edges.length);
+        int count = 0;
+        boolean inOrder = true;
+        long last = 0;
+        try (BTree.Cursor c = t16.rangeCursor(Long.MIN_VALUE, Long.MAX_VALUE)) {
+            while (c.next()) {
+                if (count > 0 && c.key() <= last) inOrder = false;
+                last = c.key();
+                count++;
+            }
+        }
+        System.out.println("Keys in order in test 16"+s+": "+inOrder+" ("+count+" of "+(inserted-500)+")");
+        System.out.println("Keys above the int range in test 16"+s+": "+t16.rangeSearch(Integer.MAX_VALUE+1L, Long.MAX_VALUE).size());
+        t16.close();
+
+        //bulk loaded long keys
+        List<Map.Entry<Long, Long>> source = new ArrayList<>();
+        for (long i = 0; i < 1000; i++) source.add(new AbstractMap.SimpleEntry<>(Long.MIN_VALUE+(i<<54), i+1));
+        BTree t16b = new BTree("t16"+s+"b.tree", blockSize, new StorageOptions().longKeys(true));
+        System.out.println("Bulk loaded "+t16b.bulkLoad(source.iterator())+" long keys in test 16"+s);
+        System.out.println("Last bulk loaded key found in test 16"+s+": "+(t16b.search(Long.MIN_VALUE+(999L<<54)) == 1000));
+        t16b.close();
+
+        //a tree of int keys has no room for a long key
+        BTree t16i = new BTree("t16"+s+"i.tree", blockSize);
+        try {
+            t16i.insert(Integer.MAX_VALUE+1L, 1);
+            System.out.println("Long key taken by a tree of int keys in test 16"+s);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Long key refused by a tree of int keys in test 16"+s);
+        }
+        t16i.close();
+
+        //long keys leave 72 byte blocks with room for too few keys
+        try {
+            new BTree("t16"+s+"o.tree", 72, new StorageOptions().longKeys(true)).close();
+            System.out.println("Tree of long keys in 72 byte blocks made in test 16"+s);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Tree of long keys in 72 byte blocks refused in test 16"+s+": "+e.getMessage());
+        }
+    }
+
+    public void test17() throws IOException {
+        //the key codecs keep the order of the keys they encode
+        System.out.println("Start test 17");
+        KeyCodec<long[]> parts = KeyCodec.composite(16, 16, 32);
+        long firsts[] = {-32768, -1, 0, 1, 32767};
+        long seconds[] = {-32768, 0, 32767};
+        long thirds[] = {Integer.MIN_VALUE, -1, 0, Integer.MAX_VALUE};
+        boolean inOrder = true;
+        boolean decoded = true;
+        long last = 0;
+        int count = 0;
+        for (long a : firsts) {
+            for (long b : seconds) {
+                for (long c : thirds) {
+                    long key[] = {a, b, c};
+                    long encoded = parts.encode(key);
+                    if (count > 0 && encoded <= last) inOrder = false;
+                    if (!Arrays.equals(key, parts.decode(encoded))) decoded = false;
+                    last = encoded;
+                    count++;
+                }
+            }
+        }
+        System.out.println("Composite keys in order: "+inOrder+", decoded: "+decoded+" ("+count+" keys)");
+        try {
+            parts.encode(new long[] {32768, 0, 0});
+            System.out.println("Composite part too wide taken");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Composite part too wide refused");
+        }
+
+        byte bytes[][] = {{}, {0}, {0, 0}, {0, 1}, {1}, {1, 0}, {0x7f}, {(byte) 0x80}, {(byte) 0x80, 0},
+            {(byte) 0xff}, {(byte) 0xff, 0}, {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff},
+            {'a', 'b', 'c'}, {'a', 'b'}, {'b'}};
+        inOrder = true;
+        decoded = true;
+        for (byte x[] : bytes) {
+            if (!Arrays.equals(x, KeyCodec.BYTES.decode(KeyCodec.BYTES.encode(x)))) decoded = false;
+            for (byte y[] : bytes) {
+                int order = Long.compare(KeyCodec.BYTES.encode(x), KeyCodec.BYTES.encode(y));
+                if (Integer.signum(order) != Integer.signum(Arrays.compareUnsigned(x, y))) inOrder = false;
+            }
+        }
+        System.out.println("Byte keys in order: "+inOrder+", decoded: "+decoded+" ("+bytes.length+" keys)");
+        try {
+            KeyCodec.BYTES.encode(new byte[KeyCodec.MAX_BYTES+1]);
+            System.out.println("Byte key too long taken");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Byte key too long refused");
+        }
+    }
+
+    public void test18(String s, int bsize) throws IOException {
+        //a table of long keys stores its keys in full and keeps them when opened again
+        System.out.println("Start test 18"+s);
+        int fieldLens[] = {24};
+        DBTable t18 = new DBTable("t18"+s, fieldLens, bsize, new StorageOptions().longKeys(true));
+        long keys[] = {Long.MIN_VALUE, -5000000000L, -1, 0, 1, 5000000000L, Long.MAX_VALUE};
+        for (long key : keys) {
+            char sFields[][] = new char[1][];
+            sFields[0] = Arrays.copyOf(("k"+key).toCharArray(), 24);
+            t18.insert(key, sFields);
+        }
+        for (long i = 0; i < 500; i++) {
+            char sFields[][] = new char[1][];
+            sFields[0] = Arrays.copyOf(("n"+i).toCharArray(), 24);
+            t18.insert((i-250)*100000000000L+7, sFields);
+        }
+        char sFields[][] = new char[1][];
+        sFields[0] = Arrays.copyOf("updated".toCharArray(), 24);
+        t18.update(Long.MAX_VALUE, sFields);
+        t18.remove(-1);
+        System.out.println("Field index made in test 18"+s+": "+t18.createIndex(0));
+        t18.close();
+
+        t18 = new DBTable("t18"+s);
+        System.out.println("Rows in test 18"+s+": "+t18.rangeSearch(Long.MIN_VALUE, Long.MAX_VALUE).size());
+        LinkedList<LinkedList<String>> b18 = t18.searchBatch(keys);
+        for (int j = 0; j < keys.length; j++) {
+            System.out.println(keys[j]+": "+b18.get(j));
+        }
+        System.out.println("Range search -1 to 5000000000 in test 18"+s);
+        LinkedList<LinkedList<String>> s18 = t18.rangeSearch(-1, 5000000000L);
+        for (int j = 0; j < s18.size(); j++) {
+            System.out.println(s18.get(j).get(0)+" "+s18.get(j).get(1));
+        }
+        System.out.println("Field range n498 to n499 and updated in test 18"+s);
+        s18 = t18.rangeByField(0, "n498", "n499");
+        s18.addAll(t18.searchByField(0, "updated"));
+        for (int j = 0; j < s18.size(); j++) {
+            System.out.println(s18.get(j).get(0)+" "+s18.get(j).get(1));
+        }
+        t18.close();
+
+        //a table of int keys refuses a long key before changing anything
+        DBTable t18i = new DBTable("t18"+s+"i", fieldLens, bsize, new StorageOptions().writeAheadLog(true));
+        try {
+            t18i.insert(5000000000L, sFields);
+            System.out.println("Long key taken by a table of int keys in test 18"+s);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Long key refused by a table of int keys in test 18"+s);
+        }
+        System.out.println("Insert after the refused key in test 18"+s+": "+t18i.insert(5, sFields));
+        t18i.close();
+    }
+
+    public void test19(String s, int bsize) throws IOException {
+        //a logged table that stops without being closed comes back with the changes it
+        //committed, a bulk load stops cleanly at a key out of order, and a change to a
+        //logged tree that fails part way is dropped and stops the log
+        System.out.println("Start test 19"+s);
+        int fieldLens[] = {10};
+        DBTable t19 = new DBTable("t19"+s, fieldLens, bsize, new StorageOptions().writeAheadLog(true));
+        List<Map.Entry<Integer, char[][]>> source = new ArrayList<>();
+        for (int i = 0; i <= 20; i++) {
+            char sFields[][] = new char[1][];
+            sFields[0] = Arrays.copyOf(("bulk"+i).toCharArray(), 10);
+            source.add(new AbstractMap.SimpleEntry<>(i == 20 ? 5 : i, sFields));
+        }
+        try {
+            t19.bulkInsert(source.iterator());
+            System.out.println("Bulk load with keys out of order taken in test 19"+s);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Bulk load with keys out of order stopped in test 19"+s+" with "+t19.rangeSearch(0, 1000).size()+" rows loaded");
+        }
+        char sFields[][] = new char[1][];
+        sFields[0] = Arrays.copyOf("after".toCharArray(), 10);
+        try {
+            t19.insert(100, sFields);
+            System.out.println("Insert after the stopped bulk load taken in test 19"+s);
+        } catch (IOException e) {
+            System.out.println("Insert after the stopped bulk load refused in test 19"+s+": "+e.getMessage());
+        }
+
+        //t19 is left open, as if the program had stopped here
+        DBTable t19r = new DBTable("t19"+s);
+        System.out.println("Rows after the bulk load in test 19"+s+": "+t19r.rangeSearch(0, 1000).size());
+        for (int i = 0; i < 300; i++) {
+            sFields[0] = Arrays.copyOf(String.valueOf(i).toCharArray(), 10);
+            t19r.insert(i, sFields);
+        }
+        for (int i = 0; i < 300; i = i+3) t19r.remove(i);
+        sFields[0] = Arrays.copyOf("updated".toCharArray(), 10);
+        t19r.update(101, sFields);
+
+        //t19r is left open too
+        DBTable t19c = new DBTable("t19"+s);
+        System.out.println("Rows left in test 19"+s+": "+t19c.rangeSearch(0, 1000).size());
+        System.out.println("Range search 98 to 104 in test 19"+s);
+        LinkedList<LinkedList<String>> s19 = t19c.rangeSearch(98, 104);
+        for (int j = 0; j < s19.size(); j++) {
+            System.out.println(s19.get(j).get(0)+" "+s19.get(j).get(1));
+        }
+        t19c.close();
+
+        //a logged tree checks the order as it loads, so the load fails part way
+        List<Map.Entry<Integer, Long>> entries = new ArrayList<>();
+        for (int i = 0; i <= 20; i++) entries.add(new AbstractMap.SimpleEntry<>(i == 20 ? 5 : i, i+1L));
+        BTree t19t = new BTree("t19"+s+"f.tree", bsize, new StorageOptions().writeAheadLog(true));
+        try {
+            t19t.bulkLoad(entries.iterator());
+            System.out.println("Tree bulk load with keys out of order taken in test 19"+s);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Tree bulk load with keys out of order failed in test 19"+s);
+        }
+        try {
+            t19t.insert(100, 1);
+            System.out.println("Insert after the failed change taken in test 19"+s);
+        } catch (IOException e) {
+            System.out.println("Insert after the failed change refused in test 19"+s+": "+e.getMessage());
+        }
+
+        //t19t is left open as well
+        BTree t19tr = new BTree("t19"+s+"f.tree");
+        System.out.println("Keys after the failed change in test 19"+s+": "+t19tr.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE).size());
+        t19tr.close();
+
+        //the log on its own replays a committed change and not one left open
+        File logFile = new File("t19"+s+"log.wal");
+        File dataFile = new File("t19"+s+"log.dat");
+        logFile.delete();
+        dataFile.delete();
+        WriteAheadLog log = new WriteAheadLog(logFile, new StorageOptions());
+        Storage data = log.attach(0, Storage.open(dataFile, new StorageOptions()));
+        log.begin();
+        data.writeInt(0, 19);
+        log.commit();
+        log.begin();
+        data.writeInt(4, 20);
+        WriteAheadLog log2 = new WriteAheadLog(logFile, new StorageOptions());
+        Storage data2 = log2.attach(0, Storage.open(dataFile, new StorageOptions()));
+        System.out.println("Log replayed in test 19"+s+": "+data2.length()+" bytes, first int "+data2.readInt(0));
+        data2.close();
+    }
+
+    public void test20(String s, CommitPolicy policy) throws IOException {
+        //each commit policy forces the log as often as it promises, and a table that
+        //stops without being closed keeps the rows it committed
+        System.out.println("Start test 20"+s+" ("+policy+")");
+        int fieldLens[] = {10};
+        DBTable t20 = new DBTable("t20"+s, fieldLens, 72, new StorageOptions().writeAheadLog(true).commitPolicy(policy));
+        CommitStats before = t20.getCommitStats();
+        for (int i = 0; i < 200; i++) {
+            char sFields[][] = new char[1][];
+            sFields[0] = Arrays.copyOf(String.valueOf(i).toCharArray(), 10);
+            t20.insert(i, sFields);
+        }
+        if (policy.getKind() == CommitPolicy.Kind.EVERY_MILLIS) {
+            //give the background thread time to force the last commits
+            try {
+                Thread.sleep(20*policy.getN());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        CommitStats after = t20.getCommitStats();
+        long commits = after.getCommits()-before.getCommits();
+        long forces = after.getForces()-before.getForces();
+        System.out.println("Commits in test 20"+s+": "+commits);
+        switch (policy.getKind()) {
+            case EVERY_OP:
+                System.out.println("One force per commit in test 20"+s+": "+(forces == commits));
+                break;
+            case EVERY_OPS:
+                System.out.println("One force per "+policy.getN()+" commits in test 20"+s+": "+(forces == commits/policy.getN()));
+                break;
+            default:
+                System.out.println("Forced by the background thread in test 20"+s+": "+(forces > 0 && forces < commits));
+                break;
+        }
+        System.out.println("Stats in test 20"+s+" reported: "+(after.getMeanLatencyMicros() > 0 && after.getThroughput() > 0));
+
+        //t20 is left open, as if the program had stopped here
+        DBTable t20r = new DBTable("t20"+s);
+        System.out.println("Rows after the stop in test 20"+s+": "+t20r.rangeSearch(0, 1000).size());
+        t20r.close();
+    }
+
+    public void test21() throws IOException {
+        //a Bloom filter never misses a key it was given, rarely claims one it wasn't,
+        //and reads back from a file the same as it was written
+        System.out.println("Start test 21");
+        BloomFilter f21 = new BloomFilter(2000, 10);
+        for (long i = 0; i < 2000; i++) f21.add(i*2);
+        f21.add(Long.MIN_VALUE);
+        f21.add(Long.MAX_VALUE);
+        int missed = 0;
+        for (long i = 0; i < 2000; i++) {
+            if (!f21.mightContain(i*2)) missed++;
+        }
+        if (!f21.mightContain(Long.MIN_VALUE) || !f21.mightContain(Long.MAX_VALUE)) missed++;
+        int falsePositives = 0;
+        for (long i = 0; i < 10000; i++) {
+            if (f21.mightContain(i*2+1)) falsePositives++;
+        }
+        System.out.println("Keys missed by the filter: "+missed);
+        System.out.println("False positives under 3%: "+(falsePositives < 300));
+
+        File file = new File("t21.bloom");
+        file.delete();
+        Storage out = Storage.open(file, new StorageOptions());
+        f21.write(out, 8);
+        out.close();
+        Storage in = Storage.open(file, new StorageOptions());
+        BloomFilter r21 = BloomFilter.read(in, 8);
+        in.close();
+        boolean same = r21.getCapacity() == f21.getCapacity();
+        for (long i = 0; i < 20000; i++) {
+            if (r21.mightContain(i) != f21.mightContain(i)) same = false;
+        }
+        System.out.println("Filter read back the same: "+same);
+    }
+
+    public void test22(String s, int bsize) throws IOException {
+        //a tree with a Bloom filter rebuilds it as keys come and go, keeps it in
+        //a .bloom file while closed, and builds a new one after a session without it
+        System.out.println("Start test 22"+s);
+        String name = "t22"+s+".tree";
+        File bloomFile = new File(name+".bloom");
+        StorageOptions filtered = new StorageOptions().bloomBitsPerKey(10);
+        BTree t22 = new BTree(name, bsize, filtered);
+        for (long i = 0; i < 6000; i = i+2) t22.insert(i, i+1);
+        for (long i = 0; i < 6000; i = i+2) {
+            if (i % 8 != 2) t22.remove(i);
+        }
+        int found = 0;
+        int wrong = 0;
+        for (long i = 0; i < 6000; i++) {
+            long addr = t22.search(i);
+            if (i % 8 == 2 && addr == i+1) found++;
+            else if (i % 8 != 2 && addr != 0) wrong++;
+        }
+        System.out.println("Keys found in test 22"+s+": "+found+", wrongly found: "+wrong);
+        t22.close();
+
+        //the saved filter was rebuilt as the tree grew, and again once more keys were
+        //removed than half the keys it was sized for
+        Storage saved = Storage.open(bloomFile, new StorageOptions());
+        long liveKeys = saved.readLong(0);
+        BloomFilter f22 = BloomFilter.read(saved, 8);
+        saved.close();
+        int removedInFilter = 0;
+        for (long i = 0; i < 6000; i = i+2) {
+            if (i % 8 != 2 && f22.mightContain(i)) removedInFilter++;
+        }
+        System.out.println("Saved filter in test 22"+s+": "+liveKeys+" keys, sized for at least that many: "
+            +(f22.getCapacity() >= liveKeys)+", removed keys mostly gone: "+(removedInFilter < 400));
+
+        t22 = new BTree(name, filtered);
+        System.out.println(".bloom file while open in test 22"+s+": "+bloomFile.exists());
+        t22.close();
+        System.out.println(".bloom file after close in test 22"+s+": "+bloomFile.exists());
+
+        //a session without the filter drops the saved one and adds keys it never saw
+        t22 = new BTree(name);
+        System.out.println(".bloom file in a session without the filter in test 22"+s+": "+bloomFile.exists());
+        for (long i = 1; i < 6000; i = i+2) t22.insert(i, i+1);
+        t22.close();
+        System.out.println(".bloom file after the session without the filter in test 22"+s+": "+bloomFile.exists());
+
+        t22 = new BTree(name, filtered);
+        found = 0;
+        for (long i = 1; i < 6000; i = i+2) {
+            if (t22.search(i) == i+1) found++;
+        }
+        System.out.println("Keys from the session without the filter found in test 22"+s+": "+found+" of 3000");
+        t22.close();
+    }
+
+    public void test23(String s, int blockSize, long cacheBytes) throws IOException {
+        //the page cache counts the node reads it serves and the ones that go to the file
+        System.out.println("Start test 23"+s);
+        int nums[] = new int[2000];
+        Random r = new Random(2017);
+        for (int i = 0; i < 2000; i++) nums[i] = r.nextInt()%100000;
+        int sFieldLens[] = {15};
+        DBTable t23 = new DBTable("t23"+s, sFieldLens, blockSize, new StorageOptions().cacheBytes(cacheBytes));
+        for (int i = 0; i < 2000; i++) {
+            char sFields[][] = new char[1][];
+            sFields[0] = Arrays.copyOf(String.valueOf(nums[i]).toCharArray(), 15);
+            t23.insert(nums[i], sFields);
+        }
+        t23.close();
+
+        t23 = new DBTable("t23"+s, new StorageOptions().cacheBytes(cacheBytes));
+        int found = 0;
+        for (int i = 0; i < 2000; i++) {
+            if (t23.search(nums[i]).size() > 0) found++;
+        }
+        long hits = t23.getCacheHits();
+        long misses = t23.getCacheMisses();
+        t23.search(nums[0]);
+        long warmMisses = t23.getCacheMisses();
+        t23.search(nums[0]);
+        System.out.println("Rows found in test 23"+s+": "+found);
+        if (cacheBytes < blockSize) {
+            System.out.println("Reads counted with the cache off in test 23"+s+": "+(t23.getCacheHits()+t23.getCacheMisses()));
+        } else {
+            System.out.println("Cache hits and misses in test 23"+s+": "+(hits > 0)+" "+(misses > 0)
+                +", more hits than misses: "+(hits > misses));
+            System.out.println("Repeated search missed the cache in test 23"+s+": "+(t23.getCacheMisses() > warmMisses));
+        }
+        t23.close();
+    }
+
+    public void test24(String s, String treeFile, long low, long high) throws IOException {
+        //the range searches that fill a LongList or a LongBuffer find the same addresses
+        //as the one that returns a LinkedList
+        System.out.println("Start test 24"+s);
+        BTree t24 = new BTree(treeFile);
+        LinkedList<Long> boxed = t24.rangeSearch(low, high);
+
+        //a list that already holds a value gets the addresses after it, and grows from one slot
+        LongList list = new LongList(1);
+        list.add(-1);
+        int added = t24.rangeSearch(low, high, list);
+        boolean listSame = added == boxed.size() && list.size() == added+1 && list.get(0) == -1;
+        for (int j = 0; listSame && j < added; j++) listSame = list.get(j+1) == boxed.get(j);
+
+        LongBuffer buffers[] = {LongBuffer.allocate(boxed.size()+5), ByteBuffer.allocateDirect(8*(boxed.size()+5)).asLongBuffer()};
+        boolean bufferSame = true;
+        for (LongBuffer buffer : buffers) {
+            if (t24.rangeSearch(low, high, buffer) != boxed.size()) bufferSame = false;
+            buffer.flip();
+            for (int j = 0; bufferSame && j < boxed.size(); j++) bufferSame = buffer.get(j) == boxed.get(j);
+        }
+
+        //a buffer too small for the range is filled and the scan stops
+        LongBuffer small = LongBuffer.allocate(boxed.size()/2);
+        int put = t24.rangeSearch(low, high, small);
+        boolean smallFilled = put == small.capacity() && !small.hasRemaining();
+        for (int j = 0; smallFilled && j < put; j++) smallFilled = small.get(j) == boxed.get(j);
+
+        System.out.println("Range "+low+" to "+high+" of "+treeFile+" in test 24"+s+": "+boxed.size()+" addresses, LongList same: "
+            +listSame+", LongBuffer same: "+bufferSame+", small buffer filled: "+smallFilled);
+        t24.close();
+    }
+
+    public void test25(String s, int blockSize, StorageOptions options) throws IOException {
+        //rows scattered through the file by reuse (as in test 6) come back the same
+        //when a scan fetches them in file order
+        System.out.println("Start test 25"+s);
+        int nums[] = new int[2000];
+        Random r = new Random(2017);
+        for (int i = 0; i < 2000; i++) nums[i] = r.nextInt()%100000;
+        int sFieldLens[] = {15, 30};
+        DBTable t25 = new DBTable("t25"+s, sFieldLens, blockSize, options);
+        char sFields[][] = new char[2][];
+        for (int i = 0; i < 2000; i++) {
+            sFields[0] = Arrays.copyOf(String.valueOf(nums[i]).toCharArray(), 15);
+            sFields[1] = Arrays.copyOf(("row"+nums[i]).toCharArray(), 30);
+            t25.insert(nums[i], sFields);
+        }
+        for (int i = 0; i < 2000; i = i+2) t25.remove(nums[i]);
+        for (int i = 1998; i >= 0; i = i-2) {
+            sFields[0] = Arrays.copyOf(String.valueOf(nums[i]).toCharArray(), 15);
+            sFields[1] = Arrays.copyOf(("again"+nums[i]).toCharArray(), 30);
+            t25.insert(nums[i], sFields);
+        }
+        t25.close();
+
+        t25 = new DBTable("t25"+s, options);
+        LinkedList<LinkedList<String>> keyOrder = t25.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        LinkedList<LinkedList<String>> keyOrderPart = t25.rangeSearch(-20000, 20000);
+        t25.close();
+        int batches[] = {1, 16, 5000};
+        for (int batch : batches) {
+            t25 = new DBTable("t25"+s, options.copy().fileOrderBatch(batch));
+            boolean same = keyOrder.equals(t25.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE))
+                && keyOrderPart.equals(t25.rangeSearch(-20000, 20000));
+            long streamed;
+            try (DBTable.RowCursor rows = t25.rangeCursor(-20000, 20000)) {
+                streamed = rows.stream().count();
+            }
+            System.out.println("Same rows fetched "+batch+" at a time in file order in test 25"+s+": "+same
+                +" ("+keyOrder.size()+" rows, "+streamed+" streamed of "+keyOrderPart.size()+")");
+            t25.close();
+        }
+    }
+
+    public void test26(String s, StorageOptions options) throws IOException {
+        //the row cache serves repeated searches, and inserts, updates and removes keep
+        //what it serves current
+        System.out.println("Start test 26"+s);
+        int sFieldLens[] = {10};
+        DBTable t26 = new DBTable("t26"+s, sFieldLens, 72, options.copy().rowCacheRows(20));
+        char sFields[][] = new char[1][];
+        for (int i = 0; i < 500; i++) {
+            sFields[0] = Arrays.copyOf(String.valueOf(i).toCharArray(), 10);
+            t26.insert(i, sFields);
+        }
+        t26.close();
+
+        t26 = new DBTable("t26"+s, options.copy().rowCacheRows(20));
+        //ten hot keys take most of the searches
+        int wrong = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 500; i = i+25) {
+                int key = round % 5 == 0 ? i : i % 250 / 25;
+                if (!t26.search(key).get(0).equals(String.valueOf(key))) wrong++;
+            }
+        }
+        System.out.println("Row cache after skewed searches in test 26"+s+": "+t26.getRowCacheHits()+" hits, "
+            +t26.getRowCacheMisses()+" misses, wrong rows: "+wrong);
+
+        sFields[0] = Arrays.copyOf("updated".toCharArray(), 10);
+        t26.update(3, sFields);
+        t26.remove(4);
+        sFields[0] = Arrays.copyOf("new".toCharArray(), 10);
+        t26.insert(1000, sFields);
+        int keys[] = {3, 4, 1000, 5};
+        LinkedList<LinkedList<String>> b26 = t26.searchBatch(keys);
+        for (int j = 0; j < keys.length; j++) {
+            System.out.println(keys[j]+" "+t26.search(keys[j])+" "+b26.get(j));
+        }
+        System.out.println("Row cache at the end of test 26"+s+": "+t26.getRowCacheHits()+" hits, "
+            +t26.getRowCacheMisses()+" misses");
+        t26.close();
+    }
+
+    public void test27(String s, int blockSize, StorageOptions options) throws IOException {
+        //a tree with packed non-leaves holds the same keys as one without, in no more
+        //blocks, and stays packed when opened again without the option
+        System.out.println("Start test 27"+s);
+        int nums[] = new int[2000];
+        Random r = new Random(2017);
+        for (int i = 0; i < 2000; i++) nums[i] = r.nextInt()%100000;
+        String names[] = {"t27"+s+".tree", "t27"+s+"p.tree"};
+        for (int t = 0; t < 2; t++) {
+            BTree t27 = new BTree(names[t], blockSize, options.copy().packedNodes(t == 1));
+            for (int i = 0; i < 2000; i++) t27.insert(nums[i], i+1);
+            for (int i = 0; i < 2000; i = i+3) t27.remove(nums[i]);
+            t27.close();
+        }
+        System.out.println("Packed flag in test 27"+s+": "+isPacked(names[0])+" "+isPacked(names[1]));
+        System.out.println("Packed tree no larger in test 27"+s+": "+(new File(names[1]).length() <= new File(names[0]).length()));
+
+        BTree plain = new BTree(names[0]);
+        BTree packed = new BTree(names[1]);
+        for (int i = 0; i < 2000; i = i+3) packed.insert(nums[i], i+1);
+        for (int i = 1; i < 2000; i = i+3) packed.remove(nums[i]);
+        for (int i = 0; i < 2000; i = i+3) plain.insert(nums[i], i+1);
+        for (int i = 1; i < 2000; i = i+3) plain.remove(nums[i]);
+        boolean same = plain.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE).equals(packed.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE));
+        int found = 0;
+        for (int i = 0; i < 2000; i++) {
+            if (packed.search(nums[i]) == plain.search(nums[i])) found++;
+        }
+        plain.close();
+        packed.close();
+        System.out.println("Same keys in packed and plain trees in test 27"+s+": "+same+", searches agreeing: "+found+" of 2000");
+        System.out.println("Still packed after use without the option in test 27"+s+": "+isPacked(names[1]));
+    }
+
+    public void test28(String s, int blockSize, StorageOptions options) throws IOException {
+        //a ByteKeyTree keeps byte keys longer than a long in memcmp order, and takes
+        //them again from a file opened later and from a bulk load
+        System.out.println("Start test 28"+s);
+        String name = "t28"+s+".tree";
+        ByteKeyTree t28 = new ByteKeyTree(name, blockSize, options);
+        TreeMap<byte[], Long> expected = new TreeMap<>(Arrays::compareUnsigned);
+        for (int i = 0; i < 3000; i++) {
+            byte key[] = ("tenant"+(i%7)+"/order/"+String.valueOf(i*7919%3000)).getBytes("UTF-8");
+            expected.put(key, i+1L);
+            t28.insert(key, i+1);
+        }
+        for (int i = 0; i < 3000; i = i+3) {
+            byte key[] = ("tenant"+(i%7)+"/order/"+String.valueOf(i*7919%3000)).getBytes("UTF-8");
+            expected.remove(key);
+            t28.remove(key);
+        }
+        try {
+            t28.insert(new byte[t28.maxKeyBytes()+1], 1);
+            System.out.println("Key longer than "+t28.maxKeyBytes()+" bytes taken in test 28"+s);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Key longer than "+t28.maxKeyBytes()+" bytes refused in test 28"+s);
+        }
+        t28.close();
+
+        t28 = new ByteKeyTree(name, options);
+        int found = 0;
+        for (Map.Entry<byte[], Long> e : expected.entrySet()) {
+            if (t28.search(e.getKey()) == e.getValue()) found++;
+        }
+        System.out.println("Keys found in test 28"+s+": "+found+" of "+expected.size());
+        int count = 0;
+        boolean inOrder = true;
+        Iterator<byte[]> keys = expected.keySet().iterator();
+        try (ByteKeyTree.Cursor c = t28.rangeCursor(null, null)) {
+            while (c.next()) {
+                if (!keys.hasNext() || !Arrays.equals(c.key(), keys.next())) inOrder = false;
+                count++;
+            }
+        }
+        System.out.println("Keys in memcmp order in test 28"+s+": "+inOrder+" ("+count+" of "+expected.size()+")");
+        byte low[] = "tenant3/".getBytes("UTF-8");
+        byte high[] = "tenant3/order/2".getBytes("UTF-8");
+        count = 0;
+        try (ByteKeyTree.Cursor c = t28.rangeCursor(low, high)) {
+            while (c.next()) count++;
+        }
+        System.out.println("Keys from tenant3/ to tenant3/order/2 in test 28"+s+": "+count+" of "+expected.subMap(low, true, high, true).size());
+        t28.close();
+
+        ByteKeyTree t28b = new ByteKeyTree("t28"+s+"b.tree", blockSize, options);
+        System.out.println("Bulk loaded "+t28b.bulkLoad(expected.entrySet().iterator())+" byte keys in test 28"+s);
+        System.out.println("Last bulk loaded key found in test 28"+s+": "+(t28b.search(expected.lastKey()) == expected.lastEntry().getValue()));
+        t28b.close();
+    }
+
+    private static boolean isPacked(String treeFile) throws IOException {
+        //the block size in the tree header carries the packed flag (1 << 29)
+        try (RandomAccessFile f = new RandomAccessFile(treeFile, "r")) {
+            f.seek(16);
+            return (f.readInt() & (1 << 29)) != 0;
+        }
+    }
+
+    private static boolean isLinked(String treeFile) throws IOException {
+        //the block size in the tree header carries the B-link flag (1 << 30)
+        try (RandomAccessFile f = new RandomAccessFile(treeFile, "r")) {
+            f.seek(16);
+            return (f.readInt() & (1 << 30)) != 0;
+        }
+    }
+ 
     public static void main(String args[]) throws IOException {
         BTreeTest test = new BTreeTest();
         test.test1();
@@ -245,6 +1270,106 @@ public class BTreeTest {
         
         test.test6("a", 132);
         test.test6("b", 144);
+
+        test.test7("a", 60, 1.0);
+        test.test7("b", 132, 0.5);
+
+        test.test8("a", 72);
+        test.test8("b", 1024);
+
+        int sFieldLens[] = {10};
+        test.test9("a", new ShardedDBTable("t9a", sFieldLens, 72, 4));
+        int splits[] = {100, 200, 300};
+        test.test9("b", new ShardedDBTable("t9b", sFieldLens, 72, splits, new StorageOptions()));
+
+        test.test10("a", 256);
+        test.test10("b", 4096);
+
+        test.test11("a", 72);
+        test.test11("b", 1024);
+
+        String badLatin1 = "\u0100";
+        String badUtf8 = "\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9";
+        test.test12("a", RowEncoding.UTF16, badLatin1);
+        test.test12("b", RowEncoding.LATIN1, badLatin1);
+        test.test12("c", RowEncoding.UTF8, badUtf8);
+
+        test.test13("a", 72);
+        test.test13("b", 1024);
+
+        test.test14("a", 72);
+        test.test14("b", 1024);
+
+        test.test15("a", 72);
+        test.test15("b", 1024);
+
+        test.test16("a", 84);
+        test.test16("b", 1024);
+        test.test17();
+        test.test18("a", 84);
+        test.test18("b", 1024);
+
+        test.test19("a", 72);
+        test.test19("b", 1024);
+
+        test.test20("a", CommitPolicy.everyOp());
+        test.test20("b", CommitPolicy.everyOps(10));
+        test.test20("c", CommitPolicy.everyMillis(5));
+
+        test.test21();
+        test.test22("a", 72);
+        test.test22("b", 1024);
+
+        //the page cache off, one node and a few nodes, over the data of tests 4, 6 and 7
+        test.test4("c", nums, 72, max, new StorageOptions().cacheBytes(0));
+        test.test6("c", 132, new StorageOptions().cacheBytes(132));
+        test.test7("c", 60, 1.0, new StorageOptions().cacheBytes(16*60));
+        test.test23("a", 72, 0);
+        test.test23("b", 72, 64*72);
+        test.test23("c", 1024, 8*1024);
+
+        //memory mapped files, in segments small enough that the files span several
+        StorageOptions mapped = new StorageOptions().backend(StorageOptions.Backend.MAPPED).segmentBytes(4096);
+        test.test4("d", nums, 72, max, mapped);
+        test.test5("d", nums, 72, mapped);
+        test.test6("d", 132, mapped);
+        test.test7("d", 60, 1.0, mapped);
+
+        //primitive range results over the trees of tests 4c, 6c and 7c
+        test.test24("a", "t4c.tree", 1, max);
+        test.test24("b", "t6c.tree", Integer.MIN_VALUE, Integer.MAX_VALUE);
+        test.test24("c", "t7c.tree", 90, 130);
+        test.test24("d", "t7c.tree", Long.MIN_VALUE, Long.MAX_VALUE);
+
+        //rows fetched in file order a batch at a time
+        StorageOptions fileOrder = new StorageOptions().fileOrderBatch(16);
+        test.test4("e", nums, 72, max, fileOrder);
+        test.test7("e", 60, 1.0, fileOrder);
+        test.test25("a", 132, new StorageOptions());
+        test.test25("b", 1024, new StorageOptions().rowPageBytes(512));
+
+        //a row cache much smaller than the tables
+        StorageOptions rowCache = new StorageOptions().rowCacheRows(50);
+        test.test4("f", nums, 72, max, rowCache);
+        test.test5("f", nums, 72, rowCache);
+        test.test6("f", 132, rowCache);
+        test.test7("f", 60, 1.0, rowCache);
+        test.test26("a", new StorageOptions());
+        test.test26("b", new StorageOptions().concurrent(true));
+
+        //packed non-leaves
+        StorageOptions packed = new StorageOptions().packedNodes(true);
+        test.test4("g", nums, 72, max, packed);
+        test.test5("g", nums, 72, packed);
+        test.test6("g", 132, packed);
+        test.test7("g", 60, 1.0, packed);
+        test.test27("a", 72, new StorageOptions());
+        test.test27("b", 1024, new StorageOptions());
+        test.test27("c", 132, new StorageOptions().concurrent(true));
+        test.test27("d", 144, new StorageOptions().longKeys(true));
+
+        test.test28("a", 256, new StorageOptions());
+        test.test28("b", 4096, new StorageOptions().writeAheadLog(true));
     }
 
 }
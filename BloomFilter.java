@@ -0,0 +1,141 @@
+
+/**
+ * BloomFilter.java
+ * A Bloom filter over long keys. It answers whether a key might be in a set:
+ * a "no" is always right, a "yes" is wrong for a small fraction of the keys
+ * that are not in the set. An int key hashes the same as the long it widens
+ * to, so filters saved for trees of int keys stay valid. Keys can be added by
+ * several threads at once.
+ * Keys can't be taken out, so a filter is rebuilt from the set once enough
+ * keys have left it.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class BloomFilter {
+    private AtomicLongArray bits;
+    private long numBits;
+    private int numHashes;
+    private long capacity; // keys the filter was sized for
+
+    /**
+     * Makes an empty filter
+     *
+     * @param capacity   Number of keys the filter is sized for
+     * @param bitsPerKey Bits used per key. 10 bits give about 1% false positives
+     */
+    public BloomFilter(long capacity, int bitsPerKey) {
+        if (capacity <= 0 || bitsPerKey <= 0)
+            throw new IllegalArgumentException("capacity and bits per key must be positive");
+
+        this.capacity = capacity;
+        this.bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, (capacity * bitsPerKey + 63) / 64));
+        this.numBits = 64L * bits.length();
+
+        // k = bits per key * ln 2 gives the fewest false positives
+        this.numHashes = (int) Math.max(1, Math.min(16, Math.round(bitsPerKey * Math.log(2))));
+    }
+
+    private BloomFilter(AtomicLongArray bits, int numHashes, long capacity) {
+        this.bits = bits;
+        this.numBits = 64L * bits.length();
+        this.numHashes = numHashes;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a key to the filter
+     */
+    public void add(long key) {
+        long hash = mix(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, numBits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+
+            // Most bits are set already, so only change the word when needed
+            long old = bits.get(word);
+            while ((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask))
+                old = bits.get(word);
+        }
+    }
+
+    /**
+     * Returns false if the key was never added, true if it may have been
+     */
+    public boolean mightContain(long key) {
+        long hash = mix(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, numBits);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of keys the filter was sized for
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    // Spreads the bits of the key over a long (the splitmix64 finalizer),
+    // so the two halves can serve as independent hashes
+    private static long mix(long key) {
+        long z = key * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Writes the filter to a file
+     *
+     * @param f   The file
+     * @param pos Where in the file to write it
+     * @throws IOException
+     */
+    public void write(Storage f, long pos) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(16 + 8 * bits.length());
+        buf.putInt(numHashes);
+        buf.putLong(capacity);
+        buf.putInt(bits.length());
+        for (int i = 0; i < bits.length(); i++)
+            buf.putLong(bits.get(i));
+
+        f.write(pos, buf.array(), 0, buf.capacity());
+    }
+
+    /**
+     * Reads a filter written by write
+     *
+     * @param f   The file
+     * @param pos Where in the file it was written
+     * @return The filter
+     * @throws IOException
+     */
+    public static BloomFilter read(Storage f, long pos) throws IOException {
+        int numHashes = f.readInt(pos);
+        long capacity = f.readLong(pos + 4);
+        int words = f.readInt(pos + 12);
+
+        ByteBuffer buf = ByteBuffer.allocate(8 * words);
+        f.read(pos + 16, buf.array(), 0, buf.capacity());
+        AtomicLongArray bits = new AtomicLongArray(words);
+        for (int i = 0; i < words; i++)
+            bits.set(i, buf.getLong());
+
+        return new BloomFilter(bits, numHashes, capacity);
+    }
+}
@@ -0,0 +1,769 @@
+/**
+ * ByteKeyTree.java
+ * A B+ Tree of byte array keys of any length (up to maxKeyBytes), ordered
+ * as memcmp orders them: unsigned bytes, a prefix before the longer arrays.
+ * Each key maps to a long. KeyCodec.BYTES turns arrays of up to 7 bytes
+ * into the long keys of a BTree; this tree takes the longer ones.
+ *
+ * A node is one block of the file: a leaf flag, a count, a link and the
+ * entries, each a key length, the key and a long. In a leaf the longs are
+ * the values and the link is the next leaf. In a non-leaf the link is the
+ * child left of the first key and each key is followed by the child that
+ * holds the keys from it up to the next one. Nodes split in two halves of
+ * about the same number of bytes, and a leaf split only sends up the
+ * shortest prefix of the right leaf's first key that is above the left
+ * leaf's last key, so the non-leaves hold short keys.
+ *
+ * Removes don't merge nodes. A leaf emptied by removes stays linked in and
+ * takes the keys of its range again.
+ *
+ * The tree may be used by several threads at once. Lookups and cursors
+ * share a read lock, and each change takes the write lock (held until the
+ * change is in the log when changes are logged). A cursor holds no lock
+ * between calls: it reads one leaf at a time and finds the next one by
+ * descending from the root to the first key above the last one it
+ * returned, so keys inserted or removed during the scan may or may not be
+ * seen.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class ByteKeyTree {
+    // Bytes before the first node: root, end of the nodes and block size
+    private static final int HEADER = 20;
+
+    // Bytes of a node before its entries: leaf flag, count and link
+    private static final int NODE_HEADER = 11;
+
+    // Bytes of an entry besides its key: key length and long
+    private static final int ENTRY_BYTES = 10;
+
+    // Largest block size, so key lengths and counts fit in two bytes
+    private static final int MAX_BLOCK = 1 << 16;
+
+    private Storage f;
+    private WriteAheadLog wal; // null unless changes are logged
+    private int blockSize;
+    private long root; // 0 while the tree is empty
+    private long end; // where the next node goes
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * A node read into memory. Entries past count are room for the one
+     * extra entry a node holds before it splits.
+     */
+    private class Node {
+        private long address;
+        private boolean leaf;
+        private long link; // next leaf, or the child left of the first key
+        private int count;
+        private byte keys[][];
+        private long values[]; // values of a leaf, children of a non-leaf
+        private int bytes = NODE_HEADER; // bytes the node takes in its block
+
+        private Node(boolean leaf) {
+            int capacity = (blockSize - NODE_HEADER) / ENTRY_BYTES + 1;
+            this.leaf = leaf;
+            this.keys = new byte[capacity][];
+            this.values = new long[capacity];
+        }
+
+        /**
+         * Reads the node at addr
+         */
+        private Node(long addr) throws IOException {
+            this(false);
+            byte block[] = new byte[blockSize];
+            f.read(addr, block, 0, blockSize);
+            ByteBuffer b = ByteBuffer.wrap(block);
+
+            this.address = addr;
+            this.leaf = b.get() != 0;
+            this.count = b.getChar();
+            this.link = b.getLong();
+            for (int i = 0; i < count; i++) {
+                byte key[] = new byte[b.getChar()];
+                b.get(key);
+                keys[i] = key;
+                values[i] = b.getLong();
+                bytes += ENTRY_BYTES + key.length;
+            }
+        }
+
+        private void write() throws IOException {
+            // The whole block is written so the last node in the file can be read
+            ByteBuffer b = ByteBuffer.allocate(blockSize);
+            b.put((byte) (leaf ? 1 : 0)).putChar((char) count).putLong(link);
+            for (int i = 0; i < count; i++)
+                b.putChar((char) keys[i].length).put(keys[i]).putLong(values[i]);
+            f.write(address, b.array(), 0, blockSize);
+        }
+
+        /**
+         * Returns the position of key among the keys, or -(insertion point) - 1
+         */
+        private int find(byte key[]) {
+            int lo = 0;
+            int hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = Arrays.compareUnsigned(keys[mid], key);
+                if (c < 0)
+                    lo = mid + 1;
+                else if (c > 0)
+                    hi = mid - 1;
+                else
+                    return mid;
+            }
+            return -(lo + 1);
+        }
+
+        /**
+         * Returns the position of the child of a non-leaf whose range holds
+         * key, -1 for the link
+         */
+        private int childIndex(byte key[]) {
+            int i = find(key);
+            return i >= 0 ? i : -i - 2;
+        }
+
+        private long child(int i) {
+            return i < 0 ? link : values[i];
+        }
+
+        private void insertAt(int i, byte key[], long value) {
+            System.arraycopy(keys, i, keys, i + 1, count - i);
+            System.arraycopy(values, i, values, i + 1, count - i);
+            keys[i] = key;
+            values[i] = value;
+            count++;
+            bytes += ENTRY_BYTES + key.length;
+        }
+
+        private void removeAt(int i) {
+            bytes -= ENTRY_BYTES + keys[i].length;
+            System.arraycopy(keys, i + 1, keys, i, count - i - 1);
+            System.arraycopy(values, i + 1, values, i, count - i - 1);
+            count--;
+            keys[count] = null;
+        }
+
+        /**
+         * Moves the entries from i on to the end of another node
+         */
+        private void moveTo(Node to, int i) {
+            for (int j = i; j < count; j++) {
+                to.keys[to.count] = keys[j];
+                to.values[to.count] = values[j];
+                to.count++;
+                to.bytes += ENTRY_BYTES + keys[j].length;
+                bytes -= ENTRY_BYTES + keys[j].length;
+                keys[j] = null;
+            }
+            count = i;
+        }
+
+        /**
+         * Returns the position of the first entry of the right half when the
+         * node splits, so both halves take about the same number of bytes
+         */
+        private int splitPoint() {
+            int half = (bytes - NODE_HEADER) / 2;
+            int used = 0;
+            int i = 0;
+            while (i < count - 1 && used + ENTRY_BYTES + keys[i].length <= half)
+                used += ENTRY_BYTES + keys[i++].length;
+            return Math.max(1, i);
+        }
+    }
+
+    /**
+     * A scan over the keys from low to high in order
+     */
+    public class Cursor implements Closeable {
+        private byte low[];
+        private byte high[];
+        private byte keys[][] = new byte[0][]; // entries copied out of the current leaf
+        private long values[] = new long[0];
+        private int count;
+        private int index = -1; // position of the current key in keys
+        private byte last[]; // last key returned, null before the first
+        private boolean done;
+
+        private Cursor(byte low[], byte high[]) {
+            this.low = low;
+            this.high = high;
+        }
+
+        /**
+         * Moves to the next key
+         *
+         * @return true if there is one, false at the end of the range
+         * @throws IOException
+         */
+        public boolean next() throws IOException {
+            if (done)
+                return false;
+
+            if (index + 1 >= count) {
+                fill();
+                if (count == 0) {
+                    done = true;
+                    return false;
+                }
+            }
+
+            index++;
+            if (high != null && Arrays.compareUnsigned(keys[index], high) > 0) {
+                done = true;
+                return false;
+            }
+            last = keys[index];
+            return true;
+        }
+
+        /**
+         * Returns the key the cursor is on
+         */
+        public byte[] key() {
+            return keys[index].clone();
+        }
+
+        /**
+         * Returns the value of the key the cursor is on
+         */
+        public long value() {
+            return values[index];
+        }
+
+        public void close() {
+            done = true;
+        }
+
+        /**
+         * Copies the entries after the last key returned (from low at the
+         * start) out of the leaf that holds them
+         */
+        private void fill() throws IOException {
+            lock.readLock().lock();
+            try {
+                count = 0;
+                index = -1;
+                byte from[] = last != null ? last : low;
+                if (root == 0)
+                    return;
+
+                Node node = descend(from);
+                while (true) {
+                    int i = 0;
+                    if (from != null) {
+                        i = node.find(from);
+                        i = i < 0 ? -i - 1 : (last != null ? i + 1 : i);
+                    }
+
+                    if (i < node.count) {
+                        count = node.count - i;
+                        keys = Arrays.copyOfRange(node.keys, i, node.count);
+                        values = Arrays.copyOfRange(node.values, i, node.count);
+                        return;
+                    }
+
+                    // Nothing left in this leaf, so the keys are all in the next
+                    if (node.link == 0)
+                        return;
+                    node = new Node(node.link);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    public ByteKeyTree(String filename, int bsize) throws IOException {
+        this(filename, bsize, new StorageOptions());
+    }
+
+    /**
+     * Makes a new tree. Of the options, the storage backend and the write
+     * ahead log are used.
+     *
+     * @param bsize Bytes in each node, which bounds the length of the keys
+     *              (see maxKeyBytes)
+     */
+    public ByteKeyTree(String filename, int bsize, StorageOptions options) throws IOException {
+        this(filename, checkBlockSize(bsize), options, BTree.createLog(filename, options), 0);
+    }
+
+    /**
+     * Makes a new tree whose changes are recorded in the given log (shared
+     * with the DBTable that owns the tree)
+     *
+     * @param log    The log, or null for no logging
+     * @param fileId Id of the tree file in the log
+     */
+    ByteKeyTree(String filename, int bsize, StorageOptions options, WriteAheadLog log, int fileId) throws IOException {
+        checkBlockSize(bsize);
+
+        File bFile = new File(filename);
+        if (bFile.exists())
+            bFile.delete();
+
+        f = Storage.open(bFile, options);
+        if (log != null)
+            f = log.attach(fileId, f);
+        this.wal = log;
+        this.blockSize = bsize;
+        this.root = 0;
+        this.end = HEADER;
+
+        begin();
+        boolean ok = false;
+        try {
+            f.writeInt(16, blockSize);
+            ok = true;
+        } finally {
+            end(ok);
+        }
+    }
+
+    public ByteKeyTree(String filename) throws IOException {
+        this(filename, new StorageOptions());
+    }
+
+    public ByteKeyTree(String filename, StorageOptions options) throws IOException {
+        this(filename, options, BTree.openLog(filename, options), 0);
+    }
+
+    /**
+     * Opens an existing tree whose changes are recorded in the given log.
+     * Committed changes still in the log are replayed into the file first.
+     *
+     * @param log    The log, or null for no logging
+     * @param fileId Id of the tree file in the log
+     */
+    ByteKeyTree(String filename, StorageOptions options, WriteAheadLog log, int fileId) throws IOException {
+        f = Storage.open(new File(filename), options);
+        if (log != null)
+            f = log.attach(fileId, f);
+        this.wal = log;
+        this.root = f.readLong(0);
+        this.end = f.readLong(8);
+        this.blockSize = f.readInt(16);
+    }
+
+    /**
+     * Returns the longest key a tree with the given block size takes. A
+     * node must fit three of the longest entries, so each half of a split
+     * fits in a block.
+     */
+    public static int maxKeyBytes(int bsize) {
+        return (bsize - NODE_HEADER) / 3 - ENTRY_BYTES;
+    }
+
+    /**
+     * Returns the smallest block size whose tree takes keys of the given
+     * length
+     */
+    public static int blockSizeFor(int maxKeyBytes) {
+        return 3 * (maxKeyBytes + ENTRY_BYTES) + NODE_HEADER;
+    }
+
+    private static int checkBlockSize(int bsize) {
+        if (bsize > MAX_BLOCK || maxKeyBytes(bsize) < 1)
+            throw new IllegalArgumentException("block size must be from " + blockSizeFor(1) + " to " + MAX_BLOCK + ": "
+                    + bsize);
+        return bsize;
+    }
+
+    /**
+     * Returns the longest key this tree takes
+     */
+    public int maxKeyBytes() {
+        return maxKeyBytes(blockSize);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Returns the value of a key
+     *
+     * @return The value, 0 if the key is not in the tree
+     * @throws IOException
+     */
+    public long search(byte key[]) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (root == 0)
+                return 0;
+
+            Node leaf = descend(key);
+            int i = leaf.find(key);
+            return i >= 0 ? leaf.values[i] : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Inserts a key and its value. A value of 0 can't be told from a missing
+     * key by search.
+     *
+     * @return false if the key was already in the tree (it is left as it is)
+     * @throws IOException
+     * @throws IllegalArgumentException if the key is longer than maxKeyBytes
+     */
+    public boolean insert(byte key[], long value) throws IOException {
+        checkKey(key);
+
+        begin();
+        boolean ok = false;
+        try {
+            boolean inserted = insertKey(key.clone(), value);
+            ok = true;
+            return inserted;
+        } finally {
+            end(ok);
+        }
+    }
+
+    private boolean insertKey(byte key[], long value) throws IOException {
+        if (root == 0) {
+            Node leaf = new Node(true);
+            leaf.address = allocate();
+            leaf.insertAt(0, key, value);
+            leaf.write();
+            root = leaf.address;
+            return true;
+        }
+
+        // Keep the path down, with the child taken at each non-leaf
+        ArrayList<Node> path = new ArrayList<>();
+        ArrayList<Integer> taken = new ArrayList<>();
+        Node node = new Node(root);
+        while (!node.leaf) {
+            int c = node.childIndex(key);
+            path.add(node);
+            taken.add(c);
+            node = new Node(node.child(c));
+        }
+
+        int i = node.find(key);
+        if (i >= 0)
+            return false;
+        node.insertAt(-i - 1, key, value);
+
+        // Split up the path while a node is too big for its block
+        while (node.bytes > blockSize) {
+            Node right = new Node(node.leaf);
+            right.address = allocate();
+            int m = node.splitPoint();
+            byte separator[];
+
+            if (node.leaf) {
+                node.moveTo(right, m);
+                right.link = node.link;
+                node.link = right.address;
+                separator = separator(node.keys[node.count - 1], right.keys[0]);
+            } else {
+                // The key at the split point goes up, its child leads the right node
+                separator = node.keys[m];
+                right.link = node.values[m];
+                node.moveTo(right, m + 1);
+                node.removeAt(m);
+            }
+            right.write();
+            node.write();
+
+            if (path.isEmpty()) {
+                Node newRoot = new Node(false);
+                newRoot.address = allocate();
+                newRoot.link = node.address;
+                newRoot.insertAt(0, separator, right.address);
+                newRoot.write();
+                root = newRoot.address;
+                return true;
+            }
+
+            Node parent = path.remove(path.size() - 1);
+            parent.insertAt(taken.remove(taken.size() - 1) + 1, separator, right.address);
+            node = parent;
+        }
+
+        node.write();
+        return true;
+    }
+
+    /**
+     * Removes a key
+     *
+     * @return The value the key had, 0 if it was not in the tree
+     * @throws IOException
+     */
+    public long remove(byte key[]) throws IOException {
+        begin();
+        boolean ok = false;
+        try {
+            long value = 0;
+            if (root != 0) {
+                Node leaf = descend(key);
+                int i = leaf.find(key);
+                if (i >= 0) {
+                    value = leaf.values[i];
+                    leaf.removeAt(i);
+                    leaf.write();
+                }
+            }
+            ok = true;
+            return value;
+        } finally {
+            end(ok);
+        }
+    }
+
+    /**
+     * Builds the tree bottom-up from keys that are already sorted. Uses the
+     * default fill factor of a BTree.
+     *
+     * @param entries Key/value pairs in strictly ascending key order
+     * @return Number of keys loaded
+     * @throws IOException
+     */
+    public int bulkLoad(Iterator<? extends Map.Entry<byte[], Long>> entries) throws IOException {
+        return bulkLoad(entries, BTree.DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * Builds the tree bottom-up from keys that are already sorted. Leaves
+     * are filled to the fill factor (by bytes) and written one after another
+     * as the entries arrive, then each level of non-leaves is built in one
+     * pass over the level below it. Only the first key and address of every
+     * node on the level being built is kept in memory.
+     *
+     * @param entries    Key/value pairs in strictly ascending key order
+     * @param fillFactor Fraction of each node to fill (0, 1]
+     * @return Number of keys loaded
+     * @throws IOException
+     * @throws IllegalStateException if the tree is not empty
+     */
+    public int bulkLoad(Iterator<? extends Map.Entry<byte[], Long>> entries, double fillFactor) throws IOException {
+        if (!(fillFactor > 0 && fillFactor <= 1))
+            throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+
+        begin();
+        boolean ok = false;
+        try {
+            if (root != 0)
+                throw new IllegalStateException("bulk load needs an empty tree");
+
+            int loaded = load(entries, (int) (fillFactor * blockSize));
+            ok = true;
+            return loaded;
+        } finally {
+            end(ok);
+        }
+    }
+
+    private int load(Iterator<? extends Map.Entry<byte[], Long>> entries, int fill) throws IOException {
+        // Key leading into every node on the level being built (null for the
+        // first) and its address
+        ArrayList<byte[]> levelKeys = new ArrayList<>();
+        LongList levelAddrs = new LongList();
+
+        Node curr = null;
+        byte prev[] = null;
+        int loaded = 0;
+
+        while (entries.hasNext()) {
+            Map.Entry<byte[], Long> entry = entries.next();
+            byte key[] = entry.getKey();
+            checkKey(key);
+            if (prev != null && Arrays.compareUnsigned(key, prev) <= 0)
+                throw new IllegalArgumentException("bulk load keys must be strictly ascending");
+            key = key.clone();
+
+            if (curr == null || !fits(curr, key, fill)) {
+                // Commit what is written so far rather than log the whole load
+                // at once. The root is only set at the end.
+                if (wal != null) {
+                    writeHeader();
+                    wal.commitAndContinue();
+                }
+
+                Node next = new Node(true);
+                next.address = allocate();
+                if (curr != null) {
+                    curr.link = next.address;
+                    curr.write();
+                }
+                levelKeys.add(curr == null ? null : separator(prev, key));
+                levelAddrs.add(next.address);
+                curr = next;
+            }
+
+            curr.insertAt(curr.count, key, entry.getValue());
+            prev = key;
+            loaded++;
+        }
+
+        // Nothing to load
+        if (curr == null)
+            return 0;
+        curr.write();
+
+        // Build the non-leaf levels until one node is left, which is the root
+        while (levelAddrs.size() > 1) {
+            ArrayList<byte[]> nextKeys = new ArrayList<>();
+            LongList nextAddrs = new LongList();
+
+            Node parent = null;
+            for (int i = 0; i < levelAddrs.size(); i++) {
+                byte key[] = levelKeys.get(i);
+                if (parent != null && fits(parent, key, fill)) {
+                    parent.insertAt(parent.count, key, levelAddrs.get(i));
+                    continue;
+                }
+
+                // The key leading into the first child leads into the parent
+                if (parent != null)
+                    parent.write();
+                parent = new Node(false);
+                parent.address = allocate();
+                parent.link = levelAddrs.get(i);
+                nextKeys.add(key);
+                nextAddrs.add(parent.address);
+            }
+            parent.write();
+
+            levelKeys = nextKeys;
+            levelAddrs = nextAddrs;
+        }
+
+        root = levelAddrs.get(0);
+        return loaded;
+    }
+
+    /**
+     * Returns true if a node being bulk loaded takes another key. A node
+     * always takes one key, so every non-leaf has at least two children.
+     */
+    private boolean fits(Node node, byte key[], int fill) {
+        int bytes = node.bytes + ENTRY_BYTES + key.length;
+        return node.count == 0 ? bytes <= blockSize : bytes <= fill;
+    }
+
+    /**
+     * Returns a cursor over the keys from low to high inclusive
+     *
+     * @param low  Smallest key, null for no bound
+     * @param high Largest key, null for no bound
+     * @return The cursor, positioned before the first key
+     */
+    public Cursor rangeCursor(byte low[], byte high[]) {
+        return new Cursor(low == null ? null : low.clone(), high == null ? null : high.clone());
+    }
+
+    public void close() throws IOException {
+        // close the tree. The tree should not be accessed after close is called
+        begin();
+        end(true);
+        f.close();
+    }
+
+    /**
+     * Returns the leaf whose range holds key (the first leaf when key is null)
+     */
+    private Node descend(byte key[]) throws IOException {
+        Node node = new Node(root);
+        while (!node.leaf)
+            node = new Node(key == null ? node.link : node.child(node.childIndex(key)));
+        return node;
+    }
+
+    /**
+     * Returns the shortest prefix of right that is above left (right > left)
+     */
+    private static byte[] separator(byte left[], byte right[]) {
+        int i = Arrays.mismatch(left, right);
+        return Arrays.copyOf(right, i + 1);
+    }
+
+    private long allocate() {
+        long addr = end;
+        end += blockSize;
+        return addr;
+    }
+
+    private void checkKey(byte key[]) {
+        if (key.length > maxKeyBytes())
+            throw new IllegalArgumentException("key is longer than " + maxKeyBytes() + " bytes: " + key.length);
+    }
+
+    /**
+     * Starts a change to the tree
+     */
+    private void begin() throws IOException {
+        lock.writeLock().lock();
+        if (wal == null)
+            return;
+
+        try {
+            wal.begin();
+        } catch (IOException e) {
+            lock.writeLock().unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Ends a change to the tree. The root and end of the nodes are written
+     * along with the change and, when changes are logged, it is committed
+     * (or dropped if it failed part way). The write lock is then held until
+     * the change is in the log, so the log has the changes in the order they
+     * were made.
+     *
+     * @param ok true if the change completed
+     * @throws IOException
+     */
+    private void end(boolean ok) throws IOException {
+        if (wal == null) {
+            try {
+                if (ok)
+                    writeHeader();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return;
+        }
+
+        wal.afterAppend(lock.writeLock()::unlock);
+        if (!ok) {
+            wal.abort();
+            return;
+        }
+
+        boolean written = false;
+        try {
+            writeHeader();
+            written = true;
+        } finally {
+            if (!written)
+                wal.abort();
+        }
+        wal.commit();
+    }
+
+    private void writeHeader() throws IOException {
+        f.writeLong(0, root);
+        f.writeLong(8, end);
+    }
+}
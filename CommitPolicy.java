@@ -0,0 +1,82 @@
+
+/**
+ * CommitPolicy.java
+ * When a WriteAheadLog forces committed changes to the disk.
+ *
+ * EVERY_OP     - each commit waits until its change is forced. Threads
+ *                that commit together share a single force.
+ * EVERY_OPS    - the commit that brings the number of unforced changes to
+ *                n forces the log, other commits return once appended.
+ *                Up to n - 1 committed changes can be lost in a crash.
+ * EVERY_MILLIS - a background thread forces the log every n milliseconds
+ *                and commits never wait. Up to n milliseconds of committed
+ *                changes can be lost in a crash.
+ *
+ * A crash never leaves part of a change behind under any policy.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+public class CommitPolicy {
+    public enum Kind {
+        EVERY_OP, EVERY_OPS, EVERY_MILLIS
+    }
+
+    private Kind kind;
+    private long n;
+
+    private CommitPolicy(Kind kind, long n) {
+        this.kind = kind;
+        this.n = n;
+    }
+
+    /**
+     * Forces the log before every commit returns
+     */
+    public static CommitPolicy everyOp() {
+        return new CommitPolicy(Kind.EVERY_OP, 1);
+    }
+
+    /**
+     * Forces the log once every ops commits
+     */
+    public static CommitPolicy everyOps(int ops) {
+        if (ops <= 0)
+            throw new IllegalArgumentException("ops must be positive: " + ops);
+
+        return new CommitPolicy(Kind.EVERY_OPS, ops);
+    }
+
+    /**
+     * Forces the log every millis milliseconds from a background thread
+     */
+    public static CommitPolicy everyMillis(long millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("millis must be positive: " + millis);
+
+        return new CommitPolicy(Kind.EVERY_MILLIS, millis);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns the number of commits (EVERY_OPS) or milliseconds (EVERY_MILLIS)
+     * between forces
+     */
+    public long getN() {
+        return n;
+    }
+
+    public String toString() {
+        switch (kind) {
+            case EVERY_OPS:
+                return "every " + n + " ops";
+            case EVERY_MILLIS:
+                return "every " + n + " ms";
+            default:
+                return "every op";
+        }
+    }
+}
@@ -0,0 +1,80 @@
+
+/**
+ * CommitStats.java
+ * A snapshot of how a WriteAheadLog has performed under its commit policy:
+ * how long commits took, how many commits finished per second and how
+ * many commits each force of the log covered.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+public class CommitStats {
+    private CommitPolicy policy;
+    private long commits;
+    private long forces;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+    private long elapsedNanos; // from the first commit to the last
+
+    CommitStats(CommitPolicy policy, long commits, long forces, long totalLatencyNanos, long maxLatencyNanos,
+            long elapsedNanos) {
+        this.policy = policy;
+        this.commits = commits;
+        this.forces = forces;
+        this.totalLatencyNanos = totalLatencyNanos;
+        this.maxLatencyNanos = maxLatencyNanos;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public CommitPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Returns the number of changes committed
+     */
+    public long getCommits() {
+        return commits;
+    }
+
+    /**
+     * Returns the number of times the log was forced to the disk
+     */
+    public long getForces() {
+        return forces;
+    }
+
+    /**
+     * Returns the average time a commit took, in microseconds
+     */
+    public double getMeanLatencyMicros() {
+        return commits == 0 ? 0 : totalLatencyNanos / 1000.0 / commits;
+    }
+
+    /**
+     * Returns the longest time a commit took, in microseconds
+     */
+    public double getMaxLatencyMicros() {
+        return maxLatencyNanos / 1000.0;
+    }
+
+    /**
+     * Returns the commits per second between the first and the last commit
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : commits * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Returns the average number of commits covered by one force
+     */
+    public double getCommitsPerForce() {
+        return forces == 0 ? 0 : (double) commits / forces;
+    }
+
+    public String toString() {
+        return String.format("%s: %d commits, %d forces (%.1f commits/force), mean %.1f us, max %.1f us, %.0f commits/s",
+                policy, commits, forces, getCommitsPerForce(), getMeanLatencyMicros(), getMaxLatencyMicros(),
+                getThroughput());
+    }
+}
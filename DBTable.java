@@ -2,24 +2,97 @@
  * DBTable (Project 4)
  * 
  * A database table implemented use a B+ Tree and a RandomAccessFile
+ * (or a memory mapped file)
+ * 
+ * In concurrent mode (StorageOptions.concurrent) the BTree latches its nodes,
+ * each key maps to one of a fixed set of read/write latches so a row is not
+ * read while it is being removed, and the free list of rows has a latch of
+ * its own.
+ * 
+ * With StorageOptions.rowPageBytes the rows are kept in slotted pages
+ * (RowPages) instead of fixed size slots, so each row only takes the space
+ * its fields use, and the room in each page is tracked in place of the
+ * free list.
+ * 
+ * createIndex adds a ByteKeyTree over one of the other fields, kept in the
+ * file filename.idx<field> and opened with the table. Its keys are the whole
+ * field followed by the key of the row, and it maps them to the address of
+ * the row. searchByField and rangeByField only read the entries of the
+ * values they ask for, already in the order of the field and then the key.
+ * 
+ * A table made with StorageOptions.longKeys takes any long key. Each row
+ * then starts with an 8 byte key instead of 4, and the BTree has long keys
+ * too.
  * 
  * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
  */
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class DBTable {
-    private RandomAccessFile rows; // the file that stores the rows in the table
+    private Storage rows; // the file that stores the rows in the table
     private BTree index;
     private long free; // head of the free list space for rows
     private int numOtherFields;
     private int otherFieldLengths[];
+    private RowEncoding encoding = RowEncoding.UTF16; // how the fields are stored
+    private boolean longKeys; // keys take 8 bytes in each row rather than 4
+    private WriteAheadLog wal; // null unless changes are logged
+    private long headerFree; // free list head as last written to the file
+    private int readAheadRows; // rows a cursor reads ahead (0 when it doesn't)
+    private int fileOrderBatch; // rows a cursor fetches at a time in file order (0 when it doesn't)
+    private RowCache rowCache; // null unless rows are cached
+    private RowPages pages; // null unless rows are kept in slotted pages
+    private volatile ByteKeyTree fieldIndexes[]; // index of each other field, null where there is none
+    private String filename;
+    private StorageOptions options;
+
+    // Flag in the first int of the header of a table kept in slotted pages
+    private static final int SLOTTED = 1 << 30;
+
+    // Flag in the first int of the header of a table of long keys
+    private static final int LONG_KEYS = 1 << 31;
+
+    // Rows fetched in file order that are at most this far apart are read together
+    private static final int FETCH_GAP_BYTES = 4096;
+
+    // Longest single read made when fetching rows in file order
+    private static final int FETCH_RUN_BYTES = 1 << 20;
+
+    // Block size of a field index, unless its keys need bigger blocks
+    private static final int FIELD_INDEX_BLOCK = 4096;
+
+    // Latches, only used in concurrent mode
+    private static final int KEY_LATCHES = 64; // a power of two
+    private boolean concurrent;
+    private ReentrantReadWriteLock keyLatches[];
+    private ReentrantLock freeLatch = new ReentrantLock(); // guards free and rowsEnd
+    private long rowsEnd; // end of the space handed out by malloc
     // add other instance variables as needed
 
     private class Row {
-        private int keyField;
+        private long keyField;
         private char otherFields[][];
+        private String fields[]; // the decoded fields of a row read from the file
         /*
          * Each row consists of unique key and one or more character array fields.
          * Each character array field is a fixed length field (for example 10
@@ -30,46 +103,226 @@ public class DBTable {
          */
         // Constructors and other Row methods
 
-        private Row(int key, char[][] otherFields){
+        private Row(long key, char[][] otherFields){
             this.keyField = key;
             this.otherFields = otherFields;
         }
 
         private Row(long addr) throws IOException {
-            rows.seek(addr);
+            // Read the whole row with one positional read, then decode it
+            this(readImage(addr));
+        }
 
+        // Decode the row that starts at the position of buf
+        private Row(ByteBuffer buf) {
             // Get the key of the row
-            this.keyField = rows.readInt();
+            this.keyField = longKeys ? buf.getLong() : buf.getInt();
+
+            // Decode each field straight into a string
+            fields = new String[numOtherFields];
+            for(int i=0; i < fields.length; i++){
+                if(pages == null)
+                    fields[i] = encoding.decode(buf, otherFieldLengths[i]);
+                else
+                    fields[i] = encoding.fromBytes(buf, buf.getShort() & 0xffff);
+            }
+        }
 
-            //Read the fields into the node
-            otherFields = new char[numOtherFields][];
+        // Encode the row into one buffer. Throws IllegalArgumentException
+        // when a field can't be stored in the table's encoding.
+        private byte[] encode() {
+            if(pages != null)
+                return encodeUnpadded();
 
+            ByteBuffer buf = ByteBuffer.allocate(rowSize());
+            putKey(buf);
+
+            for(int i=0; i < otherFields.length; i++)
+                encoding.encode(buf, otherFields[i], otherFieldLengths[i]);
+
+            return buf.array();
+        }
+
+        // Encode the row for a slotted page, where each field is stored
+        // without its padding after the number of bytes it takes
+        private byte[] encodeUnpadded() {
+            byte encoded[][] = new byte[otherFields.length][];
+            int size = keyBytes();
             for(int i=0; i < otherFields.length; i++){
-                otherFields[i] = new char[otherFieldLengths[i]];
-                for(int j=0; j < otherFields[i].length; j++){
-                    otherFields[i][j] = rows.readChar();
-                }
+                encoded[i] = encoding.toBytes(otherFields[i], otherFieldLengths[i]);
+                size += 2 + encoded[i].length;
             }
 
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            putKey(buf);
+            for(byte field[] : encoded){
+                buf.putShort((short) field.length);
+                buf.put(field);
+            }
+
+            return buf.array();
         }
 
-        private void writeNode(long addr) throws IOException {
-            // Dump the node into the RAF
-            rows.seek(addr);
+        private void putKey(ByteBuffer buf) {
+            if(longKeys)
+                buf.putLong(this.keyField);
+            else
+                buf.putInt((int) this.keyField);
+        }
 
-            rows.writeInt(this.keyField);
+    }
 
-            for(int i=0; i < otherFields.length; i++){
-                for(int j=0; j < otherFields[i].length; j++){
-                    rows.writeChar(otherFields[i][j]);
+    /**
+     * A forward cursor over the rows in a key range. Each call to next reads
+     * one row, so a scan only holds the current BTree leaf and row in memory.
+     * The table should not be modified while a cursor is open, except in
+     * concurrent mode, where rows removed during the scan are skipped.
+     * 
+     * With read-ahead on (StorageOptions.readAheadRows) the cursor keeps the
+     * reads of the next few rows going on the ReadAhead threads, so they
+     * wait on the disk together rather than one after another.
+     * 
+     * With StorageOptions.fileOrderBatch the cursor instead takes the keys
+     * a batch at a time and reads their rows in the order they are stored in
+     * the file, so a scan over scattered rows reads the file mostly
+     * sequentially. The rows are returned in key order either way.
+     */
+    public class RowCursor implements Iterator<LinkedList<String>>, Closeable {
+        private BTree.Cursor keys;
+        private LinkedList<String> row; // the row next() returns, read by hasNext()
+        private ArrayDeque<Future<Row>> ahead = new ArrayDeque<>(); // rows being read ahead, in key order
+        private ArrayDeque<LinkedList<String>> fetched = new ArrayDeque<>(); // rows of the last batch, in key order
+
+        private RowCursor(BTree.Cursor keys) {
+            this.keys = keys;
+        }
+
+        public boolean hasNext() {
+            try {
+                if (fileOrderBatch > 0) {
+                    if (row == null && fetched.isEmpty())
+                        fetchBatch();
+                    if (row == null)
+                        row = fetched.poll();
+                    return row != null;
+                }
+
+                if (readAheadRows == 0) {
+                    while (row == null && keys.next())
+                        row = readRow(keys.key(), keys.address());
+                    return row != null;
+                }
+
+                // Start reading rows until enough are on the way
+                while (ahead.size() < readAheadRows && keys.next()) {
+                    long addr = keys.address();
+                    ahead.add(ReadAhead.submit(() -> new Row(addr)));
+                }
+
+                if (row == null && !ahead.isEmpty())
+                    row = rowData(await(ahead.poll()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return row != null;
+        }
+
+        /**
+         * Fetches the rows of the next batch of keys in the order they are
+         * stored in the file, reading rows that are next to each other (or
+         * close) with one read, and queues them in key order
+         */
+        private void fetchBatch() throws IOException {
+            LongList found = new LongList(fileOrderBatch);
+            while (found.size() < fileOrderBatch && keys.next())
+                found.add(keys.address());
+            if (found.isEmpty())
+                return;
+
+            long addrs[] = found.toArray(); // in key order
+            long sorted[] = addrs.clone();
+            Arrays.sort(sorted);
+
+            // Read each run of rows that are close together at once
+            int size = rowSize();
+            Row byAddress[] = new Row[sorted.length];
+            if (pages != null) {
+                ByteBuffer images[] = pages.read(sorted, FETCH_GAP_BYTES, FETCH_RUN_BYTES);
+                for (int i = 0; i < images.length; i++)
+                    byAddress[i] = new Row(images[i]);
+            }
+            for (int first = 0, last; pages == null && first < sorted.length; first = last + 1) {
+                last = first;
+                while (last + 1 < sorted.length && sorted[last + 1] - (sorted[last] + size) <= FETCH_GAP_BYTES
+                        && sorted[last + 1] + size - sorted[first] <= FETCH_RUN_BYTES)
+                    last++;
+
+                ByteBuffer run = ByteBuffer.allocate((int) (sorted[last] + size - sorted[first]));
+                rows.read(sorted[first], run.array(), 0, run.capacity());
+                for (int i = first; i <= last; i++) {
+                    run.position((int) (sorted[i] - sorted[first]));
+                    byAddress[i] = new Row(run);
                 }
             }
 
+            // Put the rows back in key order
+            for (long addr : addrs)
+                fetched.add(rowData(byAddress[Arrays.binarySearch(sorted, addr)]));
+        }
+
+        /**
+         * Returns the key and other fields of the next row
+         */
+        public LinkedList<String> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            LinkedList<String> next = row;
+            row = null;
+            return next;
+        }
+
+        /**
+         * Returns the remaining rows as a sequential stream.
+         * Closing the stream closes the cursor.
+         */
+        public Stream<LinkedList<String>> stream() {
+            Spliterator<LinkedList<String>> rows = Spliterators.spliteratorUnknownSize(this,
+                    Spliterator.ORDERED | Spliterator.NONNULL);
+            return StreamSupport.stream(rows, false).onClose(this::close);
+        }
+
+        public void close() {
+            keys.close();
+
+            // Rows still being read are not wanted
+            for (Future<Row> read : ahead)
+                read.cancel(false);
+            ahead.clear();
         }
+    }
 
+    /**
+     * Waits for a row being read ahead
+     */
+    private static Row await(Future<Row> read) throws IOException {
+        try {
+            return read.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
     }
 
     public DBTable(String filename, int fL[], int bsize) throws IOException{
+        this(filename, fL, bsize, new StorageOptions());
+    }
+
+    public DBTable(String filename, int fL[], int bsize, StorageOptions options) throws IOException{
         /*
          * Use this constructor to create a new DBTable.
          * filename is the name of the file used to store the table
@@ -81,57 +334,321 @@ public class DBTable {
          * If a file with name filename exists, the file should be deleted before the
          * new file is created.
          */
+        BTree.checkBlockSize(bsize, options);
+        if(options.getRowPageBytes() > 0)
+            checkPageBytes(fL, options.getRowEncoding(), options.getRowPageBytes(), options.getLongKeys());
 
         File dbFile = new File(filename);
-        index = new BTree(filename + ".tree", bsize);
+
+        // The rows file and the tree file share one log, so a change to both is
+        // committed as a unit
+        File logFile = new File(filename + ".wal");
+        if(logFile.exists())
+            logFile.delete();
+        if(options.getWriteAheadLog())
+            wal = new WriteAheadLog(logFile, options);
+
+        index = new BTree(filename + ".tree", bsize, options, wal, 1);
+        initLatches(options);
+        initRowFetch(options);
+
+        // Field indexes left by an older table of the same name are not opened again
+        this.filename = filename;
+        this.options = options;
+        this.fieldIndexes = new ByteKeyTree[fL.length];
+        for(int i=0; i < fL.length; i++)
+            new File(fieldIndexName(i)).delete();
 
         //Delete the file if it already exists
         if(dbFile.exists())
             dbFile.delete();
 
-        rows = new RandomAccessFile(dbFile, "rw");
+        rows = Storage.open(dbFile, options);
+        if(wal != null)
+            rows = wal.attach(0, rows);
+
+        begin();
 
         //Start at the beginning of the file
         // Setup the DB Table file
-        rows.seek(0);
 
-        // Write the number of other fields
+        // Write the number of other fields and the encoding of the fields
         this.numOtherFields = fL.length;
-        rows.writeInt(numOtherFields);
+        this.encoding = options.getRowEncoding();
+        this.longKeys = options.getLongKeys();
+        rows.writeInt(0, fieldsHeader());
 
         // Write out the lengths of each field
         otherFieldLengths = new int[fL.length];
         for(int i=0; i < fL.length; i++) {
             otherFieldLengths[i] = fL[i];
-            rows.writeInt(fL[i]);
+            rows.writeInt(4 + 4 * i, fL[i]);
         }
 
         this.free = 0;
-        rows.writeLong(0);
+        rows.writeLong(freePos(), 0);
+
+        // Rows of different lengths are kept in slotted pages after the header
+        if(options.getRowPageBytes() > 0){
+            rows.writeInt(freePos() + 8, options.getRowPageBytes());
+            pages = new RowPages(rows, options.getRowPageBytes(), concurrent);
+            rows.writeInt(0, fieldsHeader());
+        }
+
+        end(true);
     }
 
     public DBTable(String filename) throws IOException {
+        this(filename, new StorageOptions());
+    }
+
+    public DBTable(String filename, StorageOptions options) throws IOException {
         // Use this constructor to open an existing DBTable
         File dbFile = new File(filename);
-        index = new BTree(filename + ".tree");
 
-        rows = new RandomAccessFile(dbFile, "rw");
+        // A log left behind by a crash is always opened so its committed
+        // changes are replayed into the rows and tree files
+        File logFile = new File(filename + ".wal");
+        if(options.getWriteAheadLog() || logFile.exists())
+            wal = new WriteAheadLog(logFile, options);
+
+        index = new BTree(filename + ".tree", options, wal, 1);
+        initLatches(options);
+        initRowFetch(options);
 
-        rows.seek(0);
+        rows = Storage.open(dbFile, options);
+        if(wal != null)
+            rows = wal.attach(0, rows);
 
         // Read in the number of other fields, and field lengths from the file
-        this.numOtherFields = rows.readInt();
+        int header = rows.readInt(0);
+        this.numOtherFields = header & 0xffffff;
+        this.encoding = RowEncoding.values()[(header >>> 24) & 0x3f];
+        this.longKeys = (header & LONG_KEYS) != 0;
 
         this.otherFieldLengths = new int[this.numOtherFields];
         for(int i=0; i < numOtherFields; i++){
-            this.otherFieldLengths[i] = rows.readInt();
+            this.otherFieldLengths[i] = rows.readInt(4 + 4 * i);
         }
 
         // Get the address of the free list from the file
-        this.free = rows.readLong();
+        this.free = rows.readLong(freePos());
+        this.headerFree = free;
+
+        if((header & SLOTTED) != 0)
+            pages = new RowPages(rows, rows.readInt(freePos() + 8), concurrent);
+
+        // Open the indexes of the fields that have one. A logged index is
+        // made in one change, so once the log is replayed into its file, an
+        // empty file is one whose making was cut off by a crash.
+        this.filename = filename;
+        this.options = options;
+        this.fieldIndexes = new ByteKeyTree[numOtherFields];
+        for(int i=0; i < numOtherFields; i++){
+            File indexFile = new File(fieldIndexName(i));
+            if(wal != null && indexFile.exists() && fieldIndexLogId(i) <= Byte.MAX_VALUE){
+                Storage indexData = Storage.open(indexFile, options);
+                try {
+                    wal.recover(fieldIndexLogId(i), indexData);
+                } finally {
+                    indexData.close();
+                }
+            }
+
+            if(indexFile.length() > 0)
+                fieldIndexes[i] = new ByteKeyTree(fieldIndexName(i), options, wal, fieldIndexLogId(i));
+            else
+                indexFile.delete();
+        }
+    }
+
+    /**
+     * Makes sure the table header and the longest row fit in a slotted page
+     */
+    private static void checkPageBytes(int fL[], RowEncoding encoding, int pageBytes, boolean longKeys) {
+        int headerBytes = 4 + 4 * fL.length + 8 + 4;
+        if(headerBytes > pageBytes)
+            throw new IllegalArgumentException("table header of " + headerBytes + " bytes does not fit in a page of " + pageBytes);
+
+        int longest = longKeys ? 8 : 4;
+        for(int length : fL)
+            longest += 2 + encoding.fieldBytes(length);
+        if(longest > RowPages.maxRecord(pageBytes))
+            throw new IllegalArgumentException("rows of up to " + longest + " bytes do not fit in a page of " + pageBytes);
+    }
+
+    private void initLatches(StorageOptions options) {
+        concurrent = options.getConcurrent();
+        if (concurrent) {
+            keyLatches = new ReentrantReadWriteLock[KEY_LATCHES];
+            for (int i = 0; i < KEY_LATCHES; i++)
+                keyLatches[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private void initRowFetch(StorageOptions options) {
+        if (options.getRowCacheRows() > 0)
+            rowCache = new RowCache(options.getRowCacheRows());
+
+        // Rows are looked up again one at a time in concurrent mode
+        if (concurrent)
+            return;
+
+        fileOrderBatch = options.getFileOrderBatch();
+
+        // Mapped rows are in memory already
+        if (options.getBackend() != StorageOptions.Backend.MAPPED)
+            readAheadRows = options.getReadAheadRows();
+    }
+
+    /**
+     * Takes the latch the key maps to
+     * 
+     * @param key   The key
+     * @param write true for a write latch, false for a read latch
+     * @return The latch taken, null when not in concurrent mode
+     */
+    private Lock lockKey(long key, boolean write) {
+        if (!concurrent)
+            return null;
+
+        ReentrantReadWriteLock latch = keyLatches[keyLatchIndex(key)];
+        Lock lock = write ? latch.writeLock() : latch.readLock();
+        lock.lock();
+        return lock;
+    }
+
+    private static int keyLatchIndex(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        return (h ^ (h >>> 16)) & (KEY_LATCHES - 1);
+    }
+
+    private static void unlock(Lock lock) {
+        if (lock != null)
+            lock.unlock();
+    }
+
+    /**
+     * Takes the free list latch. When changes are logged, a thread that
+     * changed the free list keeps the latch until its change is in the log.
+     */
+    private void lockFree() {
+        if (concurrent)
+            freeLatch.lock();
+    }
+
+    private void unlockFree(boolean changed) {
+        if (concurrent && !(changed && wal != null))
+            freeLatch.unlock();
+    }
+
+    /**
+     * Starts a change to the table
+     */
+    private void begin() throws IOException {
+        if(wal != null)
+            wal.begin();
+    }
+
+    /**
+     * Ends a change to the table. When changes are logged, the head of the
+     * free list is written along with the change and the change is committed
+     * (or dropped if it failed part way).
+     * 
+     * @param ok true if the change completed
+     * @throws IOException
+     */
+    private void end(boolean ok) throws IOException {
+        if(wal == null)
+            return;
+
+        // The free list is kept latched until the change is in the log
+        if(concurrent){
+            wal.afterAppend(() -> {
+                while (freeLatch.isHeldByCurrentThread())
+                    freeLatch.unlock();
+            });
+        }
+
+        if(!ok){
+            wal.abort();
+            return;
+        }
+
+        writeHeader();
+        wal.commit();
     }
 
-    public boolean insert(int key, char fields[][]) throws IOException {
+    /**
+     * Writes the head of the free list if it changed since it was last
+     * written (in concurrent mode, only if this thread changed it)
+     */
+    private void writeHeader() throws IOException {
+        if(free != headerFree && (!concurrent || freeLatch.isHeldByCurrentThread())){
+            rows.writeLong(freePos(), free);
+            headerFree = free;
+        }
+    }
+
+    /**
+     * Returns the first int of the file header: the number of other fields,
+     * with the encoding of the fields in the top byte, the SLOTTED flag when
+     * rows are kept in slotted pages and the LONG_KEYS flag when keys are
+     * longs. UTF16 is 0, so files written before there was a choice of
+     * encoding read the same.
+     */
+    private int fieldsHeader() {
+        return numOtherFields | encoding.ordinal() << 24 | (pages != null ? SLOTTED : 0) | (longKeys ? LONG_KEYS : 0);
+    }
+
+    /**
+     * Returns the position of the free list head in the file header
+     * (after the field count and the field lengths)
+     */
+    private long freePos() {
+        return 4 + 4 * numOtherFields;
+    }
+
+    /**
+     * Reads the image of the row at addr with one positional read
+     */
+    private ByteBuffer readImage(long addr) throws IOException {
+        if(pages != null)
+            return ByteBuffer.wrap(pages.read(addr));
+
+        ByteBuffer buf = ByteBuffer.allocate(rowSize());
+        rows.read(addr, buf.array(), 0, buf.capacity());
+        return buf;
+    }
+
+    /**
+     * Returns the number of bytes a row occupies (the key and the encoded
+     * fields). A free row holds the address of the next one, so a row is
+     * never smaller than an address.
+     */
+    private int rowSize() {
+        int size = keyBytes();
+        for(int length : otherFieldLengths)
+            size += encoding.fieldBytes(length);
+        return encoding == RowEncoding.UTF16 ? size : Math.max(size, 8);
+    }
+
+    /**
+     * Returns the number of bytes the key takes at the start of each row
+     */
+    private int keyBytes() {
+        return longKeys ? 8 : 4;
+    }
+
+    /**
+     * Makes sure a key fits in the table, before a change is started for it
+     */
+    private void checkKey(long key) {
+        if(!longKeys && (int) key != key)
+            throw new IllegalArgumentException("key does not fit in a table of int keys: " + key);
+    }
+
+    public boolean insert(long key, char fields[][]) throws IOException {
         // PRE: the length of each row is fields matches the expected length
         /*
          * If a row with the key is not in the table, the row is added and the method
@@ -139,19 +656,142 @@ public class DBTable {
          * The method must use the B+tree to determine if a row with the key exists.
          * If the row is added the key is also added into the B+tree.
          */
+        // Encoded before the change starts, so a key or field the table can't
+        // store fails the insert before anything is written or logged
+        checkKey(key);
+        Row newRow = new Row(key, fields);
+        byte image[] = newRow.encode();
+
+        Lock keyLatch = lockKey(key, true);
+        try {
+            begin();
+            boolean ok = false;
+            try {
+                boolean inserted = insertRow(newRow, image);
+                ok = true;
+                return inserted;
+            } finally {
+                end(ok);
+            }
+        } finally {
+            unlock(keyLatch);
+        }
+    }
+
+    private boolean insertRow(Row newRow, byte image[]) throws IOException {
+         long key = newRow.keyField;
 
          // It does not already exist
          if(index.search(key) == 0){
-            Row newRow = new Row(key, fields);
-            long newRowAddr = malloc(); // allocate space for the new node
-            newRow.writeNode(newRowAddr);
+            long newRowAddr = store(image);
             index.insert(key, newRowAddr); // insert key/address into BTree
+            addToFieldIndexes(newRow, newRowAddr);
+            if (rowCache != null)
+                rowCache.put(key, fieldsOf(newRow));
             return true;
          } 
          // Key already exists in the table
          return false;
     }
 
+    /**
+     * Loads rows into an empty table. Uses the BTree's default fill factor.
+     * 
+     * @param source Key/fields pairs in strictly ascending key order
+     * @return Number of rows loaded
+     * @throws IOException
+     */
+    public int bulkInsert(Iterator<? extends Map.Entry<? extends Number, char[][]>> source) throws IOException {
+        return bulkInsert(source, BTree.DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * Loads rows into an empty table. Each row is written as it is read from
+     * the source and its key and address are handed straight to
+     * BTree.bulkLoad, so the index is built bottom-up instead of with one
+     * insert per row.
+     * 
+     * A row whose key is not above the key before it, or with a key or
+     * field the table can't store, ends the load: it is checked before
+     * anything of it is written, the rows before it are loaded and
+     * committed, then the IllegalArgumentException for the row is thrown.
+     * 
+     * @param source     Key/fields pairs in strictly ascending key order
+     * @param fillFactor Fraction of each BTree node to fill (0, 1]
+     * @return Number of rows loaded
+     * @throws IOException
+     */
+    public int bulkInsert(Iterator<? extends Map.Entry<? extends Number, char[][]>> source, double fillFactor) throws IOException {
+        // PRE: the length of each row in fields matches the expected length
+        IllegalArgumentException badRow[] = new IllegalArgumentException[1];
+        Iterator<Map.Entry<Long, Long>> addresses = new Iterator<Map.Entry<Long, Long>>() {
+            private Row row; // the next row, encoded before the tree asks for it
+            private byte image[];
+            private long lastKey;
+            private boolean started; // a row has been taken, so lastKey is set
+
+            public boolean hasNext() {
+                if (row != null)
+                    return true;
+                if (badRow[0] != null || !source.hasNext())
+                    return false;
+
+                // Stop at a row that is out of order or can't be encoded, so
+                // the load finishes with the rows before it instead of failing
+                // part way
+                Map.Entry<? extends Number, char[][]> entry = source.next();
+                Row next = new Row(entry.getKey().longValue(), entry.getValue());
+                try {
+                    checkKey(next.keyField);
+                    if(started && next.keyField <= lastKey)
+                        throw new IllegalArgumentException("bulk load keys must be strictly ascending: " + next.keyField);
+                    image = next.encode();
+                } catch (IllegalArgumentException e) {
+                    badRow[0] = e;
+                    return false;
+                }
+                row = next;
+                lastKey = next.keyField;
+                started = true;
+                return true;
+            }
+
+            public Map.Entry<Long, Long> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                Row row = this.row;
+                this.row = null;
+                try {
+                    // hasNext has checked the row, so the tree takes its key
+                    // and the field indexes never get an entry for a row the
+                    // load leaves out
+                    long addr = store(image);
+                    addToFieldIndexes(row, addr);
+
+                    // The tree commits as it loads, so keep the free list head in step
+                    if(wal != null)
+                        writeHeader();
+
+                    return new AbstractMap.SimpleEntry<>(row.keyField, addr);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+
+        int loaded;
+        try {
+            loaded = index.bulkLoad(addresses, fillFactor);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        if (badRow[0] != null)
+            throw badRow[0];
+        return loaded;
+    }
+
     /**
      * Prints out the BTree (for debugging)
      * @throws IOException
@@ -160,27 +800,61 @@ public class DBTable {
         index.print();
     }
 
+    /**
+     * Writes an encoded row into a free slot, or into a page with room for
+     * it when rows are kept in slotted pages
+     * 
+     * @param image The encoded row
+     * @return The address of the row
+     * @throws IOException
+     */
+    private long store(byte image[]) throws IOException {
+        if(pages == null){
+            long addr = malloc();
+            rows.write(addr, image, 0, image.length);
+            return addr;
+        }
+
+        lockFree();
+        try {
+            return pages.insert(image);
+        } finally {
+            unlockFree(true);
+        }
+    }
+
     /**
      * Allocates space for the new node
      * @return The address of the new node
      * @throws IOException
      */
     public long malloc() throws IOException {
+        if(pages != null)
+            throw new IllegalStateException("rows are kept in slotted pages, not fixed size slots");
+
         long address = 0;
 
-        if (free == 0) {
-            address = rows.length();
-        } else {
-            address = free;
-            rows.seek(address);
-            free = rows.readLong();
+        lockFree();
+        boolean reused = false;
+        try {
+            if (free == 0) {
+                // Count rows handed out but not written yet
+                address = Math.max(rows.length(), rowsEnd);
+                rowsEnd = address + rowSize();
+            } else {
+                address = free;
+                free = rows.readLong(address);
+                reused = true;
+            }
+        } finally {
+            unlockFree(reused);
         }
 
         return address;
 
     }
 
-    public boolean remove(int key) throws IOException {
+    public boolean remove(long key) throws IOException {
         /*
          * If a row with the key is in the table it is removed and true is returned
          * otherwise false is returned.
@@ -188,18 +862,121 @@ public class DBTable {
          * 
          * If the row is deleted the key must be deleted from the B+Tree
          */
+        Lock keyLatch = lockKey(key, true);
+        try {
+            begin();
+            boolean ok = false;
+            try {
+                boolean removed = removeRow(key);
+                ok = true;
+                return removed;
+            } finally {
+                end(ok);
+            }
+        } finally {
+            unlock(keyLatch);
+        }
+    }
+
+    private boolean removeRow(long key) throws IOException {
+         if(rowCache != null)
+            rowCache.remove(key);
+
+         // A logged change keeps the free list latched until it is in the log,
+         // while an insert may hold it and wait on the BTree latches. Taking it
+         // before the BTree latches keeps the order the same for both.
+         if(concurrent && wal != null)
+            freeLatch.lock();
 
          long addrRemoved = index.remove(key);
 
          // The addresses/key wasn't found. Thus, it was not removed from the tree
          if(addrRemoved == 0)
             return false;
-        
+
+        // The entries of the row in the field indexes are found from its fields
+        if(hasFieldIndexes())
+            removeFromFieldIndexes(new Row(addrRemoved));
+
         free(addrRemoved);
         return true;
     }
 
-    public LinkedList<String> search(int key) throws IOException {
+    /**
+     * Replaces the other fields of a row. In slotted pages a row that grows
+     * moves within its page, or to another page if its page is full, while
+     * its address in the BTree stays the same.
+     * 
+     * @param key    Key of the row
+     * @param fields The new other fields
+     * @return true if the row was found and replaced, false if it is not in the table
+     * @throws IOException
+     */
+    public boolean update(long key, char fields[][]) throws IOException {
+        // PRE: the length of each row in fields matches the expected length
+        // Encoded before the change starts, as in insert
+        checkKey(key);
+        Row newRow = new Row(key, fields);
+        byte image[] = newRow.encode();
+
+        Lock keyLatch = lockKey(key, true);
+        try {
+            begin();
+            boolean ok = false;
+            try {
+                boolean updated = updateRow(newRow, image);
+                ok = true;
+                return updated;
+            } finally {
+                end(ok);
+            }
+        } finally {
+            unlock(keyLatch);
+        }
+    }
+
+    private boolean updateRow(Row newRow, byte image[]) throws IOException {
+        long key = newRow.keyField;
+        long addr = index.search(key);
+        if(addr == 0)
+            return false;
+
+        // The old fields are needed to move the row's entries in the field indexes
+        Row oldRow = hasFieldIndexes() ? new Row(addr) : null;
+
+        if(pages == null){
+            // A fixed size row is written over in place
+            rows.write(addr, image, 0, image.length);
+        } else {
+            lockFree();
+            try {
+                pages.update(addr, image);
+            } finally {
+                unlockFree(true);
+            }
+        }
+
+        // The address stays the same, so only the entries of the fields
+        // that changed move
+        ByteKeyTree indexes[] = fieldIndexes;
+        for(int i=0; oldRow != null && i < indexes.length; i++){
+            if(indexes[i] == null)
+                continue;
+
+            byte oldKey[] = fieldKey(fieldOf(oldRow, i), key);
+            byte newKey[] = fieldKey(fieldOf(newRow, i), key);
+            if(!Arrays.equals(oldKey, newKey)){
+                indexes[i].remove(oldKey);
+                indexes[i].insert(newKey, addr);
+            }
+        }
+
+        if(rowCache != null)
+            rowCache.put(key, fieldsOf(newRow));
+        return true;
+    }
+
+    public LinkedList<String> search(long key) throws IOException {
     /*
      * If a row with the key is found in the table return a list of the other fields
      * in
@@ -210,29 +987,164 @@ public class DBTable {
      */
         LinkedList<String> toReturn = new LinkedList<>();
 
-        // Find the address in the database of the key
-        long dbAddress = index.search(key);
+        Lock keyLatch = lockKey(key, false);
+        try {
+            // The key latch keeps the row from changing, so a cached row is current
+            if (rowCache != null) {
+                LinkedList<String> cached = rowCache.get(key);
+                if (cached != null)
+                    return cached;
+            }
 
-        if(dbAddress == 0)
-            return toReturn;
+            // Find the address in the database of the key
+            long dbAddress = index.search(key);
 
-        Row row = new Row(dbAddress);
+            if(dbAddress == 0)
+                return toReturn;
 
-        // Convert the character fields into strings and add them to the free list
-        for(int i=0; i < row.otherFields.length; i++){
-            String field = "";
-            for(int j=0; j < row.otherFields[i].length; j++){
-                if(row.otherFields[i][j] != 0)
-                    field += row.otherFields[i][j];
-            }
-            toReturn.add(field);
+            LinkedList<String> fields = fieldsOf(new Row(dbAddress));
+            if (rowCache != null)
+                rowCache.put(key, fields);
+            return fields;
+        } finally {
+            unlock(keyLatch);
         }
+    }
 
+    /**
+     * Looks up many keys at once. The BTree resolves all of the keys that
+     * are not in the row cache in one descent (BTree.searchBatch) before the
+     * rows are read.
+     * 
+     * @param keys Keys to look for
+     * @return One list per key, in the same order as keys, holding the other
+     *         fields of the row. The list is empty if the key is not found.
+     * @throws IOException
+     */
+    public LinkedList<LinkedList<String>> searchBatch(int keys[]) throws IOException {
+        long wide[] = new long[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            wide[i] = keys[i];
+        return searchBatch(wide);
+    }
+
+    /**
+     * Looks up many long keys at once, like searchBatch(int[])
+     * 
+     * @param keys Keys to look for
+     * @return One list per key, in the same order as keys, holding the other
+     *         fields of the row. The list is empty if the key is not found.
+     * @throws IOException
+     */
+    public LinkedList<LinkedList<String>> searchBatch(long keys[]) throws IOException {
+        LinkedList<LinkedList<String>> toReturn = new LinkedList<>();
+
+        // Read latch the latches of all the keys, in a fixed order so two
+        // batches can't wait on each other
+        boolean used[] = new boolean[concurrent ? KEY_LATCHES : 0];
+        if (concurrent) {
+            for (long key : keys)
+                used[keyLatchIndex(key)] = true;
+        }
+        for (int i = 0; i < used.length; i++) {
+            if (used[i])
+                keyLatches[i].readLock().lock();
+        }
+
+        try {
+            // Only the keys whose rows are not cached are looked up in the BTree
+            List<LinkedList<String>> found = new ArrayList<>(keys.length);
+            int missed[] = new int[keys.length]; // positions of those keys
+            int numMissed = 0;
+            for (int i = 0; i < keys.length; i++) {
+                found.add(rowCache == null ? null : rowCache.get(keys[i]));
+                if (found.get(i) == null)
+                    missed[numMissed++] = i;
+            }
+
+            long missedKeys[] = new long[numMissed];
+            for (int j = 0; j < numMissed; j++)
+                missedKeys[j] = keys[missed[j]];
+            long dbAddresses[] = searchIndex(missedKeys);
+
+            for (int j = 0; j < numMissed; j++) {
+                if (dbAddresses[j] == 0) {
+                    found.set(missed[j], new LinkedList<String>());
+                } else {
+                    LinkedList<String> fields = fieldsOf(new Row(dbAddresses[j]));
+                    found.set(missed[j], fields);
+                    if (rowCache != null)
+                        rowCache.put(missedKeys[j], fields);
+                }
+            }
+
+            toReturn.addAll(found);
+        } finally {
+            for (int i = 0; i < used.length; i++) {
+                if (used[i])
+                    keyLatches[i].readLock().unlock();
+            }
+        }
 
         return toReturn;
     }
 
-    public LinkedList<LinkedList<String>> rangeSearch(int low, int high) throws IOException {
+    /**
+     * Finds the addresses of keys in the BTree. Keys that all fit in an int
+     * are looked up as ints, which the BTree sorts packed with their
+     * positions.
+     */
+    private long[] searchIndex(long keys[]) throws IOException {
+        int narrow[] = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            if ((int) keys[i] != keys[i])
+                return index.searchBatch(keys);
+            narrow[i] = (int) keys[i];
+        }
+        return index.searchBatch(narrow);
+    }
+
+    /**
+     * Converts the character fields of a row into strings
+     * (without the null characters)
+     * 
+     * @param row The row
+     * @return The other fields of the row
+     */
+    private LinkedList<String> fieldsOf(Row row) {
+        // A row read from the file was decoded when it was read
+        if(row.fields != null)
+            return new LinkedList<>(Arrays.asList(row.fields));
+
+        LinkedList<String> fields = new LinkedList<>();
+        for(int i=0; i < row.otherFields.length; i++)
+            fields.add(fieldOf(row, i));
+
+        return fields;
+    }
+
+    /**
+     * Converts one character field of a row into a string
+     * (without the null characters)
+     * 
+     * @param row     The row
+     * @param fieldNo Position of the field among the other fields
+     * @return The field
+     */
+    private String fieldOf(Row row, int fieldNo) {
+        if(row.fields != null)
+            return row.fields[fieldNo];
+
+        // Leave out the padding
+        StringBuilder field = new StringBuilder(row.otherFields[fieldNo].length);
+        for(char c : row.otherFields[fieldNo]){
+            if(c != 0)
+                field.append(c);
+        }
+        return field.toString();
+    }
+
+    public LinkedList<LinkedList<String>> rangeSearch(long low, long high) throws IOException {
         // PRE: low <= high
         /*
          * For each row with a key that is in the range low to high inclusive a list
@@ -243,30 +1155,271 @@ public class DBTable {
          */
         LinkedList<LinkedList<String>> toReturn = new LinkedList<>();
 
-        // Get a list of DB addresses within the range from the BTree
-        LinkedList<Long> addressesInRange = index.rangeSearch(low, high);
-
-        // For each address found, open the row and add its fields to the a LinkedList.
-        // Then add that linkedlist to another linkedlist that will be returned.
-        for(long address: addressesInRange){
-            Row row = new Row(address);
-            LinkedList<String> rowData = new LinkedList<>();
-            rowData.add(String.valueOf(row.keyField));
-
-            //Convert character fields to strings
-            for(int i=0; i < row.otherFields.length; i++){
-                String field = "";
-                for(int j=0; j < row.otherFields[i].length; j++){
-                    if(row.otherFields[i][j] != 0)
-                        field += row.otherFields[i][j];
-                }
-                rowData.add(field);
+        // Walk the range in the BTree and add the fields of each row to the list
+        try (RowCursor cursor = rangeCursor(low, high)) {
+            while (cursor.hasNext())
+                toReturn.add(cursor.next());
+        }
+
+        return toReturn;
+    }
+
+    /**
+     * Opens a cursor over the rows with keys from low to high inclusive.
+     * Rows are read one at a time as the cursor advances.
+     * 
+     * @param low
+     * @param high
+     * @return A cursor positioned before the first row in the range
+     * @throws IOException
+     */
+    public RowCursor rangeCursor(long low, long high) throws IOException {
+        // PRE: low <= high
+        return new RowCursor(index.rangeCursor(low, high));
+    }
+
+    /**
+     * Returns the rows with keys from low to high inclusive as a parallel
+     * stream. The range is split between subtrees of the BTree and the parts
+     * are read on the threads of the ForkJoinPool the stream runs in (the
+     * common pool unless it is used from a task of another pool). Rows come
+     * in key order to ordered operations such as forEachOrdered, while
+     * reductions combine the parts as they finish. The table should not be
+     * modified while the stream runs, except in concurrent mode.
+     * 
+     * @param low
+     * @param high
+     * @return A parallel stream of the key and other fields of each row
+     */
+    public Stream<LinkedList<String>> rangeStream(long low, long high) {
+        // PRE: low <= high
+        return StreamSupport.stream(index.rangeSpliterator(low, high, this::readRow), true);
+    }
+
+    /**
+     * Reads the row a cursor found for a key. In concurrent mode the row may
+     * have been removed since the cursor passed the key, so the key is
+     * looked up again under its latch.
+     * 
+     * @param key  The key
+     * @param addr Address of the row when the cursor read the leaf
+     * @return The key and other fields, null if the row is gone
+     * @throws IOException
+     */
+    private LinkedList<String> readRow(long key, long addr) throws IOException {
+        if(!concurrent)
+            return rowData(new Row(addr));
+
+        Lock keyLatch = lockKey(key, false);
+        try {
+            addr = index.search(key);
+            return addr == 0 ? null : rowData(new Row(addr));
+        } finally {
+            unlock(keyLatch);
+        }
+    }
+
+    /**
+     * Returns the key and other fields of a row as strings
+     * 
+     * @param row The row
+     * @return The key followed by the other fields
+     */
+    private LinkedList<String> rowData(Row row) {
+        LinkedList<String> rowData = fieldsOf(row);
+        rowData.addFirst(String.valueOf(row.keyField));
+        return rowData;
+    }
+
+    /**
+     * Builds an index over one of the other fields, so searchByField and
+     * rangeByField find rows by that field without reading every row. From
+     * then on insert, remove and update keep the index up to date, and it is
+     * opened along with the table. The table should not be changed while the
+     * index is being built.
+     * 
+     * The entries of every row are made and sorted in memory, then the index
+     * is bulk loaded from them.
+     * 
+     * @param fieldNo Position of the field among the other fields (0 for the first)
+     * @return true if the index was built, false if the field already has one
+     * @throws IOException
+     */
+    public synchronized boolean createIndex(int fieldNo) throws IOException {
+        checkFieldNo(fieldNo);
+        if(fieldIndexes[fieldNo] != null)
+            return false;
+
+        // Log records name their file with one byte
+        if(wal != null && fieldIndexLogId(fieldNo) > Byte.MAX_VALUE)
+            throw new IllegalArgumentException("field " + fieldNo + " can't be indexed while changes are logged");
+
+        List<Map.Entry<byte[], Long>> entries = new ArrayList<>();
+        long low = longKeys ? Long.MIN_VALUE : Integer.MIN_VALUE;
+        long high = longKeys ? Long.MAX_VALUE : Integer.MAX_VALUE;
+        try (BTree.Cursor cursor = index.rangeCursor(low, high)) {
+            while (cursor.next()) {
+                Row row = new Row(cursor.address());
+                entries.add(new AbstractMap.SimpleEntry<>(fieldKey(row.fields[fieldNo], row.keyField), cursor.address()));
             }
+        }
+        entries.sort((a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey()));
+
+        // A logged index is committed as one change, so it never misses rows
+        begin();
+        boolean ok = false;
+        try {
+            // The longest key must fit, whatever the characters of the field
+            int bsize = Math.max(FIELD_INDEX_BLOCK, ByteKeyTree.blockSizeFor(fieldKeyBytes(fieldNo)));
+            ByteKeyTree fieldIndex = new ByteKeyTree(fieldIndexName(fieldNo), bsize, options, wal, fieldIndexLogId(fieldNo));
+            fieldIndex.bulkLoad(entries.iterator());
+
+            ByteKeyTree indexes[] = fieldIndexes.clone();
+            indexes[fieldNo] = fieldIndex;
+            fieldIndexes = indexes;
+            ok = true;
+        } finally {
+            end(ok);
+        }
+
+        return true;
+    }
 
-            toReturn.add(rowData);
+    /**
+     * Finds the rows whose field equals a value with the index of the field
+     * 
+     * @param fieldNo Position of the field among the other fields (0 for the first)
+     * @param value   Value to look for (without null characters)
+     * @return The key and other fields of each row found, in key order
+     * @throws IOException
+     */
+    public LinkedList<LinkedList<String>> searchByField(int fieldNo, String value) throws IOException {
+        return scanField(fieldNo, value, value);
+    }
+
+    /**
+     * Finds the rows whose field is from low to high inclusive (in the order
+     * of String.compareTo) with the index of the field
+     * 
+     * @param fieldNo Position of the field among the other fields (0 for the first)
+     * @param low
+     * @param high
+     * @return The key and other fields of each row found, in the order of the
+     *         field and in key order for rows with the same value
+     * @throws IOException
+     */
+    public LinkedList<LinkedList<String>> rangeByField(int fieldNo, String low, String high) throws IOException {
+        // PRE: low <= high
+        return scanField(fieldNo, low, high);
+    }
+
+    /**
+     * Returns the rows whose field is from low to high inclusive, in the
+     * order of their entries in the index of the field
+     */
+    private LinkedList<LinkedList<String>> scanField(int fieldNo, String low, String high) throws IOException {
+        checkFieldNo(fieldNo);
+        ByteKeyTree fieldIndex = fieldIndexes[fieldNo];
+        if(fieldIndex == null)
+            throw new IllegalStateException("field " + fieldNo + " has no index");
+
+        LinkedList<LinkedList<String>> found = new LinkedList<>();
+        byte first[] = fieldKey(low, Long.MIN_VALUE);
+        byte last[] = fieldKey(high, Long.MAX_VALUE);
+        try (ByteKeyTree.Cursor cursor = fieldIndex.rangeCursor(first, last)) {
+            while (cursor.next()) {
+                byte entry[] = cursor.key();
+                long key = ByteBuffer.wrap(entry, entry.length - 8, 8).getLong() ^ Long.MIN_VALUE;
+                LinkedList<String> row = readRow(key, cursor.value());
+
+                // In concurrent mode the row may have changed since the
+                // entry was read, so check the field it has now
+                if(row == null)
+                    continue;
+                String value = row.get(fieldNo + 1);
+                if(value.compareTo(low) >= 0 && value.compareTo(high) <= 0)
+                    found.add(row);
+            }
         }
 
-        return toReturn;
+        return found;
+    }
+
+    /**
+     * Returns the key of a row in the index of a field: each character of
+     * the field in two bytes, two zero bytes to end it and the key of the
+     * row with its sign bit flipped. The keys sort as memcmp sorts them,
+     * which is by the field in the order of String.compareTo (a field holds
+     * no null characters), then by the key of the row.
+     * 
+     * @param value The field
+     * @param key   Key of the row
+     * @return The key in the field index
+     */
+    private static byte[] fieldKey(String value, long key) {
+        ByteBuffer b = ByteBuffer.allocate(2 * value.length() + 10);
+        for(int i=0; i < value.length(); i++)
+            b.putChar(value.charAt(i));
+        b.putChar((char) 0);
+        b.putLong(key ^ Long.MIN_VALUE);
+        return b.array();
+    }
+
+    /**
+     * Returns the length of the longest key in the index of a field
+     */
+    private int fieldKeyBytes(int fieldNo) {
+        return 2 * otherFieldLengths[fieldNo] + 10;
+    }
+
+    /**
+     * Adds a row to the index of each field that has one
+     */
+    private void addToFieldIndexes(Row row, long addr) throws IOException {
+        ByteKeyTree indexes[] = fieldIndexes;
+        for(int i=0; i < indexes.length; i++){
+            if(indexes[i] != null)
+                indexes[i].insert(fieldKey(fieldOf(row, i), row.keyField), addr);
+        }
+    }
+
+    /**
+     * Removes a row from the index of each field that has one
+     */
+    private void removeFromFieldIndexes(Row row) throws IOException {
+        ByteKeyTree indexes[] = fieldIndexes;
+        for(int i=0; i < indexes.length; i++){
+            if(indexes[i] != null)
+                indexes[i].remove(fieldKey(fieldOf(row, i), row.keyField));
+        }
+    }
+
+    private boolean hasFieldIndexes() {
+        for(ByteKeyTree fieldIndex : fieldIndexes){
+            if(fieldIndex != null)
+                return true;
+        }
+        return false;
+    }
+
+    private void checkFieldNo(int fieldNo) {
+        if(fieldNo < 0 || fieldNo >= numOtherFields)
+            throw new IllegalArgumentException("no field " + fieldNo + " in a table of " + numOtherFields + " other fields");
+    }
+
+    /**
+     * Returns the name of the file that holds the index of a field
+     */
+    private String fieldIndexName(int fieldNo) {
+        return filename + ".idx" + fieldNo;
+    }
+
+    /**
+     * Returns the id of the index of a field in the log, which comes after
+     * the rows file (0) and the tree file (1)
+     */
+    private static int fieldIndexLogId(int fieldNo) {
+        return 2 + fieldNo;
     }
 
     /**
@@ -277,13 +1430,25 @@ public class DBTable {
     }
 
     /**
-     * Prints the rows to standard output in ascending order 
+     * Prints the rows to standard output in ascending order. The rows are
+     * read in parallel only in concurrent mode.
      * @throws IOException
      */
     public void print() throws IOException {
+        print(concurrent);
+    }
+
+    /**
+     * Prints the rows to standard output in ascending order
+     * 
+     * @param parallel true to read and format the rows on the threads of the
+     *                 common ForkJoinPool (see rangeStream), false to read
+     *                 them one at a time on this thread
+     * @throws IOException
+     */
+    public void print(boolean parallel) throws IOException {
         // Print the rows to standard output is ascending order (based on the keys)
         // One row per line
-        LinkedList<LinkedList<String>> data = this.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE);
 
         // Print the table header
           System.out.format("%-8s", "Key");
@@ -293,14 +1458,35 @@ public class DBTable {
 
 
         System.out.println();
-        for(LinkedList<String> row:data){
-              // Print out each field and calculate the padding automatically
-            System.out.format("%-8s", row.pop());
-            for (int i = 0; i < numOtherFields; i++) {
-                System.out.format(" %-" + (otherFieldLengths[i]) + "s ", row.pop());
+
+        if(!parallel){
+            try (RowCursor cursor = rangeCursor(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                while (cursor.hasNext())
+                    System.out.println(formatRow(cursor.next()));
             }
-            System.out.println();
+            return;
+        }
+
+        // The rows are read and formatted in parallel, then printed in key order
+        try {
+            rangeStream(Long.MIN_VALUE, Long.MAX_VALUE)
+                    .map(this::formatRow)
+                    .forEachOrdered(System.out::println);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Lays out the key and other fields of a row as one line of print
+     */
+    private String formatRow(LinkedList<String> row) {
+        // Print out each field and calculate the padding automatically
+        StringBuilder line = new StringBuilder(String.format("%-8s", row.pop()));
+        for (int i = 0; i < numOtherFields; i++) {
+            line.append(String.format(" %-" + (otherFieldLengths[i]) + "s ", row.pop()));
         }
+        return line.toString();
     }
 
    
@@ -311,10 +1497,19 @@ public class DBTable {
      * @throws IOException
      */
     private void free(long addr) throws IOException {
-        rows.seek(addr);
-        rows.writeLong(free);
-        
-        free = addr;
+        lockFree();
+        try {
+            if(pages != null){
+                pages.remove(addr);
+                return;
+            }
+
+            rows.writeLong(addr, free);
+
+            free = addr;
+        } finally {
+            unlockFree(true);
+        }
     }
 
     /**
@@ -322,6 +1517,13 @@ public class DBTable {
      * @throws IOException
      */
     public void printFreeList() throws IOException {
+        if(pages != null){
+            System.out.println("DB Free Space (page: bytes): ");
+            pages.print();
+            System.out.println();
+            return;
+        }
+
         System.out.println("DB Free List: ");
         printFreeListRec(free);
         System.out.println();
@@ -333,23 +1535,66 @@ public class DBTable {
         if (addr == 0) {
             return;
         } else {
-            rows.seek(addr);
-
             System.out.print(addr + ", ");
-            printFreeListRec(rows.readLong());
+            printFreeListRec(rows.readLong(addr));
 
         }
     }
 
+    /**
+     * Returns how many reads of BTree nodes found the node in the page cache
+     */
+    public long getCacheHits() {
+        return index.getCacheHits();
+    }
+
+    /**
+     * Returns how many reads of BTree nodes had to go to the file
+     */
+    public long getCacheMisses() {
+        return index.getCacheMisses();
+    }
+
+    /**
+     * Returns how many searches found their row in the row cache
+     * (0 when rows are not cached)
+     */
+    public long getRowCacheHits() {
+        return rowCache == null ? 0 : rowCache.getHits();
+    }
+
+    /**
+     * Returns how many searches did not find their row in the row cache
+     * (0 when rows are not cached)
+     */
+    public long getRowCacheMisses() {
+        return rowCache == null ? 0 : rowCache.getMisses();
+    }
+
+    /**
+     * Returns the latency and throughput of the commits made to this table,
+     * or null when changes are not logged
+     */
+    public CommitStats getCommitStats() {
+        return wal == null ? null : wal.getStats();
+    }
+
     public void close() throws IOException {
         // close the DBTable. The table should not be used after it is closed
-        rows.seek(0);
-        rows.writeInt(numOtherFields);
+        begin();
+        rows.writeInt(0, fieldsHeader());
         for(int i=0; i < otherFieldLengths.length; i++){
-            rows.writeInt(otherFieldLengths[i]);
+            rows.writeInt(4 + 4 * i, otherFieldLengths[i]);
         }
 
-        rows.writeLong(this.free);
+        rows.writeLong(freePos(), this.free);
+        headerFree = free;
+        end(true);
+
+        for(ByteKeyTree fieldIndex : fieldIndexes){
+            if(fieldIndex != null)
+                fieldIndex.close();
+        }
 
         index.close();
         rows.close();
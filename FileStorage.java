@@ -0,0 +1,94 @@
+/**
+ * FileStorage.java
+ * Storage backed by a FileChannel. Every access is a positional read or
+ * write (pread/pwrite), so there is no shared file pointer to seek first:
+ * each access is one system call and threads can read the file at the
+ * same time without a lock. As with any FileChannel, interrupting a thread
+ * while it is reading or writing closes the file.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class FileStorage implements Storage {
+    private FileChannel channel;
+
+    public FileStorage(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+    }
+
+    public void read(long pos, byte dst[], int off, int len) throws IOException {
+        readFully(ByteBuffer.wrap(dst, off, len), pos);
+    }
+
+    public void write(long pos, byte src[], int off, int len) throws IOException {
+        writeFully(ByteBuffer.wrap(src, off, len), pos);
+    }
+
+    public int readInt(long pos) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4);
+        readFully(b, pos);
+        return b.getInt(0);
+    }
+
+    public long readLong(long pos) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        readFully(b, pos);
+        return b.getLong(0);
+    }
+
+    public char readChar(long pos) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(2);
+        readFully(b, pos);
+        return b.getChar(0);
+    }
+
+    public void writeInt(long pos, int v) throws IOException {
+        writeFully(ByteBuffer.allocate(4).putInt(0, v), pos);
+    }
+
+    public void writeLong(long pos, long v) throws IOException {
+        writeFully(ByteBuffer.allocate(8).putLong(0, v), pos);
+    }
+
+    public void writeChar(long pos, char v) throws IOException {
+        writeFully(ByteBuffer.allocate(2).putChar(0, v), pos);
+    }
+
+    public long length() throws IOException {
+        return channel.size();
+    }
+
+    public void force() throws IOException {
+        channel.force(true);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Fills dst from the file starting at pos. A read can return fewer bytes
+     * than asked for, so it is repeated until the buffer is full.
+     *
+     * @throws EOFException if the file ends first
+     */
+    private void readFully(ByteBuffer dst, long pos) throws IOException {
+        int start = dst.position();
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, pos + dst.position() - start) < 0)
+                throw new EOFException();
+        }
+    }
+
+    private void writeFully(ByteBuffer src, long pos) throws IOException {
+        int start = src.position();
+        while (src.hasRemaining())
+            channel.write(src, pos + src.position() - start);
+    }
+}
@@ -0,0 +1,125 @@
+
+/**
+ * KeyCodec.java
+ * Turns keys of another type into the long keys of a BTree made with
+ * StorageOptions.longKeys, and back. The longs sort in the same order as
+ * the keys they stand for, so range searches and cursors over the encoded
+ * keys return the keys in their own order.
+ *
+ * LONG      - longs as they are.
+ * composite - several signed parts of fixed bit widths (64 bits in all at
+ *             most), ordered by the first part, then the second and so on.
+ * BYTES     - byte arrays of up to 7 bytes, ordered as memcmp orders them
+ *             (unsigned bytes, a prefix before the longer arrays).
+ *
+ * Byte arrays longer than 7 bytes don't fit in a long; a ByteKeyTree keeps
+ * them whole, in the same order.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+public interface KeyCodec<K> {
+    // Longest byte array BYTES can encode, the last byte holds the length
+    int MAX_BYTES = 7;
+
+    KeyCodec<Long> LONG = new KeyCodec<Long>() {
+        public long encode(Long key) {
+            return key;
+        }
+
+        public Long decode(long key) {
+            return key;
+        }
+    };
+
+    KeyCodec<byte[]> BYTES = new KeyCodec<byte[]>() {
+        public long encode(byte key[]) {
+            if (key.length > MAX_BYTES)
+                throw new IllegalArgumentException("key is longer than " + MAX_BYTES + " bytes: " + key.length);
+
+            // Bytes from the top down, zeros after them, then the length, so a
+            // prefix sorts before the arrays that start with it
+            long packed = 0;
+            for (int i = 0; i < MAX_BYTES; i++)
+                packed = packed << 8 | (i < key.length ? key[i] & 0xff : 0);
+            packed = packed << 8 | key.length;
+
+            // Longs compare signed, so flip the top bit to keep the unsigned order
+            return packed ^ Long.MIN_VALUE;
+        }
+
+        public byte[] decode(long key) {
+            long packed = key ^ Long.MIN_VALUE;
+            byte bytes[] = new byte[(int) (packed & 0xff)];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) (packed >>> (56 - 8 * i));
+            return bytes;
+        }
+    };
+
+    /**
+     * Returns the long that stands for the key
+     */
+    long encode(K key);
+
+    /**
+     * Returns the key a long made by encode stands for
+     */
+    K decode(long key);
+
+    /**
+     * Returns a codec for keys made of signed parts, the first part taking
+     * the highest bits
+     *
+     * @param bits Width of each part in bits, 64 in all at most
+     * @return The codec, which throws an IllegalArgumentException for keys
+     *         with the wrong number of parts or a part too wide for its bits
+     */
+    static KeyCodec<long[]> composite(int... bits) {
+        int total = 0;
+        for (int b : bits) {
+            if (b < 1)
+                throw new IllegalArgumentException("part widths must be positive: " + b);
+            total += b;
+        }
+        if (bits.length == 0 || total > 64)
+            throw new IllegalArgumentException("parts must take from 1 to 64 bits: " + total);
+
+        int widths[] = bits.clone();
+        return new KeyCodec<long[]>() {
+            public long encode(long parts[]) {
+                if (parts.length != widths.length)
+                    throw new IllegalArgumentException("key must have " + widths.length + " parts: " + parts.length);
+
+                long packed = 0;
+                int shift = 64;
+                for (int i = 0; i < widths.length; i++) {
+                    int b = widths[i];
+                    shift -= b;
+
+                    // The part must survive being cut to b bits and sign extended
+                    if (parts[i] << (64 - b) >> (64 - b) != parts[i])
+                        throw new IllegalArgumentException("part " + i + " does not fit in " + b + " bits: " + parts[i]);
+
+                    // Flipping the sign bit of the part makes it sort unsigned
+                    long mask = b == 64 ? -1 : (1L << b) - 1;
+                    packed |= ((parts[i] ^ (1L << (b - 1))) & mask) << shift;
+                }
+                return packed ^ Long.MIN_VALUE;
+            }
+
+            public long[] decode(long key) {
+                long packed = key ^ Long.MIN_VALUE;
+                long parts[] = new long[widths.length];
+                int used = 0;
+                for (int i = 0; i < widths.length; i++) {
+                    int b = widths[i];
+                    long part = packed << used >>> (64 - b);
+                    parts[i] = (part ^ (1L << (b - 1))) << (64 - b) >> (64 - b);
+                    used += b;
+                }
+                return parts;
+            }
+        };
+    }
+}
@@ -0,0 +1,175 @@
+
+/**
+ * LoggedStorage.java
+ * A data file whose writes go through a WriteAheadLog. Each write is
+ * recorded in the log and applied to an in-memory copy of the pages it
+ * touches. Reads see those pages first. The data file itself is only
+ * written when the log takes a checkpoint, so it never holds part of a
+ * change that has not been committed.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class LoggedStorage implements Storage {
+    private static final int PAGE = 512; // granularity of the held pages
+
+    private WriteAheadLog log;
+    private int fileId;
+    private Storage data;
+    private ConcurrentHashMap<Long, byte[]> held = new ConcurrentHashMap<>(); // page number -> page
+    private volatile long length;
+
+    LoggedStorage(WriteAheadLog log, int fileId, Storage data) throws IOException {
+        this.log = log;
+        this.fileId = fileId;
+        this.data = data;
+        this.length = data.length();
+    }
+
+    /**
+     * Reads without a lock: the held pages are a concurrent map, and a page
+     * that is not held is read from the data file directly. Callers latch
+     * the nodes and rows they read, so no write to the same bytes runs at
+     * the same time.
+     */
+    public void read(long pos, byte dst[], int off, int len) throws IOException {
+        while (len > 0) {
+            long pageNo = pos / PAGE;
+            int pageOff = (int) (pos % PAGE);
+            int n = Math.min(len, PAGE - pageOff);
+
+            byte page[] = held.get(pageNo);
+            if (page != null)
+                System.arraycopy(page, pageOff, dst, off, n);
+            else
+                data.read(pos, dst, off, n);
+
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void write(long pos, byte src[], int off, int len) throws IOException {
+        log.record(fileId, pos, src, off, len);
+        grow(pos + len);
+
+        while (len > 0) {
+            long pageNo = pos / PAGE;
+            int pageOff = (int) (pos % PAGE);
+            int n = Math.min(len, PAGE - pageOff);
+
+            System.arraycopy(src, off, hold(pageNo), pageOff, n);
+
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public int readInt(long pos) throws IOException {
+        byte b[] = new byte[4];
+        read(pos, b, 0, 4);
+        return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+    }
+
+    public long readLong(long pos) throws IOException {
+        return ((long) readInt(pos) << 32) | (readInt(pos + 4) & 0xffffffffL);
+    }
+
+    public char readChar(long pos) throws IOException {
+        byte b[] = new byte[2];
+        read(pos, b, 0, 2);
+        return (char) (((b[0] & 0xff) << 8) | (b[1] & 0xff));
+    }
+
+    public void writeInt(long pos, int v) throws IOException {
+        byte b[] = { (byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v };
+        write(pos, b, 0, 4);
+    }
+
+    public void writeLong(long pos, long v) throws IOException {
+        byte b[] = new byte[8];
+        for (int i = 0; i < 8; i++)
+            b[i] = (byte) (v >>> (56 - 8 * i));
+        write(pos, b, 0, 8);
+    }
+
+    public void writeChar(long pos, char v) throws IOException {
+        byte b[] = { (byte) (v >>> 8), (byte) v };
+        write(pos, b, 0, 2);
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public void force() throws IOException {
+        data.force();
+    }
+
+    /**
+     * Takes a checkpoint (so the data file is complete) and closes the data file
+     */
+    public void close() throws IOException {
+        log.detach(this);
+        data.close();
+    }
+
+    /**
+     * Writes the held pages to the data file and forces it. Called by the log
+     * during a checkpoint.
+     */
+    synchronized void writeBack() throws IOException {
+        for (Map.Entry<Long, byte[]> entry : held.entrySet()) {
+            long start = entry.getKey() * PAGE;
+
+            // Don't extend the data file past the bytes in use. A page is
+            // only dropped once it is in the data file, so a read never
+            // misses it.
+            int n = (int) Math.min(PAGE, length - start);
+            data.write(start, entry.getValue(), 0, n);
+            held.remove(entry.getKey());
+        }
+        data.force();
+    }
+
+    /**
+     * Returns the memory used by held pages
+     */
+    long heldBytes() {
+        return (long) held.size() * PAGE;
+    }
+
+    /**
+     * Records that the storage now extends to end
+     */
+    private synchronized void grow(long end) {
+        if (end > length)
+            length = end;
+    }
+
+    /**
+     * Returns the held copy of a page, reading it from the data file the
+     * first time it is written. Synchronized so two writes to one page
+     * can't each make a copy of it.
+     */
+    private synchronized byte[] hold(long pageNo) throws IOException {
+        byte page[] = held.get(pageNo);
+
+        if (page == null) {
+            page = new byte[PAGE];
+            long start = pageNo * PAGE;
+            int n = (int) Math.max(0, Math.min(PAGE, data.length() - start));
+            if (n > 0)
+                data.read(start, page, 0, n);
+            held.put(pageNo, page);
+        }
+
+        return page;
+    }
+}
@@ -0,0 +1,62 @@
+
+/**
+ * LongList.java
+ * A growable list of primitive longs backed by a single array. Used to
+ * collect row addresses without boxing each one.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+import java.util.Arrays;
+
+public class LongList {
+    private long values[];
+    private int size;
+
+    public LongList() {
+        this(16);
+    }
+
+    public LongList(int capacity) {
+        values = new long[Math.max(1, capacity)];
+    }
+
+    /**
+     * Appends a value, doubling the backing array when it is full
+     */
+    public void add(long value) {
+        if (size == values.length)
+            values = Arrays.copyOf(values, size * 2);
+
+        values[size++] = value;
+    }
+
+    public long get(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("index " + i + ", size " + size);
+
+        return values[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Empties the list but keeps the backing array for reuse
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns a copy of the values in the list
+     */
+    public long[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
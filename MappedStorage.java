@@ -0,0 +1,193 @@
+
+/**
+ * MappedStorage.java
+ * Storage backed by a memory mapped file. The file is mapped in fixed size
+ * segments and a new segment is mapped whenever a write goes past the end of
+ * the mapped region, so reads and writes are plain loads and stores on the
+ * mapping instead of system calls.
+ *
+ * Mapping a segment extends the file to the end of that segment, so the
+ * length in use is tracked separately and the file is cut back to it on close.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class MappedStorage implements Storage {
+    private RandomAccessFile f;
+    private FileChannel channel;
+    private int segmentSize;
+    private volatile MappedByteBuffer segments[]; // replaced, never changed, when a segment is mapped
+    private volatile long length; // bytes in use, the file itself may be longer
+
+    public MappedStorage(File file, int segmentSize) throws IOException {
+        this.f = new RandomAccessFile(file, "rw");
+        this.channel = f.getChannel();
+        this.segmentSize = segmentSize;
+        this.segments = new MappedByteBuffer[0];
+        this.length = channel.size();
+    }
+
+    public void read(long pos, byte dst[], int off, int len) throws IOException {
+        // Copy segment by segment in case the range crosses a segment boundary
+        while (len > 0) {
+            int segOff = offset(pos);
+            int n = Math.min(len, segmentSize - segOff);
+            segment(pos).get(segOff, dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void write(long pos, byte src[], int off, int len) throws IOException {
+        grow(pos + len);
+        while (len > 0) {
+            int segOff = offset(pos);
+            int n = Math.min(len, segmentSize - segOff);
+            segment(pos).put(segOff, src, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public int readInt(long pos) throws IOException {
+        if (fits(pos, 4))
+            return segment(pos).getInt(offset(pos));
+
+        byte b[] = new byte[4];
+        read(pos, b, 0, 4);
+        return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+    }
+
+    public long readLong(long pos) throws IOException {
+        if (fits(pos, 8))
+            return segment(pos).getLong(offset(pos));
+
+        return ((long) readInt(pos) << 32) | (readInt(pos + 4) & 0xffffffffL);
+    }
+
+    public char readChar(long pos) throws IOException {
+        if (fits(pos, 2))
+            return segment(pos).getChar(offset(pos));
+
+        byte b[] = new byte[2];
+        read(pos, b, 0, 2);
+        return (char) (((b[0] & 0xff) << 8) | (b[1] & 0xff));
+    }
+
+    public void writeInt(long pos, int v) throws IOException {
+        if (fits(pos, 4)) {
+            grow(pos + 4);
+            segment(pos).putInt(offset(pos), v);
+            return;
+        }
+
+        byte b[] = { (byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v };
+        write(pos, b, 0, 4);
+    }
+
+    public void writeLong(long pos, long v) throws IOException {
+        if (fits(pos, 8)) {
+            grow(pos + 8);
+            segment(pos).putLong(offset(pos), v);
+            return;
+        }
+
+        writeInt(pos, (int) (v >>> 32));
+        writeInt(pos + 4, (int) v);
+    }
+
+    public void writeChar(long pos, char v) throws IOException {
+        if (fits(pos, 2)) {
+            grow(pos + 2);
+            segment(pos).putChar(offset(pos), v);
+            return;
+        }
+
+        byte b[] = { (byte) (v >>> 8), (byte) v };
+        write(pos, b, 0, 2);
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public void force() throws IOException {
+        for (MappedByteBuffer segment : segments) // the array read once, as a snapshot
+            segment.force();
+    }
+
+    public void close() throws IOException {
+        force();
+
+        // Drop the unused tail of the last segment
+        channel.truncate(length);
+        channel.close();
+        f.close();
+    }
+
+    /**
+     * Records that the storage now extends to end
+     */
+    private synchronized void grow(long end) {
+        if (end > length)
+            length = end;
+    }
+
+    /**
+     * Returns true if len bytes at pos lie inside one segment
+     */
+    private boolean fits(long pos, int len) {
+        return offset(pos) + len <= segmentSize;
+    }
+
+    private int offset(long pos) {
+        return (int) (pos % segmentSize);
+    }
+
+    /**
+     * Returns the segment holding pos, mapping segments up to it if needed.
+     * The segments are read from a volatile array without a lock; only
+     * mapping new segments is synchronized, and it publishes a new array so
+     * readers never see one being changed.
+     *
+     * @param pos Position in the file
+     * @return The mapped segment
+     * @throws IOException
+     */
+    private MappedByteBuffer segment(long pos) throws IOException {
+        int index = (int) (pos / segmentSize);
+        MappedByteBuffer current[] = segments;
+
+        if (index < current.length)
+            return current[index];
+
+        return map(index);
+    }
+
+    /**
+     * Maps segments up to index and publishes them
+     */
+    private synchronized MappedByteBuffer map(int index) throws IOException {
+        MappedByteBuffer current[] = segments;
+
+        // Another thread may have mapped it while this one waited
+        if (index < current.length)
+            return current[index];
+
+        MappedByteBuffer grown[] = Arrays.copyOf(current, index + 1);
+        for (int i = current.length; i <= index; i++) {
+            long start = (long) i * segmentSize;
+            grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, segmentSize);
+        }
+        segments = grown;
+
+        return grown[index];
+    }
+}
@@ -0,0 +1,378 @@
+/**
+ * PageCache.java
+ * A bounded cache of fixed size pages that sits in front of a
+ * Storage file. Pages are keyed by their address in the file and are
+ * evicted with the CLOCK (second chance) algorithm. Writes are held in the
+ * cache as dirty pages and are written back when the page is evicted or
+ * when the cache is flushed.
+ *
+ * A cache made for concurrent use is split into stripes, each with its own
+ * frames, clock hand and lock, and every page belongs to one stripe. A
+ * page that is not cached is read from the file without holding the lock
+ * of its stripe, so threads that miss read the file at the same time.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.HashSet;
+
+public class PageCache {
+    // Stripes of a cache made for concurrent use (a power of two)
+    private static final int STRIPES = 16;
+
+    private Storage f;
+    private int pageSize;
+    private Stripe stripes[];
+    private long length; // length of the file including unwritten pages, guarded by this
+    private boolean writeThrough; // write pages to the file as soon as they change
+    private volatile boolean readingAhead = true; // cleared when the file is about to close
+
+    private class Frame {
+        private long address;
+        private byte data[];
+        private boolean referenced; // second chance bit
+        private boolean dirty; // page differs from the file
+        private boolean used; // frame holds a page
+
+        private Frame() {
+            data = new byte[pageSize];
+        }
+    }
+
+    /**
+     * The frames of some of the pages, guarded by the stripe's lock
+     */
+    private class Stripe {
+        private Frame frames[];
+        private HashMap<Long, Frame> table = new HashMap<>(); // address -> frame holding the page
+        private int hand; // position of the clock hand
+        private long hits;
+        private long misses;
+        private HashSet<Long> prefetching = new HashSet<>(); // pages being read ahead
+        private long fileWrites; // pages written to the file, so a read can tell it raced one
+
+        private Stripe(int numFrames) {
+            frames = new Frame[numFrames];
+            for (int i = 0; i < frames.length; i++)
+                frames[i] = new Frame();
+        }
+
+        /**
+         * Finds a frame for the page at addr, evicting the first page the clock
+         * hand finds without its referenced bit set. Dirty victims are written back.
+         *
+         * @param addr Address of the page that will be stored in the frame
+         * @return The frame now assigned to addr
+         * @throws IOException
+         */
+        private Frame allocate(long addr) throws IOException {
+            Frame victim;
+
+            while (true) {
+                victim = frames[hand];
+                hand = (hand + 1) % frames.length;
+
+                if (!victim.used)
+                    break;
+
+                // Give recently used pages a second chance
+                if (victim.referenced) {
+                    victim.referenced = false;
+                    continue;
+                }
+
+                if (victim.dirty)
+                    writeToFile(victim.address, victim.data);
+
+                table.remove(victim.address);
+                break;
+            }
+
+            victim.address = addr;
+            victim.used = true;
+            victim.dirty = false;
+            victim.referenced = false;
+            table.put(addr, victim);
+
+            return victim;
+        }
+
+        private void writeToFile(long addr, byte src[]) throws IOException {
+            fileWrites++;
+            f.write(addr, src, 0, pageSize);
+        }
+    }
+
+    /**
+     * Creates a cache over the file for use by one thread at a time
+     *
+     * @param f           File the pages are stored in
+     * @param pageSize    Size of each page in bytes
+     * @param budgetBytes Memory the cache may use for pages. A budget smaller
+     *                    than one page turns caching off
+     * @param writeThrough true to write changed pages to the file right away
+     *                     instead of when they are evicted
+     * @throws IOException
+     */
+    public PageCache(Storage f, int pageSize, long budgetBytes, boolean writeThrough) throws IOException {
+        this(f, pageSize, budgetBytes, writeThrough, false);
+    }
+
+    /**
+     * Creates a cache over the file
+     *
+     * @param f           File the pages are stored in
+     * @param pageSize    Size of each page in bytes
+     * @param budgetBytes Memory the cache may use for pages. A budget smaller
+     *                    than one page turns caching off
+     * @param writeThrough true to write changed pages to the file right away
+     *                     instead of when they are evicted
+     * @param concurrent  true to split the cache into stripes for use by
+     *                    several threads at once
+     * @throws IOException
+     */
+    public PageCache(Storage f, int pageSize, long budgetBytes, boolean writeThrough, boolean concurrent) throws IOException {
+        this.f = f;
+        this.writeThrough = writeThrough;
+        this.pageSize = pageSize;
+        this.length = f.length();
+
+        // Every stripe gets at least one frame
+        int numFrames = (int) Math.min(Integer.MAX_VALUE, budgetBytes / pageSize);
+        int numStripes = concurrent ? STRIPES : 1;
+        while (numStripes > 1 && numFrames < numStripes)
+            numStripes /= 2;
+
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++)
+            stripes[i] = new Stripe(numFrames / numStripes + (i < numFrames % numStripes ? 1 : 0));
+    }
+
+    /**
+     * Copies the page at addr into dst
+     *
+     * @param addr Address of the page
+     * @param dst  Buffer of at least pageSize bytes
+     * @throws IOException
+     */
+    public void read(long addr, byte dst[]) throws IOException {
+        Stripe stripe = stripeOf(addr);
+        if (stripe.frames.length == 0) {
+            readFromFile(addr, dst);
+            return;
+        }
+
+        boolean missed = false;
+        while (true) {
+            long seen;
+            synchronized (stripe) {
+                Frame frame = stripe.table.get(addr);
+                if (frame != null) {
+                    if (!missed)
+                        stripe.hits++;
+                    frame.referenced = true;
+                    System.arraycopy(frame.data, 0, dst, 0, pageSize);
+                    return;
+                }
+
+                if (!missed)
+                    stripe.misses++;
+                missed = true;
+                seen = stripe.fileWrites;
+            }
+
+            // Read outside the lock so other pages can be read at the same time
+            readFromFile(addr, dst);
+
+            synchronized (stripe) {
+                // A page written to the file during the read may have been
+                // read part old and part new, so it is read again
+                if (stripe.fileWrites != seen)
+                    continue;
+
+                // Another thread cached the page first, its copy is the newer one
+                Frame frame = stripe.table.get(addr);
+                if (frame == null) {
+                    frame = stripe.allocate(addr);
+                    System.arraycopy(dst, 0, frame.data, 0, pageSize);
+                } else {
+                    System.arraycopy(frame.data, 0, dst, 0, pageSize);
+                }
+                frame.referenced = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts reading the page at addr into the cache on a read-ahead thread,
+     * so a later read finds it there. Nothing is done if the page is cached
+     * already or there is no cache. A page written to the file while it was
+     * being read ahead is not kept, since the copy read may be older.
+     *
+     * @param addr Address of the page
+     */
+    public void prefetch(long addr) {
+        if (!readingAhead)
+            return;
+
+        Stripe stripe = stripeOf(addr);
+        synchronized (stripe) {
+            if (stripe.frames.length == 0 || stripe.table.containsKey(addr) || !stripe.prefetching.add(addr))
+                return;
+        }
+
+        ReadAhead.execute(() -> load(stripe, addr));
+    }
+
+    private void load(Stripe stripe, long addr) {
+        long seen;
+        synchronized (stripe) {
+            seen = stripe.fileWrites;
+        }
+
+        try {
+            // The file may be closing, the read would only fail
+            if (!readingAhead)
+                return;
+
+            // Read outside the lock so other pages can be read at the same time
+            byte data[] = new byte[pageSize];
+            readFromFile(addr, data);
+
+            synchronized (stripe) {
+                if (stripe.table.containsKey(addr) || stripe.fileWrites != seen)
+                    return;
+
+                // Left unreferenced, so a page the scan never gets to is evicted first
+                Frame frame = stripe.allocate(addr);
+                System.arraycopy(data, 0, frame.data, 0, pageSize);
+            }
+        } catch (IOException e) {
+            // Only a chance to read early is lost. A read or flush that runs
+            // into the same trouble reports it
+        } finally {
+            synchronized (stripe) {
+                stripe.prefetching.remove(addr);
+                stripe.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stops reading pages ahead and waits for the reads already started, so
+     * the file can be closed without a read-ahead thread still using it
+     *
+     * @throws InterruptedIOException
+     */
+    public void stopReadAhead() throws InterruptedIOException {
+        readingAhead = false;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                try {
+                    while (!stripe.prefetching.isEmpty())
+                        stripe.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the page at addr with src. The page is written to the file
+     * when it is evicted or the cache is flushed (or right away when the
+     * cache is write-through)
+     *
+     * @param addr Address of the page
+     * @param src  Buffer of at least pageSize bytes
+     * @throws IOException
+     */
+    public void write(long addr, byte src[]) throws IOException {
+        synchronized (this) {
+            length = Math.max(length, addr + pageSize);
+        }
+
+        Stripe stripe = stripeOf(addr);
+        synchronized (stripe) {
+            if (stripe.frames.length == 0 || writeThrough)
+                stripe.writeToFile(addr, src);
+
+            if (stripe.frames.length == 0)
+                return;
+
+            Frame frame = stripe.table.get(addr);
+
+            // The whole page is replaced, so a missing page does not need to be read
+            if (frame == null)
+                frame = stripe.allocate(addr);
+
+            System.arraycopy(src, 0, frame.data, 0, pageSize);
+            frame.referenced = true;
+            frame.dirty = !writeThrough;
+        }
+    }
+
+    /**
+     * Returns the length of the file, counting pages that only exist in the cache
+     */
+    public synchronized long length() {
+        return length;
+    }
+
+    /**
+     * Writes every dirty page back to the file
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Frame frame : stripe.frames) {
+                    if (frame.used && frame.dirty) {
+                        stripe.writeToFile(frame.address, frame.data);
+                        frame.dirty = false;
+                    }
+                }
+            }
+        }
+    }
+
+    public long getHits() {
+        long hits = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        }
+        return hits;
+    }
+
+    public long getMisses() {
+        long misses = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                misses += stripe.misses;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * Returns the stripe the page at addr belongs to
+     */
+    private Stripe stripeOf(long addr) {
+        if (stripes.length == 1)
+            return stripes[0];
+
+        // Pages are a node apart, so mix the bits before taking the stripe
+        long h = (addr / pageSize) * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h >>> 32) & (stripes.length - 1)];
+    }
+
+    private void readFromFile(long addr, byte dst[]) throws IOException {
+        f.read(addr, dst, 0, pageSize);
+    }
+}
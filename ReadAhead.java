@@ -0,0 +1,43 @@
+
+/**
+ * ReadAhead.java
+ * A small pool of daemon threads that reads BTree pages and table rows
+ * ahead of a scan, so several reads are waiting on the disk at once and
+ * the scan finds the data in memory when it gets there.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ReadAhead {
+    // Number of reads that may be in progress at once
+    public static final int THREADS = 4;
+
+    private static final ExecutorService pool = Executors.newFixedThreadPool(THREADS, r -> {
+        // Reads left over when the program ends don't keep it running
+        Thread thread = new Thread(r, "read-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ReadAhead() {
+    }
+
+    /**
+     * Starts a read whose result is wanted later
+     */
+    public static <T> Future<T> submit(Callable<T> read) {
+        return pool.submit(read);
+    }
+
+    /**
+     * Starts a read that leaves its result behind (in a cache)
+     */
+    public static void execute(Runnable read) {
+        pool.execute(read);
+    }
+}
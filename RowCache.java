@@ -0,0 +1,83 @@
+
+/**
+ * RowCache.java
+ * A bounded cache of table rows keyed by their primary key. When the cache
+ * is full the least recently used row is evicted. Only rows that are in the
+ * table are cached, so a key that is not found is always looked up again.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+public class RowCache {
+    private int capacity; // most rows held at once
+    private LinkedHashMap<Long, String[]> rows; // key -> other fields, least recently used first
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates an empty cache
+     *
+     * @param capacity Number of rows the cache may hold
+     */
+    public RowCache(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+        this.capacity = capacity;
+        this.rows = new LinkedHashMap<Long, String[]>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long, String[]> eldest) {
+                return size() > RowCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the other fields of the row with the key
+     *
+     * @param key The key
+     * @return A new list of the fields, null if the row is not cached
+     */
+    public synchronized LinkedList<String> get(long key) {
+        String fields[] = rows.get(key);
+
+        if (fields == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return new LinkedList<>(Arrays.asList(fields));
+    }
+
+    /**
+     * Caches the other fields of the row with the key, replacing any row
+     * cached for it
+     *
+     * @param key    The key
+     * @param fields The fields (copied)
+     */
+    public synchronized void put(long key, List<String> fields) {
+        rows.put(key, fields.toArray(new String[0]));
+    }
+
+    /**
+     * Drops the row with the key, if it is cached
+     */
+    public synchronized void remove(long key) {
+        rows.remove(key);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,208 @@
+
+/**
+ * RowEncoding.java
+ * How the character fields of a DBTable row are stored in the rows file.
+ * Every field takes the same number of bytes in every row, so rows keep a
+ * fixed size. A field is encoded from a buffer of zeros, so the padding
+ * after a short field is zeros, and null characters are left out when a
+ * field is decoded. Tables kept in slotted pages (StorageOptions.rowPageBytes)
+ * store each field without its padding instead, through toBytes and
+ * fromBytes.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+public enum RowEncoding {
+    /**
+     * Two bytes (UTF-16) per character, padded with null characters
+     */
+    UTF16 {
+        public int fieldBytes(int length) {
+            return 2 * length;
+        }
+
+        public void encode(ByteBuffer buf, char field[], int length) {
+            buf.asCharBuffer().put(field, 0, Math.min(field.length, length));
+            buf.position(buf.position() + fieldBytes(length));
+        }
+
+        public String decode(ByteBuffer buf, int length) {
+            CharBuffer chars = buf.asCharBuffer();
+            buf.position(buf.position() + fieldBytes(length));
+
+            // Leave out the padding
+            int n = length;
+            while (n > 0 && chars.get(n - 1) == 0)
+                n--;
+            char field[] = new char[n];
+            chars.get(field);
+            return withoutNulls(new String(field));
+        }
+
+        public byte[] toBytes(char field[], int length) {
+            int n = unpadded(field, length);
+            ByteBuffer buf = ByteBuffer.allocate(2 * n);
+            buf.asCharBuffer().put(field, 0, n);
+            return buf.array();
+        }
+
+        public String fromBytes(ByteBuffer buf, int n) {
+            char field[] = new char[n / 2];
+            buf.asCharBuffer().get(field);
+            buf.position(buf.position() + n);
+            return withoutNulls(new String(field));
+        }
+    },
+
+    /**
+     * One byte (ISO 8859-1) per character, padded with zeros. Only
+     * characters below 256 can be stored, which covers ASCII.
+     */
+    LATIN1 {
+        public int fieldBytes(int length) {
+            return length;
+        }
+
+        public void encode(ByteBuffer buf, char field[], int length) {
+            int n = Math.min(field.length, length);
+            for (int i = 0; i < n; i++) {
+                if (field[i] > 0xff)
+                    throw new IllegalArgumentException("character can't be stored as Latin-1: " + field[i]);
+                buf.put((byte) field[i]);
+            }
+            buf.position(buf.position() + length - n);
+        }
+
+        public String decode(ByteBuffer buf, int length) {
+            int start = buf.arrayOffset() + buf.position();
+            byte bytes[] = buf.array();
+            buf.position(buf.position() + length);
+
+            // Leave out the padding
+            int n = length;
+            while (n > 0 && bytes[start + n - 1] == 0)
+                n--;
+            return withoutNulls(new String(bytes, start, n, StandardCharsets.ISO_8859_1));
+        }
+
+        public byte[] toBytes(char field[], int length) {
+            byte bytes[] = new byte[unpadded(field, length)];
+            for (int i = 0; i < bytes.length; i++) {
+                if (field[i] > 0xff)
+                    throw new IllegalArgumentException("character can't be stored as Latin-1: " + field[i]);
+                bytes[i] = (byte) field[i];
+            }
+            return bytes;
+        }
+
+        public String fromBytes(ByteBuffer buf, int n) {
+            int start = buf.arrayOffset() + buf.position();
+            buf.position(buf.position() + n);
+            return withoutNulls(new String(buf.array(), start, n, StandardCharsets.ISO_8859_1));
+        }
+    },
+
+    /**
+     * UTF-8 after a two byte length. The field length counts bytes of
+     * UTF-8 rather than characters, so for ASCII it is the same.
+     */
+    UTF8 {
+        public int fieldBytes(int length) {
+            return 2 + length;
+        }
+
+        public void encode(ByteBuffer buf, char field[], int length) {
+            byte bytes[] = toBytes(field, length);
+            buf.putShort((short) bytes.length);
+            buf.put(bytes);
+            buf.position(buf.position() + length - bytes.length);
+        }
+
+        public String decode(ByteBuffer buf, int length) {
+            int n = buf.getShort() & 0xffff;
+            int start = buf.arrayOffset() + buf.position();
+            buf.position(buf.position() + length);
+            return withoutNulls(new String(buf.array(), start, n, StandardCharsets.UTF_8));
+        }
+
+        public byte[] toBytes(char field[], int length) {
+            // Trailing null characters are padding, not part of the field
+            int n = field.length;
+            while (n > 0 && field[n - 1] == 0)
+                n--;
+
+            byte bytes[] = new String(field, 0, n).getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > length)
+                throw new IllegalArgumentException("field takes " + bytes.length + " bytes of UTF-8, more than " + length);
+            return bytes;
+        }
+
+        public String fromBytes(ByteBuffer buf, int n) {
+            int start = buf.arrayOffset() + buf.position();
+            buf.position(buf.position() + n);
+            return withoutNulls(new String(buf.array(), start, n, StandardCharsets.UTF_8));
+        }
+    };
+
+    /**
+     * Returns the number of bytes a field of the given length takes in a row
+     */
+    public abstract int fieldBytes(int length);
+
+    /**
+     * Puts a field into a buffer of zeros at its position, and moves the
+     * position past the field
+     *
+     * @param buf    The buffer
+     * @param field  The characters of the field
+     * @param length Length of the field in the table
+     */
+    public abstract void encode(ByteBuffer buf, char field[], int length);
+
+    /**
+     * Takes a field out of a buffer (backed by an array) at its position,
+     * and moves the position past the field
+     *
+     * @param buf    The buffer
+     * @param length Length of the field in the table
+     * @return The field, without null characters
+     */
+    public abstract String decode(ByteBuffer buf, int length);
+
+    /**
+     * Returns a field without its padding, as the bytes this encoding
+     * stores for it. Used for variable length rows.
+     *
+     * @param field  The characters of the field
+     * @param length Length of the field in the table
+     * @return The encoded field
+     */
+    public abstract byte[] toBytes(char field[], int length);
+
+    /**
+     * Takes a field made by toBytes out of a buffer (backed by an array) at
+     * its position, and moves the position past the field
+     *
+     * @param buf The buffer
+     * @param n   Number of bytes in the field
+     * @return The field, without null characters
+     */
+    public abstract String fromBytes(ByteBuffer buf, int n);
+
+    // Characters of a field up to its length, without the padding at the end
+    private static int unpadded(char field[], int length) {
+        int n = Math.min(field.length, length);
+        while (n > 0 && field[n - 1] == 0)
+            n--;
+        return n;
+    }
+
+    // Null characters are left out of fields, even ones that are not padding
+    private static String withoutNulls(String field) {
+        return field.indexOf('\0') < 0 ? field : field.replace("\0", "");
+    }
+}
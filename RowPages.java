@@ -0,0 +1,516 @@
+
+/**
+ * RowPages.java
+ * Keeps the rows of a DBTable as variable length records in slotted pages.
+ * Each page starts with a header and a slot directory that grows towards
+ * the end of the page, while records are placed from the end of the page
+ * towards the directory. The address of a row is its page number and slot,
+ * so a record can move inside its page when the page is compacted without
+ * its address changing. A row that grows too large for its page is moved
+ * to another page and its slot keeps the address it moved to.
+ *
+ * The room left in every page is kept in memory in a free-space map that
+ * groups the pages by how much room they have. It is built from the page
+ * headers when the file is opened. Changes must be made by one thread at a
+ * time (a DBTable makes them under its free list latch), while reads may
+ * run alongside them.
+ *
+ * Page layout:
+ *   short   number of slots
+ *   short   offset of the lowest record
+ *   short   bytes taken by records
+ *   short   number of empty slots
+ *   int[]   slot directory: offset of the record (0 when empty) and its
+ *           length, a short each
+ *   ...     free space
+ *   ...     records
+ *
+ * Page 0 of the file is left to the table header.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class RowPages {
+    public static final int MIN_PAGE_BYTES = 256;
+    public static final int MAX_PAGE_BYTES = 1 << 15; // offsets and lengths fit in a short
+
+    private static final int HEADER = 8; // bytes before the slot directory
+    private static final int SLOT = 4; // bytes of a slot directory entry
+    private static final int FORWARD = 0x8000; // length flag of a slot that holds a forwarding address
+    private static final int MIN_RECORD = 8; // a record has room for a forwarding address
+    private static final int SPACE_CLASSES = 16; // groups in the free-space map
+
+    private Storage rows;
+    private int pageBytes;
+    private int numPages; // pages in the file, including page 0
+    private int room[]; // page number -> largest record that can be added to it
+    private BitSet spaceClasses[] = new BitSet[SPACE_CLASSES]; // pages grouped by room
+    private ReentrantReadWriteLock moves; // keeps reads out while records move, null unless concurrent
+
+    /**
+     * Opens the pages of a rows file
+     *
+     * @param rows       The rows file
+     * @param pageBytes  Size of a page
+     * @param concurrent true if rows are read while others are changed
+     * @throws IOException
+     */
+    public RowPages(Storage rows, int pageBytes, boolean concurrent) throws IOException {
+        if (pageBytes < MIN_PAGE_BYTES || pageBytes > MAX_PAGE_BYTES)
+            throw new IllegalArgumentException("page size must be from " + MIN_PAGE_BYTES + " to " + MAX_PAGE_BYTES
+                    + ": " + pageBytes);
+
+        this.rows = rows;
+        this.pageBytes = pageBytes;
+        if (concurrent)
+            moves = new ReentrantReadWriteLock();
+        for (int c = 0; c < SPACE_CLASSES; c++)
+            spaceClasses[c] = new BitSet();
+
+        numPages = (int) Math.max(1, (rows.length() + pageBytes - 1) / pageBytes);
+        room = new int[Math.max(16, numPages)];
+
+        // Build the free-space map from the page headers
+        byte header[] = new byte[HEADER];
+        for (int p = 1; p < numPages; p++) {
+            rows.read(pagePos(p), header, 0, HEADER);
+            setRoom(p, roomIn(ByteBuffer.wrap(header)));
+        }
+    }
+
+    /**
+     * Returns the largest record a page of the given size can hold
+     */
+    public static int maxRecord(int pageBytes) {
+        return pageBytes - HEADER - SLOT;
+    }
+
+    /**
+     * Adds a record to the first page with room for it, or to a new page
+     *
+     * @param record The record
+     * @return Address of the record (never 0)
+     * @throws IOException
+     */
+    public long insert(byte record[]) throws IOException {
+        record = padded(record);
+        checkLength(record);
+
+        int p = findPage(record.length);
+        if (p < 0)
+            p = newPage();
+
+        ByteBuffer page = readPage(p);
+        int slot = emptySlot(page);
+        put(p, page, slot, record);
+        return address(p, slot);
+    }
+
+    /**
+     * Reads a record, following its forwarding address if it has moved
+     *
+     * @param addr Address of the record
+     * @return The record
+     * @throws IOException
+     */
+    public byte[] read(long addr) throws IOException {
+        lockReads();
+        try {
+            long pos = pagePos(page(addr));
+            int entry = rows.readInt(pos + slotPos(slot(addr)));
+            int off = entry >>> 16;
+            int length = entry & 0xffff;
+            if (off == 0)
+                throw new IOException("no row at address " + addr);
+            if ((length & FORWARD) != 0)
+                return read(rows.readLong(pos + off));
+
+            byte record[] = new byte[length];
+            rows.read(pos + off, record, 0, length);
+            return record;
+        } finally {
+            unlockReads();
+        }
+    }
+
+    /**
+     * Reads many records, reading each run of pages that are close together
+     * with one read
+     *
+     * @param sorted   Addresses of the records in ascending order
+     * @param gapBytes Largest gap between pages read together
+     * @param runBytes Longest single read
+     * @return A buffer positioned at each record, in the order of sorted
+     * @throws IOException
+     */
+    public ByteBuffer[] read(long sorted[], int gapBytes, int runBytes) throws IOException {
+        ByteBuffer found[] = new ByteBuffer[sorted.length];
+
+        lockReads();
+        try {
+            for (int first = 0, last; first < sorted.length; first = last + 1) {
+                int firstPage = page(sorted[first]);
+                last = first;
+                while (last + 1 < sorted.length
+                        && (long) (page(sorted[last + 1]) - page(sorted[last]) - 1) * pageBytes <= gapBytes
+                        && (long) (page(sorted[last + 1]) - firstPage + 1) * pageBytes <= runBytes)
+                    last++;
+
+                ByteBuffer run = ByteBuffer.allocate((page(sorted[last]) - firstPage + 1) * pageBytes);
+                rows.read(pagePos(firstPage), run.array(), 0, run.capacity());
+
+                for (int i = first; i <= last; i++) {
+                    int base = (page(sorted[i]) - firstPage) * pageBytes;
+                    int entry = run.getInt(base + slotPos(slot(sorted[i])));
+                    int off = entry >>> 16;
+                    if (off == 0)
+                        throw new IOException("no row at address " + sorted[i]);
+
+                    if ((entry & FORWARD) != 0) {
+                        found[i] = ByteBuffer.wrap(read(run.getLong(base + off)));
+                    } else {
+                        found[i] = run.duplicate();
+                        found[i].position(base + off);
+                    }
+                }
+            }
+        } finally {
+            unlockReads();
+        }
+
+        return found;
+    }
+
+    /**
+     * Replaces a record. It stays where it is if it still fits, moves
+     * within its page if the page has room, and otherwise moves to another
+     * page and leaves its new address in its slot.
+     *
+     * @param addr   Address of the record
+     * @param record The new record
+     * @throws IOException
+     */
+    public void update(long addr, byte record[]) throws IOException {
+        record = padded(record);
+        checkLength(record);
+
+        int p = page(addr);
+        int slot = slot(addr);
+        ByteBuffer page = readPage(p);
+        int off = checkSlot(page, addr);
+        int length = length(page, slot);
+        long oldTarget = forwarded(page, slot) ? page.getLong(off) : 0;
+
+        if (oldTarget == 0 && record.length <= length) {
+            // Write over the old record
+            System.arraycopy(record, 0, page.array(), off, record.length);
+            setTaken(page, taken(page) - length + record.length);
+            setSlot(page, slot, off, record.length);
+            write(p, page, slot, off, record.length);
+            setRoom(p, roomIn(page));
+        } else if (pageBytes - dirEnd(page) - (taken(page) - length) >= record.length) {
+            // Move the record within its page
+            setTaken(page, taken(page) - length);
+            setSlot(page, slot, 0, 0);
+            put(p, page, slot, record);
+        } else {
+            // Move the record to another page (this one has less room than it
+            // needs) and leave the new address in its place
+            long target = insert(record);
+            page.putLong(off, target);
+            setTaken(page, taken(page) - length + MIN_RECORD);
+            setSlot(page, slot, off, MIN_RECORD | FORWARD);
+            write(p, page, slot, off, MIN_RECORD);
+            setRoom(p, roomIn(page));
+        }
+
+        if (oldTarget != 0)
+            remove(oldTarget);
+    }
+
+    /**
+     * Removes a record, and the record it was moved to if it was moved
+     *
+     * @param addr Address of the record
+     * @throws IOException
+     */
+    public void remove(long addr) throws IOException {
+        int p = page(addr);
+        int slot = slot(addr);
+        ByteBuffer page = readPage(p);
+        int off = checkSlot(page, addr);
+        long target = forwarded(page, slot) ? page.getLong(off) : 0;
+
+        setTaken(page, taken(page) - length(page, slot));
+        setSlot(page, slot, 0, 0);
+
+        // Empty slots at the end of the directory give their space back
+        int numSlots = numSlots(page);
+        if (slot == numSlots - 1) {
+            numSlots--;
+            while (numSlots > 0 && offset(page, numSlots - 1) == 0) {
+                numSlots--;
+                page.putShort(6, (short) (emptySlots(page) - 1));
+            }
+            page.putShort(0, (short) numSlots);
+        } else {
+            page.putShort(6, (short) (emptySlots(page) + 1));
+        }
+
+        rows.write(pagePos(p) + slotPos(slot), page.array(), slotPos(slot), SLOT);
+        rows.write(pagePos(p), page.array(), 0, HEADER);
+        setRoom(p, roomIn(page));
+
+        if (target != 0)
+            remove(target);
+    }
+
+    /**
+     * Prints the room left in each page (for debugging)
+     */
+    public void print() {
+        for (int p = 1; p < numPages; p++)
+            System.out.print(p + ": " + room[p] + ", ");
+    }
+
+    /**
+     * Puts a record into an empty slot of a page (or the slot just past its
+     * directory), compacting the page first if its free space is not in one
+     * piece, and writes the change
+     */
+    private void put(int p, ByteBuffer page, int slot, byte record[]) throws IOException {
+        // A new slot may cover the lowest record until the page is compacted
+        int numSlots = Math.max(numSlots(page), slot + 1);
+        boolean compacted = false;
+        if (dataStart(page) - slotPos(numSlots) < record.length) {
+            compact(page);
+            compacted = true;
+        }
+
+        int off = dataStart(page) - record.length;
+        System.arraycopy(record, 0, page.array(), off, record.length);
+        page.putShort(0, (short) numSlots);
+        page.putShort(2, (short) off);
+        setTaken(page, taken(page) + record.length);
+        setSlot(page, slot, off, record.length);
+
+        if (compacted) {
+            // Records of other rows moved, so no one may read the page while it is written
+            if (moves != null)
+                moves.writeLock().lock();
+            try {
+                rows.write(pagePos(p), page.array(), 0, pageBytes);
+            } finally {
+                if (moves != null)
+                    moves.writeLock().unlock();
+            }
+        } else {
+            write(p, page, slot, off, record.length);
+        }
+
+        setRoom(p, roomIn(page));
+    }
+
+    /**
+     * Moves the records of a page next to each other at its end, so all of
+     * its free space is between the slot directory and the records
+     */
+    private void compact(ByteBuffer page) {
+        byte old[] = page.array().clone();
+        int end = pageBytes;
+        for (int s = 0; s < numSlots(page); s++) {
+            int off = offset(page, s);
+            if (off == 0)
+                continue;
+
+            int length = length(page, s);
+            end -= length;
+            System.arraycopy(old, off, page.array(), end, length);
+            page.putShort(slotPos(s), (short) end);
+        }
+        page.putShort(2, (short) end);
+    }
+
+    /**
+     * Writes a record, its slot and the page header, in that order
+     */
+    private void write(int p, ByteBuffer page, int slot, int off, int length) throws IOException {
+        rows.write(pagePos(p) + off, page.array(), off, length);
+        rows.write(pagePos(p) + slotPos(slot), page.array(), slotPos(slot), SLOT);
+        rows.write(pagePos(p), page.array(), 0, HEADER);
+    }
+
+    /**
+     * Takes an empty slot of a page, or returns the slot just past the end
+     * of its directory, which put adds
+     */
+    private int emptySlot(ByteBuffer page) {
+        int numSlots = numSlots(page);
+        if (emptySlots(page) > 0) {
+            page.putShort(6, (short) (emptySlots(page) - 1));
+            for (int s = 0; s < numSlots; s++) {
+                if (offset(page, s) == 0)
+                    return s;
+            }
+        }
+
+        return numSlots;
+    }
+
+    /**
+     * Returns the first page with room for a record, or -1 if no page has
+     * room. Every page in a space class at or above the one the record
+     * needs has room, so only the first page of each of those is looked at.
+     */
+    private int findPage(int length) {
+        for (int c = (length * SPACE_CLASSES + pageBytes - 1) / pageBytes; c < SPACE_CLASSES; c++) {
+            int p = spaceClasses[c].nextSetBit(1);
+            if (p > 0)
+                return p;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds an empty page to the end of the file
+     */
+    private int newPage() throws IOException {
+        int p = numPages++;
+
+        ByteBuffer page = ByteBuffer.allocate(pageBytes);
+        page.putShort(2, (short) pageBytes);
+        rows.write(pagePos(p), page.array(), 0, pageBytes);
+
+        setRoom(p, roomIn(page));
+        return p;
+    }
+
+    /**
+     * Records the room a page has in the free-space map
+     */
+    private void setRoom(int p, int bytes) {
+        if (p >= room.length)
+            room = Arrays.copyOf(room, Math.max(room.length * 2, p + 1));
+        else
+            spaceClasses[spaceClass(room[p])].clear(p);
+
+        room[p] = bytes;
+        spaceClasses[spaceClass(bytes)].set(p);
+    }
+
+    private int spaceClass(int bytes) {
+        return Math.max(0, bytes) * SPACE_CLASSES / pageBytes;
+    }
+
+    /**
+     * Returns the largest record that could be added to a page once it is
+     * compacted, counting the slot it may need
+     */
+    private int roomIn(ByteBuffer page) {
+        int newSlot = emptySlots(page) > 0 ? 0 : SLOT;
+        return Math.max(0, pageBytes - dirEnd(page) - taken(page) - newSlot);
+    }
+
+    private ByteBuffer readPage(int p) throws IOException {
+        ByteBuffer page = ByteBuffer.allocate(pageBytes);
+        rows.read(pagePos(p), page.array(), 0, pageBytes);
+        return page;
+    }
+
+    /**
+     * Returns the offset of the record in a slot, or throws if the slot is empty
+     */
+    private int checkSlot(ByteBuffer page, long addr) throws IOException {
+        int slot = slot(addr);
+        int off = slot < numSlots(page) ? offset(page, slot) : 0;
+        if (off == 0)
+            throw new IOException("no row at address " + addr);
+        return off;
+    }
+
+    private void checkLength(byte record[]) {
+        if (record.length > maxRecord(pageBytes))
+            throw new IllegalArgumentException("record of " + record.length + " bytes does not fit in a page of " + pageBytes);
+    }
+
+    private static byte[] padded(byte record[]) {
+        return record.length >= MIN_RECORD ? record : Arrays.copyOf(record, MIN_RECORD);
+    }
+
+    private long pagePos(int p) {
+        return (long) p * pageBytes;
+    }
+
+    private static long address(int p, int slot) {
+        return (long) p << 16 | slot;
+    }
+
+    private static int page(long addr) {
+        return (int) (addr >>> 16);
+    }
+
+    private static int slot(long addr) {
+        return (int) (addr & 0xffff);
+    }
+
+    private static int slotPos(int slot) {
+        return HEADER + SLOT * slot;
+    }
+
+    private static int numSlots(ByteBuffer page) {
+        return page.getShort(0) & 0xffff;
+    }
+
+    private static int dataStart(ByteBuffer page) {
+        return page.getShort(2) & 0xffff;
+    }
+
+    private static int taken(ByteBuffer page) {
+        return page.getShort(4) & 0xffff;
+    }
+
+    private static void setTaken(ByteBuffer page, int bytes) {
+        page.putShort(4, (short) bytes);
+    }
+
+    private static int emptySlots(ByteBuffer page) {
+        return page.getShort(6) & 0xffff;
+    }
+
+    private static int dirEnd(ByteBuffer page) {
+        return slotPos(numSlots(page));
+    }
+
+    private static int offset(ByteBuffer page, int slot) {
+        return page.getShort(slotPos(slot)) & 0xffff;
+    }
+
+    private static int length(ByteBuffer page, int slot) {
+        return page.getShort(slotPos(slot) + 2) & 0xffff & ~FORWARD;
+    }
+
+    private static boolean forwarded(ByteBuffer page, int slot) {
+        return (page.getShort(slotPos(slot) + 2) & FORWARD) != 0;
+    }
+
+    private static void setSlot(ByteBuffer page, int slot, int off, int length) {
+        page.putShort(slotPos(slot), (short) off);
+        page.putShort(slotPos(slot) + 2, (short) length);
+    }
+
+    private void lockReads() {
+        if (moves != null)
+            moves.readLock().lock();
+    }
+
+    private void unlockReads() {
+        if (moves != null)
+            moves.readLock().unlock();
+    }
+}
@@ -0,0 +1,424 @@
+
+/**
+ * ShardedDBTable.java
+ * A table split across several independent DBTables (shards), each with its
+ * own rows file, BTree file and log. Keys are assigned to shards either by
+ * a hash of the key or by ranges of keys. Every shard is driven by a thread
+ * of its own, so operations on different shards run at the same time, and
+ * batch and range searches are sent to all the shards they touch at once
+ * before their results are put together.
+ *
+ * A shard is only ever used by its own thread, so the shards do not need
+ * concurrent mode, yet the sharded table may be used by several threads.
+ * Operations on the same shard run one after another.
+ *
+ * The file named after the table records how keys are assigned. Shard i is
+ * stored in the files named after the table followed by "." and i.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ShardedDBTable {
+    /**
+     * How keys are assigned to shards
+     */
+    public enum Partitioning {
+        HASH, // by a hash of the key, which spreads any key pattern evenly
+        RANGE // by ranges of keys, so a range search only asks the shards it overlaps
+    }
+
+    private DBTable shards[];
+    private ExecutorService executors[]; // one thread per shard
+    private Partitioning partitioning;
+    private int splits[]; // RANGE: shard i holds the keys from splits[i - 1] up to below splits[i]
+
+    /**
+     * A sorted run of rows from one shard, used while merging the runs
+     */
+    private static class Run {
+        private Iterator<LinkedList<String>> rows;
+        private LinkedList<String> row; // the next row of the run
+        private int key; // key of that row
+
+        private Run(Iterator<LinkedList<String>> rows) {
+            this.rows = rows;
+        }
+
+        // Moves to the next row, false if the run is used up
+        private boolean advance() {
+            if (!rows.hasNext())
+                return false;
+
+            row = rows.next();
+            key = Integer.parseInt(row.getFirst());
+            return true;
+        }
+    }
+
+    public ShardedDBTable(String filename, int fL[], int bsize, int numShards) throws IOException {
+        this(filename, fL, bsize, numShards, new StorageOptions());
+    }
+
+    /**
+     * Makes a new table whose keys are assigned to shards by a hash of the key
+     *
+     * @param filename  Name of the table
+     * @param fL        Lengths of the other fields
+     * @param bsize     Block size of each shard's BTree
+     * @param numShards Number of shards
+     * @param options   Options used by every shard
+     * @throws IOException
+     */
+    public ShardedDBTable(String filename, int fL[], int bsize, int numShards, StorageOptions options)
+            throws IOException {
+        if (numShards <= 0)
+            throw new IllegalArgumentException("number of shards must be positive: " + numShards);
+
+        create(filename, fL, bsize, Partitioning.HASH, numShards, new int[0], options);
+    }
+
+    /**
+     * Makes a new table whose keys are assigned to shards by range. Shard 0
+     * holds the keys below splits[0], shard i the keys from splits[i - 1] up
+     * to below splits[i], and the last shard the keys from the last split up.
+     *
+     * @param filename Name of the table
+     * @param fL       Lengths of the other fields
+     * @param bsize    Block size of each shard's BTree
+     * @param splits   First key of every shard but the first, in strictly
+     *                 ascending order (one less than the number of shards)
+     * @param options  Options used by every shard
+     * @throws IOException
+     */
+    public ShardedDBTable(String filename, int fL[], int bsize, int splits[], StorageOptions options)
+            throws IOException {
+        for (int i = 1; i < splits.length; i++) {
+            if (splits[i] <= splits[i - 1])
+                throw new IllegalArgumentException("splits must be strictly ascending: " + splits[i]);
+        }
+
+        create(filename, fL, bsize, Partitioning.RANGE, splits.length + 1, splits, options);
+    }
+
+    public ShardedDBTable(String filename) throws IOException {
+        this(filename, new StorageOptions());
+    }
+
+    /**
+     * Opens an existing sharded table
+     *
+     * @param filename Name of the table
+     * @param options  Options used by every shard
+     * @throws IOException
+     */
+    public ShardedDBTable(String filename, StorageOptions options) throws IOException {
+        Storage header = Storage.open(new File(filename), new StorageOptions());
+        try {
+            this.partitioning = Partitioning.values()[header.readInt(0)];
+            int numShards = header.readInt(4);
+            this.splits = new int[partitioning == Partitioning.RANGE ? numShards - 1 : 0];
+            for (int i = 0; i < splits.length; i++)
+                splits[i] = header.readInt(8 + 4 * i);
+
+            startShards(filename, numShards);
+        } finally {
+            header.close();
+        }
+
+        List<Future<DBTable>> opened = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            String shardName = shardName(filename, i);
+            opened.add(executors[i].submit(() -> new DBTable(shardName, options)));
+        }
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = await(opened.get(i));
+    }
+
+    private void create(String filename, int fL[], int bsize, Partitioning partitioning, int numShards,
+            int splits[], StorageOptions options) throws IOException {
+        this.partitioning = partitioning;
+        this.splits = splits.clone();
+
+        File headerFile = new File(filename);
+        if (headerFile.exists())
+            headerFile.delete();
+
+        // Record how keys are assigned so the table can be opened again
+        Storage header = Storage.open(headerFile, new StorageOptions());
+        try {
+            header.writeInt(0, partitioning.ordinal());
+            header.writeInt(4, numShards);
+            for (int i = 0; i < splits.length; i++)
+                header.writeInt(8 + 4 * i, splits[i]);
+            header.force();
+        } finally {
+            header.close();
+        }
+
+        startShards(filename, numShards);
+
+        List<Future<DBTable>> made = new ArrayList<>();
+        for (int i = 0; i < numShards; i++) {
+            String shardName = shardName(filename, i);
+            made.add(executors[i].submit(() -> new DBTable(shardName, fL, bsize, options)));
+        }
+        for (int i = 0; i < numShards; i++)
+            shards[i] = await(made.get(i));
+    }
+
+    /**
+     * Starts the thread of each shard
+     */
+    private void startShards(String filename, int numShards) {
+        shards = new DBTable[numShards];
+        executors = new ExecutorService[numShards];
+
+        for (int i = 0; i < numShards; i++) {
+            String threadName = shardName(filename, i);
+            executors[i] = Executors.newSingleThreadExecutor(r -> {
+                // A table that is never closed doesn't keep the program running
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private static String shardName(String filename, int shard) {
+        return filename + "." + shard;
+    }
+
+    /**
+     * Returns the shard that holds the key
+     */
+    private int shardOf(int key) {
+        if (partitioning == Partitioning.RANGE) {
+            // Keys equal to a split belong to the shard on its right
+            int i = Arrays.binarySearch(splits, key);
+            return i >= 0 ? i + 1 : -(i + 1);
+        }
+
+        // Mix the bits first so keys that differ only in their high bits spread out
+        int h = key * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    /**
+     * Runs a task on the thread of a shard
+     */
+    private <T> Future<T> submit(int shard, Callable<T> task) {
+        return executors[shard].submit(task);
+    }
+
+    /**
+     * Waits for a task and returns its result. An IOException thrown by the
+     * task is thrown again here.
+     */
+    private static <T> T await(Future<T> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Adds a row to the shard that holds its key
+     *
+     * @return true if the row was added, false if the key is already in the table
+     * @throws IOException
+     */
+    public boolean insert(int key, char fields[][]) throws IOException {
+        // PRE: the length of each row in fields matches the expected length
+        int shard = shardOf(key);
+        return await(submit(shard, () -> shards[shard].insert(key, fields)));
+    }
+
+    /**
+     * Removes the row with the key
+     *
+     * @return true if the row was removed, false if the key is not in the table
+     * @throws IOException
+     */
+    public boolean remove(int key) throws IOException {
+        int shard = shardOf(key);
+        return await(submit(shard, () -> shards[shard].remove(key)));
+    }
+
+    /**
+     * Returns the other fields of the row with the key, or an empty list if
+     * the key is not in the table
+     *
+     * @throws IOException
+     */
+    public LinkedList<String> search(int key) throws IOException {
+        int shard = shardOf(key);
+        return await(submit(shard, () -> shards[shard].search(key)));
+    }
+
+    /**
+     * Looks up many keys at once. The keys are split between their shards
+     * and every shard looks up its keys (with DBTable.searchBatch) at the
+     * same time as the others.
+     *
+     * @param keys Keys to look for
+     * @return One list per key, in the same order as keys, holding the other
+     *         fields of the row. The list is empty if the key is not found.
+     * @throws IOException
+     */
+    public LinkedList<LinkedList<String>> searchBatch(int keys[]) throws IOException {
+        // Positions in keys of the keys held by each shard
+        int counts[] = new int[shards.length];
+        int shardOf[] = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            shardOf[i] = shardOf(keys[i]);
+            counts[shardOf[i]]++;
+        }
+
+        int positions[][] = new int[shards.length][];
+        for (int s = 0; s < shards.length; s++)
+            positions[s] = new int[counts[s]];
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < keys.length; i++)
+            positions[shardOf[i]][counts[shardOf[i]]++] = i;
+
+        List<Future<LinkedList<LinkedList<String>>>> found = new ArrayList<>();
+        for (int s = 0; s < shards.length; s++) {
+            int shard = s;
+            int shardKeys[] = new int[positions[s].length];
+            for (int i = 0; i < shardKeys.length; i++)
+                shardKeys[i] = keys[positions[s][i]];
+
+            found.add(shardKeys.length == 0 ? null : submit(shard, () -> shards[shard].searchBatch(shardKeys)));
+        }
+
+        // Put each shard's results back where its keys were
+        List<LinkedList<String>> results = new ArrayList<>(Collections.nCopies(keys.length, null));
+        for (int s = 0; s < shards.length; s++) {
+            if (found.get(s) == null)
+                continue;
+
+            int i = 0;
+            for (LinkedList<String> fields : await(found.get(s)))
+                results.set(positions[s][i++], fields);
+        }
+
+        return new LinkedList<>(results);
+    }
+
+    /**
+     * Returns the key and other fields of every row with a key from low to
+     * high inclusive, in key order. The shards that may hold keys in the
+     * range search it at the same time. Their rows are joined in shard order
+     * when keys are assigned by range, and merged by key when they are
+     * assigned by hash.
+     *
+     * @param low
+     * @param high
+     * @return The rows in the range, empty if there are none
+     * @throws IOException
+     */
+    public LinkedList<LinkedList<String>> rangeSearch(int low, int high) throws IOException {
+        // PRE: low <= high
+        int first = 0;
+        int last = shards.length - 1;
+        if (partitioning == Partitioning.RANGE) {
+            first = shardOf(low);
+            last = shardOf(high);
+        }
+
+        List<Future<LinkedList<LinkedList<String>>>> found = new ArrayList<>();
+        for (int s = first; s <= last; s++) {
+            int shard = s;
+            found.add(submit(shard, () -> shards[shard].rangeSearch(low, high)));
+        }
+
+        List<LinkedList<LinkedList<String>>> runs = new ArrayList<>();
+        for (Future<LinkedList<LinkedList<String>>> run : found)
+            runs.add(await(run));
+
+        if (partitioning == Partitioning.RANGE) {
+            LinkedList<LinkedList<String>> toReturn = new LinkedList<>();
+            for (LinkedList<LinkedList<String>> run : runs)
+                toReturn.addAll(run);
+            return toReturn;
+        }
+
+        return merge(runs);
+    }
+
+    /**
+     * Merges runs of rows that are each in key order into one list in key order
+     */
+    private static LinkedList<LinkedList<String>> merge(List<LinkedList<LinkedList<String>>> runs) {
+        LinkedList<LinkedList<String>> merged = new LinkedList<>();
+        PriorityQueue<Run> heads = new PriorityQueue<>(Math.max(1, runs.size()), Comparator.comparingInt(r -> r.key));
+
+        for (LinkedList<LinkedList<String>> rows : runs) {
+            Run run = new Run(rows.iterator());
+            if (run.advance())
+                heads.add(run);
+        }
+
+        while (!heads.isEmpty()) {
+            Run run = heads.poll();
+            merged.add(run.row);
+            if (run.advance())
+                heads.add(run);
+        }
+
+        return merged;
+    }
+
+    /**
+     * Returns the number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public void close() throws IOException {
+        // close the table. The table should not be used after it is closed
+        List<Future<Void>> closed = new ArrayList<>();
+        for (int s = 0; s < shards.length; s++) {
+            int shard = s;
+            closed.add(submit(shard, () -> {
+                shards[shard].close();
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<Void> result : closed)
+                await(result);
+        } finally {
+            for (ExecutorService executor : executors)
+                executor.shutdown();
+        }
+    }
+}
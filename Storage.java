@@ -0,0 +1,60 @@
+
+/**
+ * Storage.java
+ * The file a BTree or DBTable keeps its data in. Every access names
+ * the position it reads or writes, so callers never depend on a
+ * shared file pointer. Implementations may be used by several threads at
+ * once.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+import java.io.*;
+
+public interface Storage {
+
+    /**
+     * Opens the storage backend chosen in the options
+     *
+     * @param file    File to store the data in
+     * @param options Options naming the backend
+     * @return The opened storage
+     * @throws IOException
+     */
+    static Storage open(File file, StorageOptions options) throws IOException {
+        switch (options.getBackend()) {
+            case MAPPED:
+                return new MappedStorage(file, options.getSegmentBytes());
+            default:
+                return new FileStorage(file);
+        }
+    }
+
+    void read(long pos, byte dst[], int off, int len) throws IOException;
+
+    void write(long pos, byte src[], int off, int len) throws IOException;
+
+    int readInt(long pos) throws IOException;
+
+    long readLong(long pos) throws IOException;
+
+    char readChar(long pos) throws IOException;
+
+    void writeInt(long pos, int v) throws IOException;
+
+    void writeLong(long pos, long v) throws IOException;
+
+    void writeChar(long pos, char v) throws IOException;
+
+    /**
+     * Returns the number of bytes in use
+     */
+    long length() throws IOException;
+
+    /**
+     * Makes sure everything written so far is on the disk
+     */
+    void force() throws IOException;
+
+    void close() throws IOException;
+}
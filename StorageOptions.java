@@ -0,0 +1,380 @@
+
+/**
+ * StorageOptions.java
+ * Settings that control how a BTree or DBTable uses its files.
+ * Every setter returns the options so calls can be chained.
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+public class StorageOptions implements Cloneable {
+    // Memory used for cached BTree nodes when no budget is given (1 MB)
+    public static final long DEFAULT_CACHE_BYTES = 1 << 20;
+
+    // Size of each mapped region when the MAPPED backend is used (1 MB)
+    public static final int DEFAULT_SEGMENT_BYTES = 1 << 20;
+
+    // Log plus held pages that trigger a checkpoint when logging (8 MB)
+    public static final long DEFAULT_CHECKPOINT_BYTES = 8 << 20;
+
+    // Leaves a range scan reads ahead of the leaf it is on
+    public static final int DEFAULT_READ_AHEAD_LEAVES = 0;
+
+    /**
+     * How the files are accessed
+     */
+    public enum Backend {
+        RANDOM_ACCESS, // positional reads and writes through a FileChannel
+        MAPPED // loads and stores on a memory mapped file
+    }
+
+    private long cacheBytes = DEFAULT_CACHE_BYTES;
+    private Backend backend = Backend.RANDOM_ACCESS;
+    private int segmentBytes = DEFAULT_SEGMENT_BYTES;
+    private boolean writeAheadLog = false;
+    private long checkpointBytes = DEFAULT_CHECKPOINT_BYTES;
+    private CommitPolicy commitPolicy = CommitPolicy.everyOp();
+    private boolean concurrent = false;
+    private boolean packedNodes = false;
+    private boolean longKeys = false;
+    private int readAheadLeaves = DEFAULT_READ_AHEAD_LEAVES;
+    private int readAheadRows = 0;
+    private int fileOrderBatch = 0;
+    private int rowCacheRows = 0;
+    private int bloomBitsPerKey = 0;
+    private RowEncoding rowEncoding = RowEncoding.UTF16;
+    private int rowPageBytes = 0;
+
+    /**
+     * Sets the memory budget of the BTree page cache.
+     * A budget smaller than one node turns the cache off.
+     *
+     * @param bytes Budget in bytes
+     * @return these options
+     */
+    public StorageOptions cacheBytes(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("cache budget must not be negative: " + bytes);
+
+        this.cacheBytes = bytes;
+        return this;
+    }
+
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * Chooses how the BTree and row files are accessed. Mapped files are
+     * already in memory, so a BTree on the MAPPED backend does not put a
+     * page cache in front of its file.
+     *
+     * @param backend The backend to use
+     * @return these options
+     */
+    public StorageOptions backend(Backend backend) {
+        this.backend = backend;
+        return this;
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Sets how much of the file is mapped at a time on the MAPPED backend
+     *
+     * @param bytes Segment size in bytes
+     * @return these options
+     */
+    public StorageOptions segmentBytes(int bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("segment size must be positive: " + bytes);
+
+        this.segmentBytes = bytes;
+        return this;
+    }
+
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    /**
+     * Turns the write-ahead log on or off. With the log on, every insert and
+     * remove is committed to a log file before it returns and the data files
+     * are recovered from the log when they are opened after a crash.
+     *
+     * @param enabled true to log changes
+     * @return these options
+     */
+    public StorageOptions writeAheadLog(boolean enabled) {
+        this.writeAheadLog = enabled;
+        return this;
+    }
+
+    public boolean getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * Sets how large the log and the pages held for it may grow before a
+     * checkpoint writes the pages to the data files and empties the log
+     *
+     * @param bytes Threshold in bytes
+     * @return these options
+     */
+    public StorageOptions checkpointBytes(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("checkpoint threshold must be positive: " + bytes);
+
+        this.checkpointBytes = bytes;
+        return this;
+    }
+
+    public long getCheckpointBytes() {
+        return checkpointBytes;
+    }
+
+    /**
+     * Sets when the write-ahead log is forced to the disk. The default forces
+     * it before every change returns.
+     *
+     * @param policy The commit policy
+     * @return these options
+     */
+    public StorageOptions commitPolicy(CommitPolicy policy) {
+        if (policy == null)
+            throw new IllegalArgumentException("commit policy must not be null");
+
+        this.commitPolicy = policy;
+        return this;
+    }
+
+    public CommitPolicy getCommitPolicy() {
+        return commitPolicy;
+    }
+
+    /**
+     * Turns on latching so several threads can use a BTree or DBTable at
+     * once. Off by default, since a single thread does not need it.
+     * A BTree made with this on is a B-link tree, whose nodes hold one key
+     * less to make room for a high key and a right link. It stays one when
+     * it is opened again, with or without this option.
+     *
+     * @param enabled true to latch nodes and free lists
+     * @return these options
+     */
+    public StorageOptions concurrent(boolean enabled) {
+        this.concurrent = enabled;
+        return this;
+    }
+
+    public boolean getConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * Packs the non-leaf nodes of a new BTree. A non-leaf then refers to its
+     * children by block number (an int) instead of by address (a long), so
+     * it holds about half as many keys again as a leaf in the same block and
+     * the tree is lower. Leaves are not changed, since they hold the
+     * addresses of rows. A tree opened again keeps the format it was made
+     * with.
+     *
+     * @param enabled true to pack non-leaves
+     * @return these options
+     */
+    public StorageOptions packedNodes(boolean enabled) {
+        this.packedNodes = enabled;
+        return this;
+    }
+
+    public boolean getPackedNodes() {
+        return packedNodes;
+    }
+
+    /**
+     * Gives the keys of a new BTree 8 bytes in the file instead of 4, so it
+     * takes any long key (see KeyCodec for keys made of several parts or of
+     * bytes). Nodes of the same size then hold fewer keys. A tree of int keys
+     * throws an IllegalArgumentException for a key outside the int range. A
+     * tree opened again keeps the key size it was made with. A DBTable made
+     * with long keys keeps 8 byte keys in its rows as well, but can't have
+     * field indexes.
+     *
+     * @param enabled true for long keys
+     * @return these options
+     */
+    public StorageOptions longKeys(boolean enabled) {
+        this.longKeys = enabled;
+        return this;
+    }
+
+    public boolean getLongKeys() {
+        return longKeys;
+    }
+
+    /**
+     * Sets how many leaves a range scan reads into the page cache ahead of
+     * the leaf it is on. The leaves are read on the ReadAhead threads, so
+     * their reads wait on the disk at the same time. Needs the page cache.
+     * Off (0) by default.
+     *
+     * @param leaves Number of leaves to read ahead
+     * @return these options
+     */
+    public StorageOptions readAheadLeaves(int leaves) {
+        if (leaves < 0)
+            throw new IllegalArgumentException("read-ahead must not be negative: " + leaves);
+
+        this.readAheadLeaves = leaves;
+        return this;
+    }
+
+    public int getReadAheadLeaves() {
+        return readAheadLeaves;
+    }
+
+    /**
+     * Sets how many rows a DBTable row cursor reads ahead of the row it
+     * returns. Rows are not read ahead in concurrent mode, where each row is
+     * looked up again when it is returned, or on the MAPPED backend, where
+     * they are already in memory. Off (0) by default, since handing each row
+     * to another thread costs more than it saves once the rows file is in
+     * the operating system's cache.
+     *
+     * @param rows Number of rows to read ahead
+     * @return these options
+     */
+    public StorageOptions readAheadRows(int rows) {
+        if (rows < 0)
+            throw new IllegalArgumentException("read-ahead must not be negative: " + rows);
+
+        this.readAheadRows = rows;
+        return this;
+    }
+
+    public int getReadAheadRows() {
+        return readAheadRows;
+    }
+
+    /**
+     * Sets how many rows a DBTable row cursor (and so rangeSearch) fetches
+     * at a time in the order they are stored in the file instead of key
+     * order. Rows that are next to each other or close are read with one
+     * read. Not used in concurrent mode, where each row is looked up again
+     * when it is returned. Off (0) by default. When on, rows are not read
+     * ahead as well.
+     *
+     * @param rows Number of rows in a batch
+     * @return these options
+     */
+    public StorageOptions fileOrderBatch(int rows) {
+        if (rows < 0)
+            throw new IllegalArgumentException("batch size must not be negative: " + rows);
+
+        this.fileOrderBatch = rows;
+        return this;
+    }
+
+    public int getFileOrderBatch() {
+        return fileOrderBatch;
+    }
+
+    /**
+     * Sets how many rows a DBTable keeps in memory by key, so searches for
+     * the keys used most often do not go to the BTree or the rows file.
+     * Off (0) by default.
+     *
+     * @param rows Number of rows to cache
+     * @return these options
+     */
+    public StorageOptions rowCacheRows(int rows) {
+        if (rows < 0)
+            throw new IllegalArgumentException("row cache size must not be negative: " + rows);
+
+        this.rowCacheRows = rows;
+        return this;
+    }
+
+    public int getRowCacheRows() {
+        return rowCacheRows;
+    }
+
+    /**
+     * Keeps a Bloom filter over the keys of a BTree, so a search for a key
+     * that is not in the tree usually returns without reading any node. The
+     * filter is saved next to the tree file when the tree is closed and is
+     * built from the keys when it is opened without one. Off (0) by default.
+     *
+     * @param bits Bits of filter per key, 10 gives about 1% false positives
+     * @return these options
+     */
+    public StorageOptions bloomBitsPerKey(int bits) {
+        if (bits < 0)
+            throw new IllegalArgumentException("bits per key must not be negative: " + bits);
+
+        this.bloomBitsPerKey = bits;
+        return this;
+    }
+
+    public int getBloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    /**
+     * Chooses how the fields of a new DBTable are stored. The encoding is
+     * saved in the rows file, so a table opened again keeps the one it was
+     * made with. LATIN1 and UTF8 take about half the space of UTF16 for
+     * ASCII text.
+     *
+     * @param encoding The row encoding
+     * @return these options
+     */
+    public StorageOptions rowEncoding(RowEncoding encoding) {
+        if (encoding == null)
+            throw new IllegalArgumentException("row encoding must not be null");
+
+        this.rowEncoding = encoding;
+        return this;
+    }
+
+    public RowEncoding getRowEncoding() {
+        return rowEncoding;
+    }
+
+    /**
+     * Keeps the rows of a new DBTable in slotted pages of this size instead
+     * of fixed size slots. A row then takes the space its fields use rather
+     * than their full lengths, which saves space and reads when fields are
+     * mostly shorter than their lengths. Off (0) by default. A table opened
+     * again keeps the layout it was made with.
+     *
+     * @param bytes Page size, from RowPages.MIN_PAGE_BYTES to RowPages.MAX_PAGE_BYTES
+     * @return these options
+     */
+    public StorageOptions rowPageBytes(int bytes) {
+        if (bytes != 0 && (bytes < RowPages.MIN_PAGE_BYTES || bytes > RowPages.MAX_PAGE_BYTES))
+            throw new IllegalArgumentException("page size must be 0 or from " + RowPages.MIN_PAGE_BYTES + " to "
+                    + RowPages.MAX_PAGE_BYTES + ": " + bytes);
+
+        this.rowPageBytes = bytes;
+        return this;
+    }
+
+    public int getRowPageBytes() {
+        return rowPageBytes;
+    }
+
+    /**
+     * Returns options with the same settings, for the files a table makes
+     * with some of them changed
+     */
+    StorageOptions copy() {
+        try {
+            return (StorageOptions) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,582 @@
+
+/**
+ * WriteAheadLog.java
+ * An append-only redo log shared by the files of a BTree or DBTable.
+ *
+ * Every write to a logged file is recorded in the log and held in memory by
+ * the file's LoggedStorage instead of going to the data file. When a change
+ * (insert, remove, ...) finishes, its records are appended to the log as one
+ * frame and the log is forced according to the CommitPolicy. Threads that
+ * commit at the same time share a single force (group commit). The data files are only written at a
+ * checkpoint, when the held pages are written back and forced and the log is
+ * emptied. After a crash, opening the files replays the complete frames in
+ * the log, so every committed change is restored and no partial change is.
+ *
+ * Frame layout: [int payload length][int CRC32 of payload][payload]
+ * Payload: one or more [byte file id][long position][int length][bytes]
+ *
+ * @author Creed Zagrzebski (zagrzebski1516@uwlax.edu)
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+public class WriteAheadLog {
+    private static final int FRAME_HEADER = 8;
+    private static final int RECORD_HEADER = 13;
+
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long checkpointBytes; // log + held pages that trigger a checkpoint
+    private CommitPolicy policy;
+    private volatile long end; // bytes of complete frames in the log
+    private volatile long base; // sequence number of the first byte in the log
+    private long durable; // sequence number up to which the log is forced
+    private boolean syncing; // a thread is forcing the log
+    private volatile boolean failed; // a change failed part way, so nothing more is written
+    private volatile IOException flushError; // why the background force failed
+    private ArrayList<LoggedStorage> files = new ArrayList<>();
+    private Object syncLock = new Object();
+
+    // Commit statistics, guarded by syncLock
+    private long commits; // changes appended to the log
+    private long forcedCommits; // changes known to be forced
+    private long forces;
+    private long totalLatency;
+    private long maxLatency;
+    private long firstCommit;
+    private long lastCommit;
+
+    private Thread flusher; // forces the log under an EVERY_MILLIS policy
+    private boolean closed; // guarded by flusherLock
+    private Object flusherLock = new Object();
+
+    // Changes in progress hold the read lock, a checkpoint takes the write lock
+    private ReentrantReadWriteLock activity = new ReentrantReadWriteLock();
+    private ThreadLocal<Txn> txns = ThreadLocal.withInitial(() -> new Txn());
+
+    /**
+     * The records of the change the thread is making
+     */
+    private static class Txn {
+        private int depth; // nested begin() calls
+        private byte buf[] = new byte[256];
+        private int size = FRAME_HEADER; // room for the frame header
+        private int lastRecord = -1; // offset of the last record, for merging
+        private ArrayList<Runnable> afterAppend = new ArrayList<>();
+    }
+
+    /**
+     * Opens the log, creating it if needed. A torn frame at the end of the
+     * log (from a crash during an append) is cut off.
+     *
+     * @param file    The log file
+     * @param options Options holding the checkpoint threshold and commit policy
+     * @throws IOException
+     */
+    public WriteAheadLog(File file, StorageOptions options) throws IOException {
+        this.file = file;
+        this.checkpointBytes = options.getCheckpointBytes();
+        this.policy = options.getCommitPolicy();
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+
+        this.end = replay(-1, null);
+        channel.truncate(end);
+        this.durable = end;
+
+        if (policy.getKind() == CommitPolicy.Kind.EVERY_MILLIS)
+            startFlusher();
+    }
+
+    /**
+     * Puts a data file under the log. Any committed writes for the file that
+     * are still in the log are replayed into it first.
+     *
+     * @param fileId Id of the file in the log records
+     * @param data   The data file
+     * @return The storage to use in place of data
+     * @throws IOException
+     */
+    public synchronized Storage attach(int fileId, Storage data) throws IOException {
+        recover(fileId, data);
+
+        LoggedStorage logged = new LoggedStorage(this, fileId, data);
+        files.add(logged);
+        return logged;
+    }
+
+    /**
+     * Replays the committed writes for a file that are still in the log into
+     * it, without putting the file under the log
+     *
+     * @param fileId Id of the file in the log records
+     * @param data   The data file
+     * @throws IOException
+     */
+    synchronized void recover(int fileId, Storage data) throws IOException {
+        if (replay(fileId, data) > 0)
+            data.force();
+    }
+
+    /**
+     * Starts a change on this thread. Changes may nest, only the outermost
+     * commit writes the log.
+     */
+    public void begin() throws IOException {
+        if (failed)
+            throw new IOException("log is unusable after a failed change, reopen to recover");
+
+        Txn txn = txns.get();
+        if (txn.depth++ == 0)
+            activity.readLock().lock();
+    }
+
+    /**
+     * Ends a change. The outermost commit appends the change to the log and,
+     * depending on the commit policy, returns once the log is forced.
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        Txn txn = txns.get();
+        if (txn.depth == 0)
+            throw new IllegalStateException("commit without begin");
+        if (--txn.depth > 0)
+            return;
+
+        long start = System.nanoTime();
+        long lsn;
+        try {
+            lsn = append(txn);
+        } catch (IOException | RuntimeException e) {
+            // The change is held but not in the log, so it must never reach
+            // the data files; stop the log as abort() does
+            failed = true;
+            throw e;
+        } finally {
+            runAfterAppend(txn);
+            activity.readLock().unlock();
+        }
+
+        if (lsn > 0) {
+            if (flushError != null)
+                throw new IOException("background force of the log failed", flushError);
+
+            switch (policy.getKind()) {
+                case EVERY_OP:
+                    sync(lsn);
+                    break;
+                case EVERY_OPS:
+                    if (unforcedCommits() >= policy.getN())
+                        sync(lsn);
+                    break;
+                default:
+                    break; // the flusher forces the log
+            }
+
+            recordCommit(start);
+        }
+
+        if (pendingBytes() > checkpointBytes)
+            checkpoint();
+    }
+
+    /**
+     * Commits the outermost change on this thread and starts a new one.
+     * Long running changes (like a bulk load) use this to keep their records
+     * from piling up. Does nothing inside a nested change.
+     *
+     * @throws IOException
+     */
+    public void commitAndContinue() throws IOException {
+        if (txns.get().depth != 1)
+            return;
+
+        commit();
+        begin();
+    }
+
+    /**
+     * Forces every change committed so far to the disk, whatever the commit
+     * policy
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        long lsn;
+        synchronized (syncLock) {
+            lsn = base + end;
+        }
+        sync(lsn);
+    }
+
+    /**
+     * Returns the latency and throughput of the commits so far
+     */
+    public CommitStats getStats() {
+        synchronized (syncLock) {
+            return new CommitStats(policy, commits, forces, totalLatency, maxLatency, lastCommit - firstCommit);
+        }
+    }
+
+    /**
+     * Ends a change that failed part way. Its records are dropped and the log
+     * stops accepting changes, since the held pages may now hold part of it.
+     * Reopening the files recovers the last committed state.
+     */
+    public void abort() {
+        Txn txn = txns.get();
+        if (txn.depth == 0)
+            return;
+
+        failed = true;
+        txn.depth = 0;
+        txn.size = FRAME_HEADER;
+        txn.lastRecord = -1;
+        runAfterAppend(txn);
+        activity.readLock().unlock();
+    }
+
+    /**
+     * Runs an action once the change in progress on this thread is in the
+     * log (or has been dropped), before waiting for the log to be forced.
+     * Latches on the pages a change wrote are released this way, so no
+     * other change can write those pages and reach the log first. Runs the
+     * action right away when no change is in progress.
+     *
+     * @param action The action to run
+     */
+    void afterAppend(Runnable action) {
+        Txn txn = txns.get();
+        if (txn.depth == 0)
+            action.run();
+        else
+            txn.afterAppend.add(action);
+    }
+
+    /**
+     * Adds a write to the change in progress on this thread. A write that
+     * continues the previous one in the same file is merged into it.
+     */
+    void record(int fileId, long pos, byte src[], int off, int len) {
+        Txn txn = txns.get();
+        if (txn.depth == 0)
+            throw new IllegalStateException("write to a logged file outside of a change");
+
+        // Extend the last record when this write starts where it ended
+        if (txn.lastRecord >= 0) {
+            ByteBuffer last = ByteBuffer.wrap(txn.buf, txn.lastRecord, RECORD_HEADER);
+            int lastId = last.get();
+            long lastPos = last.getLong();
+            int lastLen = last.getInt();
+            if (lastId == fileId && lastPos + lastLen == pos) {
+                ensure(txn, len);
+                System.arraycopy(src, off, txn.buf, txn.size, len);
+                txn.size += len;
+                ByteBuffer.wrap(txn.buf).putInt(txn.lastRecord + 9, lastLen + len);
+                return;
+            }
+        }
+
+        ensure(txn, RECORD_HEADER + len);
+        txn.lastRecord = txn.size;
+        ByteBuffer.wrap(txn.buf, txn.size, RECORD_HEADER).put((byte) fileId).putLong(pos).putInt(len);
+        System.arraycopy(src, off, txn.buf, txn.size + RECORD_HEADER, len);
+        txn.size += RECORD_HEADER + len;
+    }
+
+    /**
+     * Writes every held page back to its data file, forces the data files and
+     * empties the log. Waits for changes in progress on other threads.
+     *
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        if (failed)
+            return;
+
+        activity.writeLock().lock();
+        try {
+            synchronized (this) {
+                for (LoggedStorage logged : files)
+                    logged.writeBack();
+
+                // The log is no longer needed once the data files are on disk
+                channel.truncate(0);
+                channel.force(true);
+
+                synchronized (syncLock) {
+                    base += end;
+                    end = 0;
+                    durable = base;
+                    forcedCommits = commits;
+                }
+            }
+        } finally {
+            activity.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a data file from the log. A checkpoint is taken first so the
+     * file is complete on disk. Once the last file is gone the log is deleted.
+     *
+     * @param logged The file being closed
+     * @throws IOException
+     */
+    void detach(LoggedStorage logged) throws IOException {
+        checkpoint();
+
+        synchronized (this) {
+            files.remove(logged);
+
+            if (files.isEmpty()) {
+                stopFlusher();
+                channel.close();
+                raf.close();
+
+                // A failed log still holds the committed changes for recovery
+                if (!failed)
+                    file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes in the log plus the bytes of held pages
+     */
+    private synchronized long pendingBytes() {
+        long bytes = end;
+        for (LoggedStorage logged : files)
+            bytes += logged.heldBytes();
+        return bytes;
+    }
+
+    /**
+     * Appends the thread's change to the log as one frame
+     *
+     * @return The sequence number the log must be forced to, 0 if the change
+     *         wrote nothing
+     * @throws IOException
+     */
+    private long append(Txn txn) throws IOException {
+        int payload = txn.size - FRAME_HEADER;
+        if (payload == 0)
+            return 0;
+
+        CRC32 crc = new CRC32();
+        crc.update(txn.buf, FRAME_HEADER, payload);
+        ByteBuffer frame = ByteBuffer.wrap(txn.buf, 0, txn.size);
+        frame.putInt(0, payload).putInt(4, (int) crc.getValue());
+
+        txn.size = FRAME_HEADER;
+        txn.lastRecord = -1;
+
+        synchronized (this) {
+            while (frame.hasRemaining())
+                channel.write(frame, end + frame.position());
+
+            synchronized (syncLock) {
+                end += frame.limit();
+                commits++;
+                return base + end;
+            }
+        }
+    }
+
+    private static void runAfterAppend(Txn txn) {
+        for (Runnable action : txn.afterAppend)
+            action.run();
+        txn.afterAppend.clear();
+    }
+
+    /**
+     * Returns the number of appended changes not yet known to be forced
+     */
+    private long unforcedCommits() {
+        synchronized (syncLock) {
+            return commits - forcedCommits;
+        }
+    }
+
+    private void recordCommit(long start) {
+        long now = System.nanoTime();
+        long latency = now - start;
+
+        synchronized (syncLock) {
+            if (lastCommit == 0)
+                firstCommit = start;
+            lastCommit = now;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+        }
+    }
+
+    /**
+     * Waits until the log is forced up to lsn. One thread forces the log
+     * while the threads that commit in the meantime wait for it, then the
+     * next force covers all of them at once.
+     *
+     * @param lsn Sequence number to force to
+     * @throws IOException
+     */
+    private void sync(long lsn) throws IOException {
+        long target;
+        long targetCommits;
+
+        synchronized (syncLock) {
+            while (durable < lsn && syncing) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for the log");
+                }
+            }
+
+            if (durable >= lsn)
+                return;
+
+            // Lead the next force, it covers everything appended so far
+            syncing = true;
+            target = base + end;
+            targetCommits = commits;
+        }
+
+        boolean forced = false;
+        try {
+            channel.force(false);
+            forced = true;
+        } finally {
+            synchronized (syncLock) {
+                syncing = false;
+                if (forced) {
+                    durable = Math.max(durable, target);
+                    forcedCommits = Math.max(forcedCommits, targetCommits);
+                    forces++;
+                }
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Starts the thread that forces the log every policy.getN() milliseconds.
+     * A failed force stops the log from accepting changes and is reported by
+     * the next commit.
+     */
+    private void startFlusher() {
+        long interval = policy.getN();
+
+        flusher = new Thread(() -> {
+            while (true) {
+                synchronized (flusherLock) {
+                    if (!closed) {
+                        try {
+                            flusherLock.wait(interval);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (closed)
+                        return;
+                }
+
+                try {
+                    flush();
+                } catch (IOException e) {
+                    flushError = e;
+                    failed = true;
+                    return;
+                }
+            }
+        }, "wal-flusher " + file.getName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Stops the flusher thread, waiting for a force in progress to finish.
+     * The thread is not interrupted since that would close the channel.
+     */
+    private void stopFlusher() throws IOException {
+        if (flusher == null)
+            return;
+
+        synchronized (flusherLock) {
+            closed = true;
+            flusherLock.notifyAll();
+        }
+
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted stopping the log flusher");
+        }
+    }
+
+    /**
+     * Reads the complete frames in the log. Records for fileId are written
+     * into data, a fileId of -1 only finds the end of the valid frames.
+     *
+     * @return Length of the log up to the first torn or corrupt frame
+     * @throws IOException
+     */
+    private long replay(int fileId, Storage data) throws IOException {
+        long pos = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+
+        while (pos + FRAME_HEADER <= size) {
+            header.clear();
+            readFully(header, pos);
+            int payload = header.getInt(0);
+            int expected = header.getInt(4);
+
+            if (payload <= 0 || pos + FRAME_HEADER + payload > size)
+                break;
+
+            ByteBuffer frame = ByteBuffer.allocate(payload);
+            readFully(frame, pos + FRAME_HEADER);
+
+            CRC32 crc = new CRC32();
+            crc.update(frame.array(), 0, payload);
+            if ((int) crc.getValue() != expected)
+                break;
+
+            frame.flip();
+            while (frame.hasRemaining()) {
+                int id = frame.get();
+                long at = frame.getLong();
+                int len = frame.getInt();
+                if (id == fileId)
+                    data.write(at, frame.array(), frame.position(), len);
+                frame.position(frame.position() + len);
+            }
+
+            pos += FRAME_HEADER + payload;
+        }
+
+        return pos;
+    }
+
+    private void readFully(ByteBuffer dst, long pos) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, pos + dst.position()) < 0)
+                throw new EOFException();
+        }
+    }
+
+    private static void ensure(Txn txn, int extra) {
+        if (txn.size + extra > txn.buf.length)
+            txn.buf = Arrays.copyOf(txn.buf, Math.max(txn.buf.length * 2, txn.size + extra));
+    }
+}